@@ -7,21 +7,97 @@
     var user_fullname = 'John';
     var lng = -122.08;
     var lat = 37.38;
+    // url -> { etag, body } of the last list loaded from it
+    var responseCache = {};
+    // item_id -> favorite, toggles not yet sent to the server
+    var pendingFavorites = {};
+    var favoriteTimer = null;
+    // batches of favorite changes sent but not answered yet, and callbacks
+    // waiting for them
+    var favoritesInFlight = 0;
+    var afterFavoritesCallbacks = [];
+    // EventSource of the recommendation list being loaded
+    var recommendationStream = null;
 
     /**
      * Initialize
      */
     function init() {
         // Register event listeners
+        $('login-btn').addEventListener('click', login);
+        $('register-btn').addEventListener('click', register);
+        $('register-link').addEventListener('click', showRegisterForm);
+        $('login-link').addEventListener('click', showLoginForm);
         $('nearby-btn').addEventListener('click', loadNearbyItems);
         $('fav-btn').addEventListener('click', loadFavoriteItems);
         $('recommend-btn').addEventListener('click', loadRecommendedItems);
 
+        validateSession();
+    }
+
+    /**
+     * Session
+     */
+    function validateSession() {
+        // The request parameters
+        var url = './login';
+        var req = JSON.stringify({});
+
+        // display loading message
+        showLoadingMessage('Validating session...');
+
+        // make AJAX call
+        ajax('GET', url, req,
+            // session is still valid
+            function(res) {
+                var result = JSON.parse(res);
+
+                if (result.status === 'OK') {
+                    onSessionValid(result);
+                }
+            },
+            // not logged in
+            function() {
+                showLoginForm();
+            });
+    }
+
+    function onSessionValid(result) {
+        user_id = result.user_id;
+        user_fullname = result.name;
+
         var welcomeMsg = $('welcome-msg');
         welcomeMsg.innerHTML = 'Welcome, ' + user_fullname;
+
+        hideElement($('login-form'));
+        hideElement($('register-form'));
+        showElement($('item-nav'));
+        showElement($('item-list'));
+        showElement($('avatar'));
+        showElement($('welcome-msg'), 'inline');
+        showElement($('logout-link'), 'inline');
+
         initGeoLocation();
     }
 
+    function showLoginForm() {
+        hideElement($('item-nav'));
+        hideElement($('item-list'));
+        hideElement($('avatar'));
+        hideElement($('welcome-msg'));
+        hideElement($('logout-link'));
+        hideElement($('register-form'));
+
+        showElement($('login-form'));
+    }
+
+    function showRegisterForm() {
+        hideElement($('login-form'));
+        $('register-result').innerHTML = '';
+
+        showElement($('register-form'));
+    }
+
     function initGeoLocation() {
         if (navigator.geolocation) {
             navigator.geolocation.getCurrentPosition(onPositionUpdated,
@@ -63,6 +139,96 @@
         });
     }
 
+    // -----------------------------------
+    // Login and register
+    // -----------------------------------
+
+    /**
+     * The server never sees the password itself, only md5(username +
+     * md5(password)), which it hashes again with a salt.
+     */
+    function credential(username, password) {
+        return md5(username + md5(password));
+    }
+
+    /**
+     * API Login end point: [POST] /Dashi/login request json data: { user_id:
+     * 1111, password: credential }
+     */
+    function login() {
+        var username = $('username').value;
+        var password = $('password').value;
+
+        // The request parameters
+        var url = './login';
+        var req = JSON.stringify({
+            user_id: username,
+            password: credential(username, password)
+        });
+
+        ajax('POST', url, req,
+            // successful callback
+            function(res) {
+                var result = JSON.parse(res);
+
+                // successfully logged in
+                if (result.status === 'OK') {
+                    $('login-error').innerHTML = '';
+                    $('password').value = '';
+                    onSessionValid(result);
+                }
+            },
+            // failed callback
+            function(status) {
+                $('login-error').innerHTML = status === 503 ?
+                    'Too many logins right now, try again in a moment' :
+                    'Invalid username or password';
+            });
+    }
+
+    /**
+     * API Register end point: [POST] /Dashi/register request json data: {
+     * user_id: 1111, password: credential, first_name: John, last_name: Smith }
+     */
+    function register() {
+        var username = $('register-username').value;
+        var password = $('register-password').value;
+        var result = $('register-result');
+
+        if (username === '' || password === '') {
+            result.innerHTML = 'Please enter a username and a password';
+            return;
+        }
+
+        // The request parameters
+        var url = './register';
+        var req = JSON.stringify({
+            user_id: username,
+            password: credential(username, password),
+            first_name: $('register-first-name').value,
+            last_name: $('register-last-name').value
+        });
+
+        ajax('POST', url, req,
+            // successful callback
+            function() {
+                $('register-password').value = '';
+                showLoginForm();
+                $('username').value = username;
+                $('login-error').innerHTML = 'Registered, please log in';
+            },
+            // failed callback
+            function(status) {
+                if (status === 409) {
+                    result.innerHTML = 'User already exists';
+                } else if (status === 503) {
+                    result.innerHTML = 'Too many requests right now, try again in a moment';
+                } else {
+                    result.innerHTML = 'Cannot register';
+                }
+            });
+    }
+
     // -----------------------------------
     // Helper Functions
     // -----------------------------------
@@ -74,6 +240,12 @@
      *            The id of the navigation button
      */
     function activeBtn(btnId) {
+        // Switching tabs abandons a recommendation list still loading.
+        if (recommendationStream) {
+            recommendationStream.close();
+            recommendationStream = null;
+        }
+
         var btns = document.getElementsByClassName('main-nav-btn');
 
         // deactivate all navigation buttons
@@ -146,7 +318,7 @@
      * @param callback -
      *            This the successful callback
      * @param errorHandler -
-     *            This is the failed callback
+     *            This is the failed callback, given the HTTP status
      */
     function ajax(method, url, data, callback, errorHandler) {
         var xhr = new XMLHttpRequest();
@@ -156,8 +328,10 @@
         xhr.onload = function() {
         	if (xhr.status === 200) {
         		callback(xhr.responseText);
+        	} else if (sessionExpired(xhr, url)) {
+        		showLoginForm();
         	} else {
-        		errorHandler();
+        		errorHandler(xhr.status);
         	}
         };
 
@@ -175,6 +349,62 @@
         }
     }
 
+    /**
+     * Whether an API call failed because the session timed out. A failed
+     * login is a 401 too, but that one is for the login form to report.
+     */
+    function sessionExpired(xhr, url) {
+        return xhr.status === 401 && url !== './login';
+    }
+
+    /**
+     * Conditional GET helper. Keeps the ETag and body of the last response per
+     * url and revalidates with If-None-Match, so an unchanged list is rendered
+     * from memory instead of being sent again.
+     * 
+     * @param url -
+     *            API end point
+     * @param callback -
+     *            This the successful callback
+     * @param errorHandler -
+     *            This is the failed callback, given the HTTP status
+     */
+    function ajaxCached(url, callback, errorHandler) {
+        var xhr = new XMLHttpRequest();
+        var cached = responseCache[url];
+
+        xhr.open('GET', url, true);
+        if (cached) {
+            xhr.setRequestHeader('If-None-Match', cached.etag);
+        }
+
+        xhr.onload = function() {
+            if (xhr.status === 304 && cached) {
+                callback(cached.body);
+            } else if (xhr.status === 200) {
+                var etag = xhr.getResponseHeader('ETag');
+                if (etag) {
+                    responseCache[url] = {
+                        etag: etag,
+                        body: xhr.responseText
+                    };
+                }
+                callback(xhr.responseText);
+            } else if (sessionExpired(xhr, url)) {
+                showLoginForm();
+            } else {
+                errorHandler(xhr.status);
+            }
+        };
+
+        xhr.onerror = function() {
+            console.error("The request couldn't be completed.");
+            errorHandler();
+        };
+
+        xhr.send();
+    }
+
     // -------------------------------------
     // AJAX call server-side APIs
     // -------------------------------------
@@ -222,21 +452,22 @@
         // The request parameters
         var url = './history';
         var params = 'user_id=' + user_id;
-        var req = JSON.stringify({});
 
         // display loading message
         showLoadingMessage('Loading favorite items...');
 
-        // make AJAX call
-        ajax('GET', url + '?' + params, req, function(res) {
-            var items = JSON.parse(res);
-            if (!items || items.length === 0) {
-                showWarningMessage('No favorite item.');
-            } else {
-                listItems(items);
-            }
-        }, function() {
-            showErrorMessage('Cannot load favorite items.');
+        // make AJAX call, unchanged favorites come back as 304
+        afterFavoritesSent(function() {
+            ajaxCached(url + '?' + params, function(res) {
+                var items = JSON.parse(res);
+                if (!items || items.length === 0) {
+                    showWarningMessage('No favorite item.');
+                } else {
+                    listItems(items);
+                }
+            }, function() {
+                showErrorMessage('Cannot load favorite items.');
+            });
         });
     }
 
@@ -251,29 +482,80 @@
         var url = './recommendation';
         var params = 'user_id=' + user_id + '&lat=' + lat + '&lon=' + lng;
 
-        var req = JSON.stringify({});
-
         // display loading message
         showLoadingMessage('Loading recommended items...');
 
-        // make AJAX call
-        ajax(
-            'GET',
-            url + '?' + params,
-            req,
-            // successful callback
-            function(res) {
-                var items = JSON.parse(res);
-                if (!items || items.length === 0) {
-                    showWarningMessage('No recommended item. Make sure you have favorites.');
-                } else {
-                    listItems(items);
-                }
-            },
-            // failed callback
-            function() {
-                showErrorMessage('Cannot load recommended items.');
+        if (window.EventSource) {
+            afterFavoritesSent(function() {
+                streamRecommendedItems(url + '/stream?' + params);
             });
+            return;
+        }
+
+        // make AJAX call, unchanged recommendations come back as 304
+        afterFavoritesSent(function() {
+            ajaxCached(
+                url + '?' + params,
+                // successful callback
+                function(res) {
+                    var items = JSON.parse(res);
+                    if (!items || items.length === 0) {
+                        showWarningMessage('No recommended item. Make sure you have favorites.');
+                    } else {
+                        listItems(items);
+                    }
+                },
+                // failed callback
+                function() {
+                    showErrorMessage('Cannot load recommended items.');
+                });
+        });
+    }
+
+    /**
+     * Recommended items over Server-Sent Events: each "items" event carries one
+     * category's items and is shown right away, "complete" ends the stream.
+     * 
+     * @param url -
+     *            API end point: [GET] /Dashi/recommendation/stream?user_id=1111
+     */
+    function streamRecommendedItems(url) {
+        var itemList = $('item-list');
+        var source = new EventSource(url);
+        var shown = false;
+        recommendationStream = source;
+
+        source.addEventListener('items', function(e) {
+            var items = JSON.parse(e.data).items;
+            if (items.length === 0) {
+                return;
+            }
+            if (!shown) {
+                // Replace the loading message with the first items.
+                itemList.innerHTML = '';
+                shown = true;
+            }
+            for (var i = 0; i < items.length; i++) {
+                addItem(itemList, items[i]);
+            }
+        });
+
+        source.addEventListener('complete', function() {
+            source.close();
+            recommendationStream = null;
+            if (!shown) {
+                showWarningMessage('No recommended item. Make sure you have favorites.');
+            }
+        });
+
+        source.onerror = function() {
+            // Don't let the browser reconnect and start over.
+            source.close();
+            recommendationStream = null;
+            if (!shown) {
+                showErrorMessage('Cannot load recommended items.');
+            }
+        };
     }
 
     /**
@@ -282,8 +564,8 @@
      * @param item_id -
      *            The item business id
      * 
-     * API end point: [POST]/[DELETE] /Dashi/history request json data: {
-     * user_id: 1111, visited: [a_list_of_business_ids] }
+     * The icon changes right away. Toggles are collected for a short while and
+     * sent together, so clicking the same item back and forth costs nothing.
      */
     function changeFavoriteItem(item_id) {
         // Check whether this item has been visited or not
@@ -291,25 +573,101 @@
         var favIcon = $('fav-icon-' + item_id);
         var favorite = li.dataset.favorite !== 'true';
 
-        // The request parameters
-        var url = './history';
+        li.dataset.favorite = favorite;
+        favIcon.className = favorite ? 'fa fa-heart' : 'fa fa-heart-o';
+
+        pendingFavorites[item_id] = favorite;
+        if (favoriteTimer === null) {
+            favoriteTimer = setTimeout(sendFavoriteChanges, 300);
+        }
+    }
+
+    /**
+     * API #5 Send collected favorite changes
+     * 
+     * API end point: [POST] /Dashi/history/batch request json data: {
+     * user_id: 1111, changes: [{ item_id: abc, favorite: true }] }
+     */
+    function sendFavoriteChanges() {
+        var sent = pendingFavorites;
+        pendingFavorites = {};
+        clearTimeout(favoriteTimer);
+        favoriteTimer = null;
+
+        var changes = [];
+        for (var item_id in sent) {
+            if (sent.hasOwnProperty(item_id)) {
+                changes.push({
+                    item_id: item_id,
+                    favorite: sent[item_id]
+                });
+            }
+        }
+
+        var url = './history/batch';
         var req = JSON.stringify({
             user_id: user_id,
-            favorite: [item_id]
+            changes: changes
         });
-        var method = favorite ? 'POST' : 'DELETE';
 
-        ajax(method, url, req,
+        favoritesInFlight++;
+        ajax('POST', url, req,
             // successful callback
             function(res) {
                 var result = JSON.parse(res);
-                if (result.result === 'SUCCESS') {
-                    li.dataset.favorite = favorite;
-                    favIcon.className = favorite ? 'fa fa-heart' : 'fa fa-heart-o';
+                if (result.result !== 'SUCCESS') {
+                    revertFavorites(sent);
                 }
+                favoritesAnswered();
+            },
+            // failed callback
+            function() {
+                revertFavorites(sent);
+                favoritesAnswered();
             });
     }
 
+    function favoritesAnswered() {
+        favoritesInFlight--;
+        if (favoritesInFlight === 0) {
+            var callbacks = afterFavoritesCallbacks;
+            afterFavoritesCallbacks = [];
+            for (var i = 0; i < callbacks.length; i++) {
+                callbacks[i]();
+            }
+        }
+    }
+
+    /**
+     * Runs next after every favorite change made so far reached the server,
+     * both unsent ones and batches still on their way, so lists loaded by
+     * next include them.
+     */
+    function afterFavoritesSent(next) {
+        if (favoriteTimer !== null) {
+            sendFavoriteChanges();
+        }
+        if (favoritesInFlight === 0) {
+            next();
+        } else {
+            afterFavoritesCallbacks.push(next);
+        }
+    }
+
+    function revertFavorites(sent) {
+        for (var item_id in sent) {
+            // Leave items that were toggled again since.
+            if (sent.hasOwnProperty(item_id) && !pendingFavorites.hasOwnProperty(item_id)) {
+                var li = $('item-' + item_id);
+                if (li) {
+                    li.dataset.favorite = !sent[item_id];
+                    $('fav-icon-' + item_id).className = sent[item_id] ? 'fa fa-heart-o' : 'fa fa-heart';
+                }
+            }
+        }
+        console.error('Cannot save favorite items.');
+    }
+
     // -------------------------------------
     // Create item list
     // -------------------------------------
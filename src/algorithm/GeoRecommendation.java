@@ -5,24 +5,124 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import analytics.TrafficStats;
 import db.DBConnection;
 import db.DBConnectionFactory;
+import db.FavoriteVersions;
+import db.FavoriteWriteBuffer;
 import entity.Item;
+import external.EventPager;
+import external.SearchResult;
+import external.TicketMasterAPI;
+import metrics.Trace;
+import metrics.Trace.Span;
 
 public class GeoRecommendation {
+	// One Ticketmaster page per category, so each category costs a single call
+	// of our quota.
+	private static final int ITEMS_PER_CATEGORY = EventPager.PAGE_SIZE;
+	private static final int MAX_CACHED_PROFILES = 10000;
+
+	// Profiles of recent users, read at the favorites version they carry, least
+	// recently used first.
+	private static final Map<String, Profile> profilesByUser = new LinkedHashMap<String, Profile>(16, 0.75f,
+			true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Profile> eldest) {
+			return size() > MAX_CACHED_PROFILES;
+		}
+	};
+
+	/**
+	 * A user's favorites and their categories, most frequent first.
+	 */
+	public static class Profile {
+		private final Set<String> favoriteItemIds;
+		private final List<String> categories;
+		private final String favoritesVersion;
+
+		public Profile(Set<String> favoriteItemIds, List<String> categories) {
+			this(favoriteItemIds, categories, null);
+		}
+
+		/**
+		 * @param favoritesVersion
+		 *            (Nullable) the user's FavoriteVersions read before the
+		 *            favorites were
+		 */
+		public Profile(Set<String> favoriteItemIds, List<String> categories, String favoritesVersion) {
+			this.favoriteItemIds = favoriteItemIds;
+			this.categories = categories;
+			this.favoritesVersion = favoritesVersion;
+		}
+
+		public Set<String> getFavoriteItemIds() {
+			return favoriteItemIds;
+		}
+
+		public List<String> getCategories() {
+			return categories;
+		}
+
+		/**
+		 * @return (Nullable) the favorites version the profile is current for
+		 */
+		public String getFavoritesVersion() {
+			return favoritesVersion;
+		}
+	}
+
 	  public List<Item> recommendItems(String userId, double lat, double lon) {
-		List<Item> recommendedItems = new ArrayList<>();
+		// Step 1 and 2
+		Span span = Trace.span("recommend.histogram");
+		Profile profile = profile(userId);
+		span.end();
+
+		return recommendItems(profile, lat, lon);
+	  }
+
+	/**
+	 * Steps 3 and 4 for a profile the caller already read, e.g. to tag the
+	 * response.
+	 */
+	public List<Item> recommendItems(Profile profile, double lat, double lon) {
 		DBConnection conn = DBConnectionFactory.getConnection();
-		
-		// Step 1 Get all favorite items
+
+		// Step 3, do search based on category, filter out favorited events, sort by
+		// distance
+		Span span = Trace.span("recommend.fanout");
+		List<List<Item>> searchResults = new ArrayList<>();
+		for (String category : profile.getCategories()) {
+			TrafficStats.recordCategory(category);
+			SearchResult result = search(conn, lat, lon, category);
+			result.trace();
+			searchResults.add(result.getItems());
+		}
+		conn.close();
+		span.end();
+
+		span = Trace.span("recommend.ranking");
+		List<Item> recommendedItems = rank(profile, searchResults);
+		span.end();
+
+		return recommendedItems;
+	}
+
+	/**
+	 * Step 1 Get all favorite items, Step 2 get all categories of favorite items,
+	 * sort by count.
+	 */
+	public static Profile profile(DBConnection conn, String userId) {
 		Set<String> favoriteItemIds = conn.getFavoriteItemIds(userId);
 
-		// Step 2 Get all categories of favorite items, sort by count
 		Map<String, Integer> allCategories = new HashMap<>();
 		for (String itemId : favoriteItemIds) {
 			Set<String> categories = conn.getCategories(itemId);
@@ -30,7 +130,7 @@ public class GeoRecommendation {
 				allCategories.put(category, allCategories.getOrDefault(category, 0) + 1);
 			}
 		}
-		
+
 		List<Entry<String, Integer>> categoryList =
 				new ArrayList<Entry<String, Integer>>(allCategories.entrySet());
 		Collections.sort(categoryList, new Comparator<Entry<String, Integer>>() {
@@ -40,31 +140,105 @@ public class GeoRecommendation {
 			}
 		});
 
-		// Step 3, do search based on category, filter out favorited events, sort by
-		// distance
-		Set<Item> visitedItems = new HashSet<>();
-		
+		List<String> categories = new ArrayList<>();
 		for (Entry<String, Integer> category : categoryList) {
-			List<Item> items = conn.searchItems(lat, lon, category.getKey());
-			List<Item> filteredItems = new ArrayList<>();
-			for (Item item : items) {
-				if (!favoriteItemIds.contains(item.getItemId())
-						&& !visitedItems.contains(item)) {
-					filteredItems.add(item);
-				}
-			}
-			
-			Collections.sort(filteredItems, new Comparator<Item>() {
-				@Override
-				public int compare(Item item1, Item item2) {
-					return Double.compare(item1.getDistance(), item2.getDistance());
-				}
-			});
-			
-			visitedItems.addAll(items);
-			recommendedItems.addAll(filteredItems);
-		}
-		
+			categories.add(category.getKey());
+		}
+		return new Profile(favoriteItemIds, categories);
+	}
+
+	/**
+	 * The user's profile after writing out the user's buffered favorite
+	 * changes, read from the database only when the favorites changed since it
+	 * was last read.
+	 *
+	 * @return profile with its favorites version
+	 */
+	public static Profile profile(String userId) {
+		FavoriteWriteBuffer.flush(userId);
+		// Read before the favorites, a change after it makes the profile stale.
+		String version = FavoriteVersions.get(userId);
+		Profile cached;
+		synchronized (profilesByUser) {
+			cached = profilesByUser.get(userId);
+		}
+		if (cached != null && version.equals(cached.getFavoritesVersion())) {
+			return cached;
+		}
+		DBConnection conn = DBConnectionFactory.getConnection();
+		Profile read;
+		try {
+			read = profile(conn, userId);
+		} finally {
+			conn.close();
+		}
+		Profile profile = new Profile(read.getFavoriteItemIds(), read.getCategories(), version);
+		synchronized (profilesByUser) {
+			profilesByUser.put(userId, profile);
+		}
+		return profile;
+	}
+
+	/**
+	 * Step 3 Search one category around a location. Safe on any thread; the
+	 * caller records the result's flags on its request.
+	 */
+	public static SearchResult search(DBConnection conn, double lat, double lon, String category) {
+		return conn.searchItems(lat, lon, category, ITEMS_PER_CATEGORY);
+	}
+
+	/**
+	 * Step 3 through the given API instance, for callers with their own share of
+	 * the Ticketmaster quota. Found items are saved like conn.searchItems does.
+	 */
+	public static SearchResult search(TicketMasterAPI api, DBConnection conn, double lat, double lon,
+			String category) {
+		SearchResult result = api.search(lat, lon, category, ITEMS_PER_CATEGORY);
+		for (Item item : result.getItems()) {
+			conn.saveItem(item);
+		}
+		return result;
+	}
+
+	/**
+	 * Step 4 Merge the per-category results in profile order: drop favorites and
+	 * items already listed, sort each category by distance.
+	 *
+	 * @param searchResults
+	 *            one list per category of the profile, in the same order
+	 */
+	public static List<Item> rank(Profile profile, List<List<Item>> searchResults) {
+		List<Item> recommendedItems = new ArrayList<>();
+		Set<Item> visitedItems = new HashSet<>();
+
+		for (List<Item> items : searchResults) {
+			recommendedItems.addAll(rankCategory(profile, items, visitedItems));
+		}
+
 		return recommendedItems;
-	  }
+	}
+
+	/**
+	 * Step 4 for one category: drop favorites and visited items, sort by
+	 * distance, then mark all items of the category visited.
+	 */
+	public static List<Item> rankCategory(Profile profile, List<Item> items, Set<Item> visitedItems) {
+		List<Item> filteredItems = new ArrayList<>();
+		for (Item item : items) {
+			if (!profile.getFavoriteItemIds().contains(item.getItemId())
+					&& !visitedItems.contains(item)) {
+				filteredItems.add(item);
+			}
+		}
+
+		Collections.sort(filteredItems, new Comparator<Item>() {
+			@Override
+			public int compare(Item item1, Item item2) {
+				return Double.compare(item1.getDistance(), item2.getDistance());
+			}
+		});
+
+		visitedItems.addAll(items);
+		return filteredItems;
+	}
 }
@@ -0,0 +1,295 @@
+package algorithm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import algorithm.GeoRecommendation.Profile;
+import algorithm.RecommendationStore.Region;
+import db.DBConnection;
+import db.DBConnectionFactory;
+import db.FavoriteVersions;
+import db.FavoriteWriteBuffer;
+import entity.Item;
+import external.SearchResult;
+import external.TicketMasterAPI;
+import logging.AccessLog;
+import metrics.Metrics;
+
+/**
+ * Batch job that precomputes recommendations for active users, those with
+ * favorites in history that recently asked for recommendations, into
+ * RecommendationStore.
+ *
+ * Users are grouped by the cell they were last seen in. Each cell is one
+ * fork-join task: the users' profiles are loaded in parallel, every category
+ * any of them likes is searched once for the whole cell, also in parallel,
+ * and each user's list is ranked from those shared results. Database and
+ * Ticketmaster calls block inside ForkJoinPool.managedBlock, so the pool adds
+ * threads while they wait instead of stalling.
+ *
+ * Searches are limited to the precompute.qps share of the Ticketmaster quota
+ * and leave the last precompute.reserve tokens of it to requests. A cell where
+ * any search was rate limited, failed or served stale results is not stored;
+ * its users get live recommendations until a later batch.
+ */
+public class RecommendationPrecomputer {
+	private static final long INTERVAL_MILLIS = Long.getLong("precompute.intervalMillis", 5 * 60 * 1000);
+	private static final int parallelism = Integer.getInteger("precompute.parallelism",
+			Runtime.getRuntime().availableProcessors());
+	// Searches draw on their own share of the quota, leaving a reserve to
+	// requests.
+	private static final TicketMasterAPI tmAPI = TicketMasterAPI.forPrecompute();
+
+	private static ForkJoinPool pool;
+	private static ScheduledExecutorService scheduler;
+
+	private RecommendationPrecomputer() {
+	}
+
+	public static synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		pool = new ForkJoinPool(parallelism);
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "recommendation-precomputer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					runBatch(pool);
+				} catch (Exception e) {
+					AccessLog.error("recommend.precompute", "Precompute batch failed", e);
+				}
+			}
+		}, INTERVAL_MILLIS, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	public static synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			pool.shutdownNow();
+			scheduler = null;
+			pool = null;
+		}
+	}
+
+	/**
+	 * Precompute recommendations for every active user with a recent region.
+	 *
+	 * @return the number of users precomputed
+	 */
+	public static int runBatch(ForkJoinPool pool) {
+		long start = System.nanoTime();
+		Map<String, Region> regions = RecommendationStore.recentRegions();
+		if (regions.isEmpty()) {
+			return 0;
+		}
+
+		DBConnection conn = DBConnectionFactory.getConnection();
+		Set<String> activeUserIds = conn.getActiveUserIds();
+		conn.close();
+
+		Map<String, Map<String, Region>> cells = new HashMap<>();
+		for (Entry<String, Region> region : regions.entrySet()) {
+			if (!activeUserIds.contains(region.getKey())) {
+				continue;
+			}
+			Map<String, Region> users = cells.get(region.getValue().getCell());
+			if (users == null) {
+				users = new HashMap<>();
+				cells.put(region.getValue().getCell(), users);
+			}
+			users.put(region.getKey(), region.getValue());
+		}
+
+		List<ForkJoinTask<Integer>> tasks = new ArrayList<>();
+		for (Entry<String, Map<String, Region>> cell : cells.entrySet()) {
+			tasks.add(pool.submit(new CellTask(cell.getKey(), cell.getValue())));
+		}
+		int users = 0;
+		for (ForkJoinTask<Integer> task : tasks) {
+			try {
+				users += task.join();
+			} catch (RuntimeException e) {
+				AccessLog.error("recommend.precompute", "Precompute of a cell failed", e);
+			}
+		}
+		RecommendationStore.evictStale();
+
+		Metrics.histogram("precompute_batch_seconds", null, null).record(System.nanoTime() - start);
+		Metrics.add("precomputed_users_total", null, null, users);
+		return users;
+	}
+
+	/**
+	 * Precomputes all users last seen in one cell.
+	 */
+	private static class CellTask extends RecursiveTask<Integer> {
+		private static final long serialVersionUID = 1L;
+
+		private final String cell;
+		private final Map<String, Region> users;
+
+		CellTask(String cell, Map<String, Region> users) {
+			this.cell = cell;
+			this.users = users;
+		}
+
+		@Override
+		protected Integer compute() {
+			long computedAt = System.currentTimeMillis();
+
+			// Profiles in parallel. Versions are read before pending writes are
+			// flushed, so a change during the batch makes the entry stale, not wrong.
+			final Map<String, String> versions = new HashMap<>();
+			List<ForkJoinTask<Profile>> profileTasks = new ArrayList<>();
+			for (final String userId : users.keySet()) {
+				versions.put(userId, FavoriteVersions.get(userId));
+				profileTasks.add(ForkJoinTask.adapt(new Callable<Profile>() {
+					@Override
+					public Profile call() {
+						return blocking(new Callable<Profile>() {
+							@Override
+							public Profile call() {
+								FavoriteWriteBuffer.flush(userId);
+								DBConnection conn = DBConnectionFactory.getConnection();
+								try {
+									return GeoRecommendation.profile(conn, userId);
+								} finally {
+									conn.close();
+								}
+							}
+						});
+					}
+				}));
+			}
+			invokeAll(profileTasks);
+
+			Map<String, Profile> profiles = new HashMap<>();
+			Set<String> categories = new LinkedHashSet<>();
+			int i = 0;
+			for (String userId : users.keySet()) {
+				Profile profile = profileTasks.get(i++).join();
+				profiles.put(userId, profile);
+				categories.addAll(profile.getCategories());
+			}
+
+			// One search per category for the whole cell. Users are within a cell of
+			// each other, so distances from any of them rank the same.
+			Region origin = users.values().iterator().next();
+			final double lat = origin.getLat();
+			final double lon = origin.getLon();
+			Map<String, ForkJoinTask<SearchResult>> searches = new HashMap<>();
+			for (final String category : categories) {
+				searches.put(category, ForkJoinTask.adapt(new Callable<SearchResult>() {
+					@Override
+					public SearchResult call() {
+						return blocking(new Callable<SearchResult>() {
+							@Override
+							public SearchResult call() {
+								DBConnection conn = DBConnectionFactory.getConnection();
+								try {
+									return GeoRecommendation.search(tmAPI, conn, lat, lon, category);
+								} finally {
+									conn.close();
+								}
+							}
+						});
+					}
+				}));
+			}
+			invokeAll(searches.values());
+			for (ForkJoinTask<SearchResult> search : searches.values()) {
+				if (search.join().isStale()) {
+					Metrics.increment("precompute_cells_skipped_total", "reason", "stale");
+					return 0;
+				}
+			}
+
+			Map<String, Item> items = new HashMap<>();
+			Map<String, RecommendationStore.Entry> entries = new HashMap<>();
+			for (Entry<String, Profile> profile : profiles.entrySet()) {
+				List<List<Item>> searchResults = new ArrayList<>();
+				for (String category : profile.getValue().getCategories()) {
+					searchResults.add(searches.get(category).join().getItems());
+				}
+				List<String> itemIds = new ArrayList<>();
+				for (Item item : GeoRecommendation.rank(profile.getValue(), searchResults)) {
+					itemIds.add(item.getItemId());
+					items.put(item.getItemId(), item);
+				}
+				entries.put(profile.getKey(), new RecommendationStore.Entry(itemIds, versions.get(profile.getKey()),
+						RecommendationStore.fingerprint(profile.getValue().getFavoriteItemIds()), computedAt));
+			}
+			RecommendationStore.putCell(cell, items, entries);
+			return users.size();
+		}
+	}
+
+	/**
+	 * Run a blocking call from a pool thread, letting the pool compensate for
+	 * the thread while it waits.
+	 */
+	private static <T> T blocking(Callable<T> call) {
+		Blocker<T> blocker = new Blocker<>(call);
+		try {
+			ForkJoinPool.managedBlock(blocker);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}
+		if (blocker.failure != null) {
+			throw blocker.failure;
+		}
+		return blocker.result;
+	}
+
+	private static class Blocker<T> implements ForkJoinPool.ManagedBlocker {
+		private final Callable<T> call;
+		private T result;
+		private RuntimeException failure;
+		private boolean done;
+
+		Blocker(Callable<T> call) {
+			this.call = call;
+		}
+
+		@Override
+		public boolean block() {
+			try {
+				result = call.call();
+			} catch (RuntimeException e) {
+				failure = e;
+			} catch (Exception e) {
+				failure = new IllegalStateException(e);
+			}
+			done = true;
+			return true;
+		}
+
+		@Override
+		public boolean isReleasable() {
+			return done;
+		}
+	}
+}
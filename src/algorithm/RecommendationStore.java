@@ -0,0 +1,331 @@
+package algorithm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import analytics.Hashing;
+import db.DBConnection;
+import db.DBConnectionFactory;
+import db.FavoriteVersions;
+import entity.Item;
+import external.EventCache;
+import external.GeoHash;
+import metrics.Gauge;
+import metrics.Metrics;
+
+/**
+ * Precomputed recommendations per (user, geohash cell), and the cells users
+ * recently asked for recommendations in.
+ *
+ * A user's list holds ranked item ids. The items themselves are stored once
+ * per cell, since users of a cell share the same category searches.
+ *
+ * Entries restored from before a restart carry no favorites version. They
+ * are checked against a fingerprint of the user's favorite ids instead, one
+ * query rather than a full recomputation.
+ */
+public class RecommendationStore {
+	// Same cells as EventCache, so precomputation reuses its entries.
+	public static final int PRECISION = EventCache.KEY_PRECISION;
+	public static final long FRESH_MILLIS = Long.getLong("precompute.freshMillis", 15 * 60 * 1000);
+	// Users not seen for this long are no longer precomputed.
+	public static final long REGION_MILLIS = 24 * 60 * 60 * 1000;
+	private static final int MAX_USERS = 10000;
+
+	/**
+	 * Where a user last asked for recommendations.
+	 */
+	public static class Region {
+		private final String cell;
+		private final double lat;
+		private final double lon;
+		private final long seenAt;
+
+		public Region(String cell, double lat, double lon, long seenAt) {
+			this.cell = cell;
+			this.lat = lat;
+			this.lon = lon;
+			this.seenAt = seenAt;
+		}
+
+		public String getCell() {
+			return cell;
+		}
+
+		public double getLat() {
+			return lat;
+		}
+
+		public double getLon() {
+			return lon;
+		}
+
+		public long getSeenAt() {
+			return seenAt;
+		}
+	}
+
+	/**
+	 * Ranked item ids of one user in one cell.
+	 */
+	public static class Entry {
+		private final List<String> itemIds;
+		private final String favoritesVersion;
+		private final long favoritesFingerprint;
+		private final long computedAt;
+
+		/**
+		 * @param favoritesVersion
+		 *            (Nullable) unknown for restored entries
+		 */
+		public Entry(List<String> itemIds, String favoritesVersion, long favoritesFingerprint, long computedAt) {
+			this.itemIds = Collections.unmodifiableList(itemIds);
+			this.favoritesVersion = favoritesVersion;
+			this.favoritesFingerprint = favoritesFingerprint;
+			this.computedAt = computedAt;
+		}
+
+		public List<String> getItemIds() {
+			return itemIds;
+		}
+
+		public String getFavoritesVersion() {
+			return favoritesVersion;
+		}
+
+		public long getFavoritesFingerprint() {
+			return favoritesFingerprint;
+		}
+
+		public long getComputedAt() {
+			return computedAt;
+		}
+	}
+
+	// Least recently seen first.
+	private static final Map<String, Region> regions = new LinkedHashMap<String, Region>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Region> eldest) {
+			return size() > MAX_USERS;
+		}
+	};
+	private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private static final Map<String, Map<String, Item>> cellItems = new ConcurrentHashMap<>();
+	private static volatile Loader loader;
+
+	/**
+	 * Source of entries and cell items from before a restart, asked on a miss.
+	 */
+	public interface Loader {
+		/**
+		 * @return the entry for userId|cell, or null if there is none
+		 */
+		Entry loadEntry(String key);
+
+		/**
+		 * @return the items of the cell, or null if there are none
+		 */
+		Map<String, Item> loadCellItems(String cell);
+	}
+
+	static {
+		Metrics.gauge("precomputed_recommendations", new Gauge() {
+			@Override
+			public long value() {
+				return entries.size();
+			}
+		});
+	}
+
+	private RecommendationStore() {
+	}
+
+	public static void setLoader(Loader loader) {
+		RecommendationStore.loader = loader;
+	}
+
+	/**
+	 * @return a hash of the ids that does not depend on their order
+	 */
+	public static long fingerprint(Set<String> favoriteItemIds) {
+		long fingerprint = 0;
+		for (String itemId : favoriteItemIds) {
+			fingerprint += Hashing.hash64(itemId);
+		}
+		return fingerprint;
+	}
+
+	public static String cell(double lat, double lon) {
+		return GeoHash.encodeGeohash(lat, lon, PRECISION);
+	}
+
+	public static String key(String userId, String cell) {
+		return userId + "|" + cell;
+	}
+
+	public static void recordRegion(String userId, double lat, double lon) {
+		Region region = new Region(cell(lat, lon), lat, lon, System.currentTimeMillis());
+		synchronized (regions) {
+			regions.put(userId, region);
+		}
+	}
+
+	/**
+	 * Restore where a user was seen, unless they have been seen since.
+	 */
+	public static void restoreRegion(String userId, Region region) {
+		synchronized (regions) {
+			if (!regions.containsKey(userId)) {
+				regions.put(userId, region);
+			}
+		}
+	}
+
+	/**
+	 * @return users seen within REGION_MILLIS and where they were last seen
+	 */
+	public static Map<String, Region> recentRegions() {
+		long cutoff = System.currentTimeMillis() - REGION_MILLIS;
+		Map<String, Region> recent = new HashMap<>();
+		synchronized (regions) {
+			Iterator<Map.Entry<String, Region>> it = regions.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, Region> region = it.next();
+				if (region.getValue().seenAt < cutoff) {
+					it.remove();
+				} else {
+					recent.put(region.getKey(), region.getValue());
+				}
+			}
+		}
+		return recent;
+	}
+
+	/**
+	 * Store one batch of results for a cell, replacing the cell's items.
+	 *
+	 * @param cell
+	 * @param items
+	 *            every item referenced by the entries
+	 * @param userEntries
+	 *            user id to entry
+	 */
+	public static void putCell(String cell, Map<String, Item> items, Map<String, Entry> userEntries) {
+		cellItems.put(cell, items);
+		for (Map.Entry<String, Entry> entry : userEntries.entrySet()) {
+			entries.put(key(entry.getKey(), cell), entry.getValue());
+		}
+	}
+
+	/**
+	 * @return the precomputed recommendations, or null if there are none, they
+	 *         are too old or the user's favorites changed since
+	 */
+	public static List<Item> get(String userId, double lat, double lon) {
+		String cell = cell(lat, lon);
+		String key = key(userId, cell);
+		Entry entry = entries.get(key);
+		if (entry == null && loader != null) {
+			entry = loader.loadEntry(key);
+		}
+		if (entry == null) {
+			return null;
+		}
+		if (System.currentTimeMillis() - entry.computedAt >= FRESH_MILLIS) {
+			entries.remove(key, entry);
+			return null;
+		}
+		if (entry.favoritesVersion == null) {
+			entry = verify(userId, entry);
+			if (entry == null) {
+				entries.remove(key);
+				return null;
+			}
+			entries.put(key, entry);
+		} else if (!entry.favoritesVersion.equals(FavoriteVersions.get(userId))) {
+			entries.remove(key, entry);
+			return null;
+		}
+		Map<String, Item> items = cellItems.get(cell);
+		if (items == null && loader != null) {
+			items = loader.loadCellItems(cell);
+			if (items != null) {
+				Map<String, Item> current = cellItems.putIfAbsent(cell, items);
+				if (current != null) {
+					items = current;
+				}
+			}
+		}
+		if (items == null) {
+			return null;
+		}
+		List<Item> result = new ArrayList<>();
+		for (String itemId : entry.itemIds) {
+			Item item = items.get(itemId);
+			if (item == null) {
+				// The cell was recomputed without this item.
+				return null;
+			}
+			result.add(item);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the restored entry stamped with the current favorites version, or
+	 *         null if the favorites changed since it was computed
+	 */
+	private static Entry verify(String userId, Entry restored) {
+		// Read the version first, a change after it makes the entry stale.
+		String version = FavoriteVersions.get(userId);
+		DBConnection conn = DBConnectionFactory.getConnection();
+		try {
+			if (fingerprint(conn.getFavoriteItemIds(userId)) != restored.favoritesFingerprint) {
+				return null;
+			}
+		} finally {
+			conn.close();
+		}
+		return new Entry(restored.itemIds, version, restored.favoritesFingerprint, restored.computedAt);
+	}
+
+	/**
+	 * Drop entries that can no longer be served, and items of cells without
+	 * entries.
+	 */
+	public static void evictStale() {
+		long now = System.currentTimeMillis();
+		Set<String> liveCells = new HashSet<>();
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			if (now - entry.getValue().computedAt >= FRESH_MILLIS) {
+				entries.remove(entry.getKey(), entry.getValue());
+			} else {
+				String key = entry.getKey();
+				liveCells.add(key.substring(key.lastIndexOf('|') + 1));
+			}
+		}
+		for (String cell : cellItems.keySet()) {
+			if (!liveCells.contains(cell)) {
+				cellItems.remove(cell);
+			}
+		}
+	}
+
+	public static Map<String, Entry> entries() {
+		return Collections.unmodifiableMap(entries);
+	}
+
+	public static Map<String, Map<String, Item>> cellItems() {
+		return Collections.unmodifiableMap(cellItems);
+	}
+}
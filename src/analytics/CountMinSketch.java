@@ -0,0 +1,44 @@
+package analytics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate frequency counter with fixed memory. Estimates never undercount
+ * and overcount by at most about 0.3% of the total with the default size.
+ */
+public class CountMinSketch {
+	private static final int DEPTH = 4;
+	private static final int WIDTH = 1024; // power of two
+
+	private final AtomicLongArray counts = new AtomicLongArray(DEPTH * WIDTH);
+
+	/**
+	 * Count one occurrence.
+	 *
+	 * @param value
+	 * @return the new estimate for value
+	 */
+	public long add(String value) {
+		long hash = Hashing.hash64(value);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		long min = Long.MAX_VALUE;
+		for (int row = 0; row < DEPTH; ++row) {
+			int column = (h1 + row * h2) & (WIDTH - 1);
+			min = Math.min(min, counts.incrementAndGet(row * WIDTH + column));
+		}
+		return min;
+	}
+
+	public long estimate(String value) {
+		long hash = Hashing.hash64(value);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		long min = Long.MAX_VALUE;
+		for (int row = 0; row < DEPTH; ++row) {
+			int column = (h1 + row * h2) & (WIDTH - 1);
+			min = Math.min(min, counts.get(row * WIDTH + column));
+		}
+		return min;
+	}
+}
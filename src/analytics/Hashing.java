@@ -0,0 +1,25 @@
+package analytics;
+
+/**
+ * 64-bit string hashing shared by the sketches.
+ */
+public class Hashing {
+	private Hashing() {
+	}
+
+	// FNV-1a over the chars, finished with the MurmurHash3 fmix64 step so the
+	// low and high bits are both well mixed.
+	public static long hash64(String value) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); ++i) {
+			h ^= value.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,128 @@
+package analytics;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeSet;
+
+/**
+ * Keeps the most frequent keys of a stream in bounded memory: a Count-Min
+ * sketch counts every key and at most 2 * capacity top candidates are
+ * remembered.
+ *
+ * Candidates are split over a few shards by key hash, each a min-ordered set
+ * of fixed size behind its own lock. A key whose estimate does not beat the
+ * smallest candidate of a full shard is turned away without taking the lock,
+ * so a long tail of rare keys costs only the sketch update. Ties are broken by
+ * key, so the same stream always keeps the same candidates.
+ */
+public class HeavyHitters {
+	private static final int KEYS_PER_SHARD = 32;
+	private static final int MAX_SHARDS = 8;
+
+	// Highest count first, then by key.
+	private static final Comparator<Entry<String, Long>> DESCENDING = new Comparator<Entry<String, Long>>() {
+		@Override
+		public int compare(Entry<String, Long> o1, Entry<String, Long> o2) {
+			int byCount = Long.compare(o2.getValue(), o1.getValue());
+			return byCount != 0 ? byCount : o1.getKey().compareTo(o2.getKey());
+		}
+	};
+
+	private final CountMinSketch sketch = new CountMinSketch();
+	private final Shard[] shards;
+
+	private static class Shard {
+		private final int capacity;
+		private final Map<String, Long> counts = new HashMap<>();
+		// Lowest count first, the next candidate to evict.
+		private final TreeSet<Entry<String, Long>> ranked = new TreeSet<>(Collections.reverseOrder(DESCENDING));
+		// Smallest count kept once the shard is full, 0 before.
+		private volatile long floor;
+
+		private Shard(int capacity) {
+			this.capacity = capacity;
+		}
+
+		private synchronized void offer(String key, long estimate) {
+			Long count = counts.get(key);
+			if (count != null) {
+				if (estimate <= count) {
+					return;
+				}
+				ranked.remove(new SimpleImmutableEntry<>(key, count));
+			} else if (counts.size() >= capacity) {
+				Entry<String, Long> lowest = ranked.first();
+				if (estimate <= lowest.getValue()) {
+					return;
+				}
+				ranked.pollFirst();
+				counts.remove(lowest.getKey());
+			}
+			counts.put(key, estimate);
+			ranked.add(new SimpleImmutableEntry<>(key, estimate));
+			if (counts.size() >= capacity) {
+				floor = ranked.first().getValue();
+			}
+		}
+
+		private synchronized void collect(List<Entry<String, Long>> entries) {
+			entries.addAll(ranked);
+		}
+
+		private synchronized int size() {
+			return counts.size();
+		}
+	}
+
+	public HeavyHitters(int capacity) {
+		int count = Math.max(1, Math.min(MAX_SHARDS, capacity / KEYS_PER_SHARD));
+		shards = new Shard[count];
+		for (int i = 0; i < count; ++i) {
+			shards[i] = new Shard(Math.max(1, 2 * capacity / count));
+		}
+	}
+
+	public void add(String key) {
+		long estimate = sketch.add(key);
+		Shard shard = shards.length == 1 ? shards[0]
+				: shards[(int) ((Hashing.hash64(key) >>> 33) % shards.length)];
+		// Estimates only grow, so a candidate always beats the floor.
+		if (estimate > shard.floor) {
+			shard.offer(key, estimate);
+		}
+	}
+
+	public long estimate(String key) {
+		return sketch.estimate(key);
+	}
+
+	/**
+	 * @return number of candidates kept, at most 2 * capacity
+	 */
+	public int size() {
+		int size = 0;
+		for (Shard shard : shards) {
+			size += shard.size();
+		}
+		return size;
+	}
+
+	/**
+	 * @param k
+	 * @return up to k keys with their estimated counts, most frequent first
+	 */
+	public List<Entry<String, Long>> top(int k) {
+		List<Entry<String, Long>> entries = new ArrayList<>();
+		for (Shard shard : shards) {
+			shard.collect(entries);
+		}
+		Collections.sort(entries, DESCENDING);
+		return entries.subList(0, Math.min(k, entries.size()));
+	}
+}
@@ -0,0 +1,61 @@
+package analytics;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Approximate distinct counter (about 1.6% standard error with 4096
+ * registers). Updates are lock-free.
+ */
+public class HyperLogLog {
+	private static final int P = 12;
+	private static final int M = 1 << P;
+	private static final double ALPHA = 0.7213 / (1 + 1.079 / M);
+
+	private final AtomicIntegerArray registers = new AtomicIntegerArray(M);
+
+	public void add(String value) {
+		long hash = Hashing.hash64(value);
+		int index = (int) (hash >>> (64 - P));
+		// Rank of the first set bit in the remaining 64 - P bits.
+		int rank = Long.numberOfLeadingZeros((hash << P) | (1L << (P - 1))) + 1;
+		int current;
+		while ((current = registers.get(index)) < rank) {
+			if (registers.compareAndSet(index, current, rank)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Fold another sketch into this one.
+	 */
+	public void merge(HyperLogLog other) {
+		for (int i = 0; i < M; ++i) {
+			int rank = other.registers.get(i);
+			int current;
+			while ((current = registers.get(i)) < rank) {
+				if (registers.compareAndSet(i, current, rank)) {
+					break;
+				}
+			}
+		}
+	}
+
+	public long estimate() {
+		double sum = 0;
+		int zeros = 0;
+		for (int i = 0; i < M; ++i) {
+			int rank = registers.get(i);
+			sum += 1.0 / (1L << rank);
+			if (rank == 0) {
+				zeros++;
+			}
+		}
+		double estimate = ALPHA * M * M / sum;
+		// Small range correction: linear counting.
+		if (estimate <= 2.5 * M && zeros > 0) {
+			estimate = M * Math.log((double) M / zeros);
+		}
+		return Math.round(estimate);
+	}
+}
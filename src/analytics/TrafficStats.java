@@ -0,0 +1,253 @@
+package analytics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import logging.AccessLog;
+
+/**
+ * Live traffic aggregation in one-minute windows, replacing the offline
+ * MapReduce over Tomcat logs.
+ *
+ * Counters are LongAdders, unique users a HyperLogLog and hot regions and
+ * keywords Count-Min based heavy hitters, so every window has a fixed memory
+ * cost. The last hour of windows is kept in a ring.
+ */
+public class TrafficStats {
+	public static final long WINDOW_MILLIS = 60 * 1000;
+	private static final int WINDOWS = 60;
+	private static final int TOP_K = 10;
+
+	private static final AtomicReferenceArray<Window> windows = new AtomicReferenceArray<>(WINDOWS);
+
+	private static class Window {
+		private final long start;
+		private final LongAdder requests = new LongAdder();
+		private final ConcurrentMap<String, LongAdder> endpoints = new ConcurrentHashMap<>();
+		private final ConcurrentMap<String, LongAdder> categories = new ConcurrentHashMap<>();
+		private final HyperLogLog users = new HyperLogLog();
+		private final HeavyHitters regions = new HeavyHitters(TOP_K);
+		private final HeavyHitters keywords = new HeavyHitters(TOP_K);
+
+		private Window(long start) {
+			this.start = start;
+		}
+	}
+
+	private TrafficStats() {
+	}
+
+	/**
+	 * Count one request.
+	 *
+	 * @param endpoint
+	 * @param userId
+	 *            (Nullable)
+	 * @param region
+	 *            geohash bucket (Nullable)
+	 */
+	public static void recordRequest(String endpoint, String userId, String region) {
+		Window window = current(System.currentTimeMillis());
+		window.requests.increment();
+		increment(window.endpoints, endpoint);
+		if (userId != null) {
+			window.users.add(userId);
+		}
+		if (region != null) {
+			window.regions.add(region);
+		}
+	}
+
+	/**
+	 * Count one upstream search keyword, e.g. a recommendation category.
+	 *
+	 * @param keyword
+	 */
+	public static void recordKeyword(String keyword) {
+		if (keyword != null && !keyword.isEmpty()) {
+			current(System.currentTimeMillis()).keywords.add(keyword);
+		}
+	}
+
+	/**
+	 * Count one category of interest, e.g. one searched for a recommendation.
+	 *
+	 * @param category
+	 */
+	public static void recordCategory(String category) {
+		increment(current(System.currentTimeMillis()).categories, category);
+	}
+
+	/**
+	 * @param k
+	 * @param count
+	 *            number of recent windows to look at
+	 * @return the hottest regions across recent windows, most requests first
+	 */
+	public static List<String> hotRegions(int k, int count) {
+		List<String> result = new ArrayList<>();
+		for (Entry<String, Long> entry : mergeTop(recent(count), true, k)) {
+			result.add(entry.getKey());
+		}
+		return result;
+	}
+
+	private static void increment(ConcurrentMap<String, LongAdder> counters, String key) {
+		LongAdder counter = counters.get(key);
+		if (counter == null) {
+			counters.putIfAbsent(key, new LongAdder());
+			counter = counters.get(key);
+		}
+		counter.increment();
+	}
+
+	private static Window current(long now) {
+		long start = now - now % WINDOW_MILLIS;
+		int slot = (int) ((start / WINDOW_MILLIS) % WINDOWS);
+		while (true) {
+			Window window = windows.get(slot);
+			if (window != null && window.start == start) {
+				return window;
+			}
+			if (window != null && window.start > start) {
+				// A late caller from the previous lap, count it in the newer window.
+				return window;
+			}
+			Window fresh = new Window(start);
+			if (windows.compareAndSet(slot, window, fresh)) {
+				return fresh;
+			}
+		}
+	}
+
+	// Up to count windows that are still within the last hour, newest first.
+	private static List<Window> recent(int count) {
+		long now = System.currentTimeMillis();
+		long oldest = now - now % WINDOW_MILLIS - (long) (WINDOWS - 1) * WINDOW_MILLIS;
+		List<Window> result = new ArrayList<>();
+		for (int i = 0; i < WINDOWS; ++i) {
+			Window window = windows.get(i);
+			if (window != null && window.start >= oldest) {
+				result.add(window);
+			}
+		}
+		Collections.sort(result, new Comparator<Window>() {
+			@Override
+			public int compare(Window w1, Window w2) {
+				return Long.compare(w2.start, w1.start);
+			}
+		});
+		return result.subList(0, Math.min(count, result.size()));
+	}
+
+	private static List<Entry<String, Long>> mergeTop(List<Window> recent, boolean regions, int k) {
+		Map<String, Long> totals = new HashMap<>();
+		for (Window window : recent) {
+			HeavyHitters hitters = regions ? window.regions : window.keywords;
+			for (Entry<String, Long> entry : hitters.top(TOP_K)) {
+				totals.put(entry.getKey(), totals.getOrDefault(entry.getKey(), 0L) + entry.getValue());
+			}
+		}
+		List<Entry<String, Long>> entries = new ArrayList<>(totals.entrySet());
+		Collections.sort(entries, new Comparator<Entry<String, Long>>() {
+			@Override
+			public int compare(Entry<String, Long> e1, Entry<String, Long> e2) {
+				return Long.compare(e2.getValue(), e1.getValue());
+			}
+		});
+		return entries.subList(0, Math.min(k, entries.size()));
+	}
+
+	/**
+	 * The most recent windows plus an aggregate over them.
+	 *
+	 * @param count
+	 *            number of windows, at most 60
+	 * @return {"window_ms": ..., "windows": [...], "aggregate": {...}}
+	 */
+	public static JSONObject toJSONObject(int count) {
+		JSONObject obj = new JSONObject();
+		try {
+			List<Window> recent = recent(count);
+			JSONArray array = new JSONArray();
+			HyperLogLog users = new HyperLogLog();
+			Map<String, Long> endpoints = new HashMap<>();
+			Map<String, Long> categories = new HashMap<>();
+			long requests = 0;
+			Window peak = null;
+			for (Window window : recent) {
+				array.put(toJSONObject(window));
+				users.merge(window.users);
+				sum(endpoints, window.endpoints);
+				sum(categories, window.categories);
+				requests += window.requests.sum();
+				if (peak == null || window.requests.sum() > peak.requests.sum()) {
+					peak = window;
+				}
+			}
+
+			JSONObject aggregate = new JSONObject();
+			aggregate.put("requests", requests);
+			aggregate.put("unique_users", users.estimate());
+			aggregate.put("endpoints", new JSONObject(endpoints));
+			aggregate.put("categories", new JSONObject(categories));
+			aggregate.put("hot_regions", toJSONArray(mergeTop(recent, true, TOP_K)));
+			aggregate.put("hot_keywords", toJSONArray(mergeTop(recent, false, TOP_K)));
+			if (peak != null) {
+				aggregate.put("peak_window_start", peak.start);
+				aggregate.put("peak_requests", peak.requests.sum());
+			}
+
+			obj.put("window_ms", WINDOW_MILLIS);
+			obj.put("windows", array);
+			obj.put("aggregate", aggregate);
+		} catch (JSONException e) {
+			AccessLog.error("stats", "Cannot build traffic stats", e);
+		}
+		return obj;
+	}
+
+	private static JSONObject toJSONObject(Window window) throws JSONException {
+		Map<String, Long> endpoints = new HashMap<>();
+		sum(endpoints, window.endpoints);
+		Map<String, Long> categories = new HashMap<>();
+		sum(categories, window.categories);
+
+		JSONObject obj = new JSONObject();
+		obj.put("start", window.start);
+		obj.put("requests", window.requests.sum());
+		obj.put("unique_users", window.users.estimate());
+		obj.put("endpoints", new JSONObject(endpoints));
+		obj.put("categories", new JSONObject(categories));
+		obj.put("hot_regions", toJSONArray(window.regions.top(TOP_K)));
+		obj.put("hot_keywords", toJSONArray(window.keywords.top(TOP_K)));
+		return obj;
+	}
+
+	private static void sum(Map<String, Long> totals, Map<String, LongAdder> counters) {
+		for (Entry<String, LongAdder> entry : counters.entrySet()) {
+			totals.put(entry.getKey(), totals.getOrDefault(entry.getKey(), 0L) + entry.getValue().sum());
+		}
+	}
+
+	private static JSONArray toJSONArray(List<Entry<String, Long>> entries) throws JSONException {
+		JSONArray array = new JSONArray();
+		for (Entry<String, Long> entry : entries) {
+			array.put(new JSONObject().put("key", entry.getKey()).put("count", entry.getValue()));
+		}
+		return array;
+	}
+}
@@ -0,0 +1,183 @@
+package auth;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import db.DBConnection;
+import db.DBConnectionFactory;
+import metrics.Gauge;
+import metrics.Metrics;
+
+/**
+ * Verifies logins and registers users.
+ *
+ * Password hashing is slow on purpose, so it runs on a small bounded pool
+ * instead of request threads: a burst of logins queues up to
+ * -Dauth.queue tasks and the rest are rejected, leaving the request threads
+ * to everything else.
+ *
+ * A successful login is remembered for -Dauth.cacheMillis as an HMAC of the
+ * credential under a key that only lives in this process, so the same user
+ * logging in again is verified without the database or the slow hash.
+ * Failed logins are never cached and always pay the full cost.
+ */
+public class Authenticator {
+	private static final int THREADS = Integer.getInteger("auth.threads",
+			Runtime.getRuntime().availableProcessors());
+	private static final int QUEUE = Integer.getInteger("auth.queue", 64);
+	private static final long CACHE_MILLIS = Long.getLong("auth.cacheMillis", 10 * 60 * 1000);
+	private static final int MAX_CACHED = 10000;
+
+	/**
+	 * A verified credential.
+	 */
+	private static class Cached {
+		private final byte[] digest;
+		private final String fullname;
+		private final long verifiedAt;
+
+		Cached(byte[] digest, String fullname, long verifiedAt) {
+			this.digest = digest;
+			this.fullname = fullname;
+			this.verifiedAt = verifiedAt;
+		}
+	}
+
+	private static final ThreadPoolExecutor hashers = new ThreadPoolExecutor(THREADS, THREADS, 0,
+			TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(QUEUE), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "password-hasher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	// Least recently used first.
+	private static final Map<String, Cached> cache = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+			return size() > MAX_CACHED;
+		}
+	};
+
+	private static final byte[] cacheKey = new byte[32];
+
+	static {
+		new SecureRandom().nextBytes(cacheKey);
+		Metrics.gauge("auth_queue_depth", new Gauge() {
+			@Override
+			public long value() {
+				return hashers.getQueue().size();
+			}
+		});
+	}
+
+	private Authenticator() {
+	}
+
+	/**
+	 * Run a task that verifies or hashes a password.
+	 *
+	 * @throws RejectedExecutionException
+	 *             if the queue is full
+	 */
+	public static void execute(Runnable task) {
+		hashers.execute(task);
+	}
+
+	/**
+	 * Verify a login from the cache only. Cheap enough for a request thread.
+	 *
+	 * @return the user's full name, or null if the credential is not cached
+	 */
+	public static String cachedLogin(String userId, String password) {
+		Cached cached;
+		synchronized (cache) {
+			cached = cache.get(userId);
+		}
+		if (cached != null && System.currentTimeMillis() - cached.verifiedAt < CACHE_MILLIS
+				&& MessageDigest.isEqual(cached.digest, digest(userId, password))) {
+			Metrics.increment("auth_cache_total", "result", "hit");
+			return cached.fullname;
+		}
+		Metrics.increment("auth_cache_total", "result", "miss");
+		return null;
+	}
+
+	/**
+	 * Verify a login against the stored hash, upgrading a hash from before
+	 * hashing or with fewer iterations. Slow, call it from execute().
+	 *
+	 * @return the user's full name, or null if the credential is wrong
+	 */
+	public static String login(String userId, String password) {
+		DBConnection conn = DBConnectionFactory.getConnection();
+		try {
+			String stored = conn.getPassword(userId);
+			long start = System.nanoTime();
+			boolean valid;
+			if (stored == null) {
+				Passwords.burn(password);
+				valid = false;
+			} else {
+				valid = Passwords.verify(stored, password);
+			}
+			Metrics.histogram("auth_hash_seconds", null, null).record(System.nanoTime() - start);
+			if (!valid) {
+				return null;
+			}
+			if (Passwords.needsRehash(stored)) {
+				conn.setPassword(userId, Passwords.hash(password));
+			}
+			String fullname = conn.getFullname(userId);
+			synchronized (cache) {
+				cache.put(userId, new Cached(digest(userId, password), fullname, System.currentTimeMillis()));
+			}
+			return fullname;
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Add a user with a hash of password. Slow, call it from execute().
+	 *
+	 * @return false if the user already exists
+	 */
+	public static boolean register(String userId, String password, String firstname, String lastname) {
+		String hash = Passwords.hash(password);
+		DBConnection conn = DBConnectionFactory.getConnection();
+		try {
+			return conn.registerUser(userId, hash, firstname, lastname);
+		} finally {
+			conn.close();
+		}
+	}
+
+	private static byte[] digest(String userId, String password) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(cacheKey, "HmacSHA256"));
+			mac.update(userId.getBytes(StandardCharsets.UTF_8));
+			mac.update((byte) 0);
+			return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package auth;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Salted PBKDF2 password hashes, stored as
+ * "pbkdf2$iterations$salt$hash" with base64 salt and hash.
+ *
+ * The client sends md5(user_id + md5(password)), not the password itself,
+ * and that is what gets hashed here. Users created before hashing have that
+ * string stored as is; it still verifies, and needsRehash tells the caller to
+ * replace it.
+ */
+public class Passwords {
+	private static final String PREFIX = "pbkdf2";
+	private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+	// Deliberately slow, around 100ms per hash on one core.
+	private static final int ITERATIONS = Integer.getInteger("auth.iterations", 100000);
+	private static final int SALT_BYTES = 16;
+	private static final int HASH_BITS = 256;
+
+	private static final SecureRandom random = new SecureRandom();
+
+	private Passwords() {
+	}
+
+	/**
+	 * @return a new salted hash of password
+	 */
+	public static String hash(String password) {
+		byte[] salt = new byte[SALT_BYTES];
+		random.nextBytes(salt);
+		byte[] hash = pbkdf2(password, salt, ITERATIONS);
+		return PREFIX + "$" + ITERATIONS + "$" + Base64.getEncoder().encodeToString(salt) + "$"
+				+ Base64.getEncoder().encodeToString(hash);
+	}
+
+	/**
+	 * @param stored
+	 *            (Nullable) hash from the users table
+	 * @return whether password matches stored, in time independent of where
+	 *         they differ
+	 */
+	public static boolean verify(String stored, String password) {
+		if (stored == null || password == null) {
+			return false;
+		}
+		String[] parts = stored.split("\\$");
+		if (parts.length != 4 || !parts[0].equals(PREFIX)) {
+			// Stored before hashing.
+			return MessageDigest.isEqual(stored.getBytes(StandardCharsets.UTF_8),
+					password.getBytes(StandardCharsets.UTF_8));
+		}
+		try {
+			int iterations = Integer.parseInt(parts[1]);
+			byte[] salt = Base64.getDecoder().decode(parts[2]);
+			byte[] expected = Base64.getDecoder().decode(parts[3]);
+			return MessageDigest.isEqual(expected, pbkdf2(password, salt, iterations));
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return whether stored is not a hash or has fewer iterations than new
+	 *         hashes get
+	 */
+	public static boolean needsRehash(String stored) {
+		return !stored.startsWith(PREFIX + "$" + ITERATIONS + "$");
+	}
+
+	/**
+	 * Spend as long as verify does, so a login for a missing user cannot be
+	 * told apart by its latency.
+	 */
+	public static void burn(String password) {
+		pbkdf2(password == null ? "" : password, new byte[SALT_BYTES], ITERATIONS);
+	}
+
+	private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+		try {
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+		} catch (GeneralSecurityException e) {
+			// Every Java 8 runtime has PBKDF2WithHmacSHA256.
+			throw new IllegalStateException(e);
+		} finally {
+			spec.clearPassword();
+		}
+	}
+}
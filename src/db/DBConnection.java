@@ -4,6 +4,7 @@ import java.util.List;
 import java.util.Set;
 
 import entity.Item;
+import external.SearchResult;
 
 public interface DBConnection {
 	/**
@@ -27,6 +28,17 @@ public interface DBConnection {
 	 */
 	public void unsetFavoriteItems(String userId, List<String> itemIds);
 
+	/**
+	 * Insert and delete favorite items for a user in one transaction.
+	 * 
+	 * @param userId
+	 * @param added
+	 * @param removed
+	 * @throws RuntimeException
+	 *             if the changes were not written, so the caller can retry them
+	 */
+	public void applyFavoriteChanges(String userId, List<String> added, List<String> removed);
+
 	/**
 	 * Get the favorite item id for a user.
 	 * 
@@ -35,6 +47,13 @@ public interface DBConnection {
 	 */
 	public Set<String> getFavoriteItemIds(String userId);
 
+	/**
+	 * Get the users that have favorite items.
+	 * 
+	 * @return userIds
+	 */
+	public Set<String> getActiveUserIds();
+
 	/**
 	 * Get the favorite items for a user.
 	 * 
@@ -63,6 +82,19 @@ public interface DBConnection {
 	 */
 	public List<Item> searchItems(double lat, double lon, String term);
 
+	/**
+	 * Search up to limit items near a geolocation and a term (optional). Only
+	 * as many result pages as needed are fetched.
+	 * 
+	 * @param lat
+	 * @param lon
+	 * @param term
+	 *            (Nullable)
+	 * @param limit
+	 * @return items, flagged if they came from cache or are stale
+	 */
+	public SearchResult searchItems(double lat, double lon, String term, int limit);
+
 	/**
 	 * Save item into db.
 	 * 
@@ -80,13 +112,36 @@ public interface DBConnection {
 	public String getFullname(String userId);
 
 	/**
-	 * Return whether the credential is correct. (This is not needed for main
-	 * course, just for demo and extension)
+	 * Get the stored password hash of a user.
+	 * 
+	 * @param userId
+	 * @return password hash, or null if there is no such user
+	 * @throws RuntimeException
+	 *             if the database cannot be read, so a login is not refused as
+	 *             if the user did not exist
+	 */
+	public String getPassword(String userId);
+
+	/**
+	 * Replace the stored password hash of a user.
+	 * 
+	 * @param userId
+	 * @param password
+	 */
+	public void setPassword(String userId, String password);
+
+	/**
+	 * Insert a new user.
 	 * 
 	 * @param userId
 	 * @param password
-	 * @return boolean
+	 *            hash to store
+	 * @param firstname
+	 * @param lastname
+	 * @return false if the user already exists
+	 * @throws RuntimeException
+	 *             if the user was not written
 	 */
-	public boolean verifyLogin(String userId, String password);
+	public boolean registerUser(String userId, String password, String firstname, String lastname);
 
 }
@@ -1,18 +1,25 @@
 package db;
 
+import db.embedded.EmbeddedConnection;
+import db.mongodb.MongoDBConnection;
 import db.mysql.MySQLConnection;
 
 public class DBConnectionFactory {
 	// This should change based on the pipeline.
-		private static final String DEFAULT_DB = "mysql";
+		private static final String DEFAULT_DB = System.getProperty("db.backend", "mysql");
 		
 		public static DBConnection getConnection(String db) {
+			return new InstrumentedConnection(createConnection(db));
+		}
+		
+		private static DBConnection createConnection(String db) {
 			switch (db) {
 			case "mysql":
 				return new MySQLConnection();
 			case "mongodb":
-				// return new MongoDBConnection();
-				return null;
+				return new MongoDBConnection();
+			case "embedded":
+				return new EmbeddedConnection();
 			default:
 				throw new IllegalArgumentException("Invalid db: " + db);
 			}
@@ -0,0 +1,44 @@
+package db;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-user counter of favorite changes, bumped by every setFavoriteItems and
+ * unsetFavoriteItems that goes through DBConnectionFactory. Responses derived
+ * from a user's favorites can be tagged with it and revalidated without
+ * reading the database.
+ *
+ * Counters live in memory, so they are combined with the server start time
+ * to stay unique across restarts.
+ */
+public class FavoriteVersions {
+	private static final String EPOCH = Long.toString(System.currentTimeMillis(), 36);
+
+	private static final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+
+	private FavoriteVersions() {
+	}
+
+	/**
+	 * @param userId
+	 * @return the user's current version, changes whenever the favorites do
+	 */
+	public static String get(String userId) {
+		AtomicLong version = versions.get(userId);
+		return EPOCH + "." + (version == null ? 0 : version.get());
+	}
+
+	public static void bump(String userId) {
+		AtomicLong version = versions.get(userId);
+		if (version == null) {
+			AtomicLong created = new AtomicLong();
+			version = versions.putIfAbsent(userId, created);
+			if (version == null) {
+				version = created;
+			}
+		}
+		version.incrementAndGet();
+	}
+}
@@ -0,0 +1,246 @@
+package db;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import logging.AccessLog;
+import metrics.Gauge;
+import metrics.Metrics;
+
+/**
+ * Coalesces favorite writes per user. Changes are held for up to FLUSH_MILLIS,
+ * repeated toggles of one item collapse to its last state, and the net change
+ * is written with one applyFavoriteChanges call.
+ *
+ * Readers of a user's favorites call flush(userId) first to see their own
+ * writes. Flushes of one user are serialized, so such a read also waits for a
+ * flush already in progress.
+ *
+ * A failed write is put back in front of the user's newer changes and tried
+ * again with the next flush, up to MAX_ATTEMPTS times before it is dropped.
+ */
+public class FavoriteWriteBuffer {
+	private static final long FLUSH_MILLIS = Long.getLong("favorites.flushMillis", 500);
+	// Flush right away rather than let one user hold a huge batch.
+	private static final int MAX_PENDING = 200;
+	private static final int LOCK_STRIPES = 64;
+	private static final int MAX_ATTEMPTS = Integer.getInteger("favorites.maxAttempts", 10);
+
+	/**
+	 * The latest requested state of each changed item of one user.
+	 */
+	private static class Pending {
+		private final Map<String, Boolean> changes = new LinkedHashMap<>();
+		private boolean drained;
+		// Failed writes of the oldest changes.
+		private int failures;
+	}
+
+	private static final Map<String, Pending> pending = new ConcurrentHashMap<>();
+	private static final Object[] flushLocks = new Object[LOCK_STRIPES];
+	private static volatile ScheduledExecutorService scheduler;
+
+	static {
+		for (int i = 0; i < LOCK_STRIPES; ++i) {
+			flushLocks[i] = new Object();
+		}
+		Metrics.gauge("favorite_buffer_users", new Gauge() {
+			@Override
+			public long value() {
+				return pending.size();
+			}
+		});
+	}
+
+	private FavoriteWriteBuffer() {
+	}
+
+	/**
+	 * Queue favorite changes for a user. The user's FavoriteVersions is bumped
+	 * immediately, before the changes reach the database.
+	 *
+	 * @param userId
+	 * @param changes
+	 *            item id to true to add it, false to remove it, applied in order
+	 */
+	public static void enqueue(String userId, Map<String, Boolean> changes) {
+		int size;
+		while (true) {
+			Pending p = pending.get(userId);
+			if (p == null) {
+				Pending created = new Pending();
+				p = pending.putIfAbsent(userId, created);
+				if (p == null) {
+					p = created;
+				}
+			}
+			synchronized (p) {
+				if (p.drained) {
+					// Lost a race with a flush, start a new batch.
+					continue;
+				}
+				for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+					// Re-insert so the map keeps the order of the last change.
+					p.changes.remove(change.getKey());
+					p.changes.put(change.getKey(), change.getValue());
+				}
+				size = p.changes.size();
+			}
+			break;
+		}
+		Metrics.increment("favorite_changes_total", null, null);
+		FavoriteVersions.bump(userId);
+		// Without the background flush (e.g. in tools), write through.
+		if (size >= MAX_PENDING || scheduler == null) {
+			flush(userId);
+		}
+	}
+
+	/**
+	 * Write a user's pending changes, and wait for any flush of the user in
+	 * progress.
+	 *
+	 * @param userId
+	 */
+	public static void flush(String userId) {
+		synchronized (flushLocks[(userId.hashCode() & 0x7fffffff) % LOCK_STRIPES]) {
+			Pending p = pending.remove(userId);
+			if (p == null) {
+				return;
+			}
+			DBConnection conn = DBConnectionFactory.getConnection();
+			try {
+				write(conn, userId, p);
+			} finally {
+				conn.close();
+			}
+		}
+	}
+
+	/**
+	 * Write all pending changes over one connection.
+	 */
+	public static void flushAll() {
+		if (pending.isEmpty()) {
+			return;
+		}
+		DBConnection conn = DBConnectionFactory.getConnection();
+		try {
+			flushAll(conn);
+		} finally {
+			conn.close();
+		}
+	}
+
+	static void flushAll(DBConnection conn) {
+		for (String userId : new ArrayList<>(pending.keySet())) {
+			synchronized (flushLocks[(userId.hashCode() & 0x7fffffff) % LOCK_STRIPES]) {
+				Pending p = pending.remove(userId);
+				if (p != null) {
+					write(conn, userId, p);
+				}
+			}
+		}
+	}
+
+	private static void write(DBConnection conn, String userId, Pending p) {
+		List<String> added = new ArrayList<>();
+		List<String> removed = new ArrayList<>();
+		synchronized (p) {
+			p.drained = true;
+			for (Map.Entry<String, Boolean> change : p.changes.entrySet()) {
+				if (change.getValue()) {
+					added.add(change.getKey());
+				} else {
+					removed.add(change.getKey());
+				}
+			}
+		}
+		try {
+			conn.applyFavoriteChanges(userId, added, removed);
+			Metrics.increment("favorite_flushes_total", null, null);
+		} catch (RuntimeException e) {
+			Metrics.increment("favorite_flush_failures_total", null, null);
+			int count = added.size() + removed.size();
+			if (p.failures + 1 >= MAX_ATTEMPTS) {
+				Metrics.add("favorite_changes_dropped_total", null, null, count);
+				AccessLog.error("favorites.flush", "Dropped " + count + " favorite changes of " + userId + " after "
+						+ MAX_ATTEMPTS + " attempts", e);
+			} else {
+				AccessLog.error("favorites.flush", "Requeued " + count + " favorite changes of " + userId, e);
+				requeue(userId, p);
+			}
+		}
+	}
+
+	/**
+	 * Put the changes of a failed write back, before any queued since so the
+	 * newer state of an item wins. Called under the user's flush lock.
+	 */
+	private static void requeue(String userId, Pending failed) {
+		Pending retry = new Pending();
+		retry.failures = failed.failures + 1;
+		retry.changes.putAll(failed.changes);
+		Pending current = pending.putIfAbsent(userId, retry);
+		if (current == null) {
+			return;
+		}
+		synchronized (current) {
+			Map<String, Boolean> newer = new LinkedHashMap<>(current.changes);
+			current.changes.clear();
+			current.changes.putAll(failed.changes);
+			for (Map.Entry<String, Boolean> change : newer.entrySet()) {
+				current.changes.remove(change.getKey());
+				current.changes.put(change.getKey(), change.getValue());
+			}
+			current.failures = retry.failures;
+		}
+	}
+
+	public static synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "favorite-write-buffer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flushAll();
+				} catch (Exception e) {
+					AccessLog.error("favorites.flush", "Flush cycle failed", e);
+				}
+			}
+		}, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop the background flush and write everything still pending.
+	 */
+	public static synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+			try {
+				scheduler.awaitTermination(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			scheduler = null;
+		}
+		flushAll();
+	}
+}
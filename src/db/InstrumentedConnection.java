@@ -0,0 +1,261 @@
+package db;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import entity.Item;
+import external.SearchResult;
+import logging.AccessLog;
+import metrics.Gauge;
+import metrics.Metrics;
+
+/**
+ * Decorates a DBConnection to time every call into db_call_seconds and count
+ * failures into db_errors_total, and bumps FavoriteVersions on favorite
+ * writes. Handed out by DBConnectionFactory.
+ *
+ * Failures a backend handles itself, e.g. a SQLException it answers with an
+ * empty result, never reach this class, so backends report them through
+ * failed().
+ */
+public class InstrumentedConnection implements DBConnection {
+	private static final AtomicLong openConnections = new AtomicLong();
+
+	static {
+		Metrics.gauge("db_connections_open", new Gauge() {
+			@Override
+			public long value() {
+				return openConnections.get();
+			}
+		});
+	}
+
+	private final DBConnection conn;
+	private boolean closed;
+
+	public InstrumentedConnection(DBConnection conn) {
+		this.conn = conn;
+		openConnections.incrementAndGet();
+	}
+
+	private static long start() {
+		return System.nanoTime();
+	}
+
+	private static void stop(String method, long start) {
+		Metrics.histogram("db_call_seconds", "method", method).record(System.nanoTime() - start);
+	}
+
+	private static void fail(String method) {
+		Metrics.increment("db_errors_total", "method", method);
+	}
+
+	/**
+	 * Count and log a failure the backend does not throw.
+	 *
+	 * @param method
+	 *            DBConnection method, or "connect"
+	 * @param e
+	 */
+	public static void failed(String method, Exception e) {
+		fail(method);
+		AccessLog.error("db." + method, e.getMessage(), e);
+	}
+
+	@Override
+	public void close() {
+		if (!closed) {
+			closed = true;
+			openConnections.decrementAndGet();
+		}
+		conn.close();
+	}
+
+	@Override
+	public void setFavoriteItems(String userId, List<String> itemIds) {
+		long start = start();
+		try {
+			conn.setFavoriteItems(userId, itemIds);
+		} catch (RuntimeException e) {
+			fail("setFavoriteItems");
+			throw e;
+		} finally {
+			// Even a failed write may have changed some rows.
+			FavoriteVersions.bump(userId);
+			stop("setFavoriteItems", start);
+		}
+	}
+
+	@Override
+	public void unsetFavoriteItems(String userId, List<String> itemIds) {
+		long start = start();
+		try {
+			conn.unsetFavoriteItems(userId, itemIds);
+		} catch (RuntimeException e) {
+			fail("unsetFavoriteItems");
+			throw e;
+		} finally {
+			FavoriteVersions.bump(userId);
+			stop("unsetFavoriteItems", start);
+		}
+	}
+
+	@Override
+	public void applyFavoriteChanges(String userId, List<String> added, List<String> removed) {
+		long start = start();
+		try {
+			conn.applyFavoriteChanges(userId, added, removed);
+		} catch (RuntimeException e) {
+			fail("applyFavoriteChanges");
+			throw e;
+		} finally {
+			FavoriteVersions.bump(userId);
+			stop("applyFavoriteChanges", start);
+		}
+	}
+
+	@Override
+	public Set<String> getFavoriteItemIds(String userId) {
+		long start = start();
+		try {
+			return conn.getFavoriteItemIds(userId);
+		} catch (RuntimeException e) {
+			fail("getFavoriteItemIds");
+			throw e;
+		} finally {
+			stop("getFavoriteItemIds", start);
+		}
+	}
+
+	@Override
+	public Set<String> getActiveUserIds() {
+		long start = start();
+		try {
+			return conn.getActiveUserIds();
+		} catch (RuntimeException e) {
+			fail("getActiveUserIds");
+			throw e;
+		} finally {
+			stop("getActiveUserIds", start);
+		}
+	}
+
+	@Override
+	public Set<Item> getFavoriteItems(String userId) {
+		long start = start();
+		try {
+			return conn.getFavoriteItems(userId);
+		} catch (RuntimeException e) {
+			fail("getFavoriteItems");
+			throw e;
+		} finally {
+			stop("getFavoriteItems", start);
+		}
+	}
+
+	@Override
+	public Set<String> getCategories(String itemId) {
+		long start = start();
+		try {
+			return conn.getCategories(itemId);
+		} catch (RuntimeException e) {
+			fail("getCategories");
+			throw e;
+		} finally {
+			stop("getCategories", start);
+		}
+	}
+
+	@Override
+	public List<Item> searchItems(double lat, double lon, String term) {
+		long start = start();
+		try {
+			return conn.searchItems(lat, lon, term);
+		} catch (RuntimeException e) {
+			fail("searchItems");
+			throw e;
+		} finally {
+			stop("searchItems", start);
+		}
+	}
+
+	@Override
+	public SearchResult searchItems(double lat, double lon, String term, int limit) {
+		long start = start();
+		try {
+			return conn.searchItems(lat, lon, term, limit);
+		} catch (RuntimeException e) {
+			fail("searchItems");
+			throw e;
+		} finally {
+			stop("searchItems", start);
+		}
+	}
+
+	@Override
+	public void saveItem(Item item) {
+		long start = start();
+		try {
+			conn.saveItem(item);
+		} catch (RuntimeException e) {
+			fail("saveItem");
+			throw e;
+		} finally {
+			stop("saveItem", start);
+		}
+	}
+
+	@Override
+	public String getFullname(String userId) {
+		long start = start();
+		try {
+			return conn.getFullname(userId);
+		} catch (RuntimeException e) {
+			fail("getFullname");
+			throw e;
+		} finally {
+			stop("getFullname", start);
+		}
+	}
+
+	@Override
+	public String getPassword(String userId) {
+		long start = start();
+		try {
+			return conn.getPassword(userId);
+		} catch (RuntimeException e) {
+			fail("getPassword");
+			throw e;
+		} finally {
+			stop("getPassword", start);
+		}
+	}
+
+	@Override
+	public void setPassword(String userId, String password) {
+		long start = start();
+		try {
+			conn.setPassword(userId, password);
+		} catch (RuntimeException e) {
+			fail("setPassword");
+			throw e;
+		} finally {
+			stop("setPassword", start);
+		}
+	}
+
+	@Override
+	public boolean registerUser(String userId, String password, String firstname, String lastname) {
+		long start = start();
+		try {
+			return conn.registerUser(userId, password, firstname, lastname);
+		} catch (RuntimeException e) {
+			fail("registerUser");
+			throw e;
+		} finally {
+			stop("registerUser", start);
+		}
+	}
+
+}
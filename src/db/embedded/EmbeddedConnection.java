@@ -0,0 +1,102 @@
+package db.embedded;
+
+import java.util.List;
+import java.util.Set;
+
+import db.DBConnection;
+import entity.Item;
+import external.SearchResult;
+import external.TicketMasterAPI;
+
+public class EmbeddedConnection implements DBConnection {
+	private EmbeddedStore store;
+
+	public EmbeddedConnection() {
+		store = EmbeddedStore.getInstance();
+	}
+
+	EmbeddedConnection(EmbeddedStore store) {
+		this.store = store;
+	}
+
+	@Override
+	public void close() {
+		// The store is shared by all connections and lives as long as the app.
+	}
+
+	@Override
+	public void setFavoriteItems(String userId, List<String> itemIds) {
+		store.setFavorites(userId, itemIds, true);
+	}
+
+	@Override
+	public void unsetFavoriteItems(String userId, List<String> itemIds) {
+		store.setFavorites(userId, itemIds, false);
+	}
+
+	@Override
+	public void applyFavoriteChanges(String userId, List<String> added, List<String> removed) {
+		store.changeFavorites(userId, added, removed);
+	}
+
+	@Override
+	public Set<String> getFavoriteItemIds(String userId) {
+		return store.getFavoriteItemIds(userId);
+	}
+
+	@Override
+	public Set<String> getActiveUserIds() {
+		return store.getActiveUserIds();
+	}
+
+	@Override
+	public Set<Item> getFavoriteItems(String userId) {
+		return store.getFavoriteItems(userId);
+	}
+
+	@Override
+	public Set<String> getCategories(String itemId) {
+		return store.getCategories(itemId);
+	}
+
+	@Override
+	public List<Item> searchItems(double lat, double lon, String term) {
+		return searchItems(lat, lon, term, TicketMasterAPI.DEFAULT_LIMIT).getItems();
+	}
+
+	@Override
+	public SearchResult searchItems(double lat, double lon, String term, int limit) {
+		TicketMasterAPI tmAPI = new TicketMasterAPI();
+		SearchResult result = tmAPI.search(lat, lon, term, limit);
+		for (Item item : result.getItems()) {
+			saveItem(item);
+		}
+		return result;
+	}
+
+	@Override
+	public void saveItem(Item item) {
+		store.saveItem(item);
+	}
+
+	@Override
+	public String getFullname(String userId) {
+		return store.getFullname(userId);
+	}
+
+	@Override
+	public String getPassword(String userId) {
+		return store.getPassword(userId);
+	}
+
+	@Override
+	public void setPassword(String userId, String password) {
+		store.setPassword(userId, password);
+	}
+
+	@Override
+	public boolean registerUser(String userId, String password, String firstname, String lastname) {
+		return store.addUserIfAbsent(userId, password, firstname, lastname);
+	}
+
+}
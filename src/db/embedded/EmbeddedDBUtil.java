@@ -0,0 +1,11 @@
+package db.embedded;
+
+public class EmbeddedDBUtil {
+	// Append-only journal the embedded store is rebuilt from on startup.
+	public static final String JOURNAL_PATH = System.getProperty("embedded.db.path",
+			System.getProperty("java.io.tmpdir") + "/laiproject.journal");
+	// The journal is rewritten from the live state once it has this many
+	// records and twice as many as that state needs.
+	public static final long COMPACT_RECORDS = Long.getLong("embedded.compactRecords", 100000);
+
+}
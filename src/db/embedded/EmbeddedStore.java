@@ -0,0 +1,661 @@
+package db.embedded;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import entity.Item;
+import entity.Item.ItemBuilder;
+import logging.AccessLog;
+import metrics.Metrics;
+
+/**
+ * In-process storage for users, items, categories and history.
+ *
+ * Item and category ids are interned to int ordinals once, so favorites are a
+ * BitSet per user and category membership is an int[] per item. Every write is
+ * appended to a journal which is replayed on startup.
+ *
+ * Writers queue their journal record under the data lock, so records keep the
+ * order the writes were applied in, and write the queue out after releasing it.
+ * Concurrent writers share one flush and readers never wait on the disk. Once
+ * the journal holds twice as many records as the live state needs it is
+ * rewritten from that state. It is rewritten the same way when appending to it
+ * fails, since memory already has every queued change; until that succeeds
+ * the records stay queued.
+ */
+public class EmbeddedStore {
+	private static EmbeddedStore instance;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// item ordinal -> item (null until the item itself is saved)
+	private final Map<String, Integer> itemOrdinals = new HashMap<>();
+	private final List<String> itemIds = new ArrayList<>();
+	private final List<Item> items = new ArrayList<>();
+	private final List<int[]> itemCategories = new ArrayList<>();
+
+	// category ordinal -> name
+	private final Map<String, Integer> categoryOrdinals = new HashMap<>();
+	private final List<String> categories = new ArrayList<>();
+
+	private final Map<String, User> users = new HashMap<>();
+
+	private final File journalFile;
+	private final long compactRecords;
+	private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+	// Guards journal, journalRecords and compactAt. Never taken while holding
+	// the data lock, compact() takes the data lock inside it.
+	private final Object journalLock = new Object();
+	private BufferedWriter journal;
+	private long journalRecords;
+	private long compactAt;
+	// An append failed, the journal may end in a torn record.
+	private boolean journalFailed;
+
+	private static class User {
+		private String password;
+		private String firstName;
+		private String lastName;
+		private final BitSet favorites = new BitSet();
+	}
+
+	public static synchronized EmbeddedStore getInstance() {
+		if (instance == null) {
+			instance = new EmbeddedStore(new File(EmbeddedDBUtil.JOURNAL_PATH));
+		}
+		return instance;
+	}
+
+	EmbeddedStore(File journalFile) {
+		this(journalFile, EmbeddedDBUtil.COMPACT_RECORDS);
+	}
+
+	/**
+	 * @param compactRecords
+	 *            journal records below which the journal is never compacted
+	 */
+	EmbeddedStore(File journalFile, long compactRecords) {
+		this.journalFile = journalFile;
+		this.compactRecords = compactRecords;
+		synchronized (journalLock) {
+			try {
+				boolean torn = replay();
+				journal = openJournal();
+				compactAt = Math.max(compactRecords, 2 * liveRecords());
+				// Appending after a torn line would tear the next record too.
+				if (torn || journalRecords >= compactAt) {
+					compact();
+				}
+			} catch (IOException e) {
+				AccessLog.error("embedded.open", "Cannot open journal " + journalFile, e);
+			}
+		}
+	}
+
+	/**
+	 * Flush and close the journal. The next getInstance() reopens the store.
+	 */
+	public void close() {
+		synchronized (EmbeddedStore.class) {
+			if (instance == this) {
+				instance = null;
+			}
+		}
+		synchronized (journalLock) {
+			writePending();
+			try {
+				if (journal != null) {
+					journal.close();
+					journal = null;
+				}
+			} catch (IOException e) {
+				AccessLog.error("embedded.close", "Cannot close journal " + journalFile, e);
+			}
+		}
+	}
+
+	/**
+	 * @return records in the journal, including ones still queued
+	 */
+	long journalRecords() {
+		synchronized (journalLock) {
+			return journalRecords + pending.size();
+		}
+	}
+
+	public void addUser(String userId, String password, String firstName, String lastName) {
+		lock.writeLock().lock();
+		try {
+			applyUser(userId, password, firstName, lastName);
+			append(new JSONObject().put("op", "user").put("user_id", userId).put("password", password)
+					.put("first_name", firstName).put("last_name", lastName));
+		} catch (JSONException e) {
+			AccessLog.error("embedded.write", "Cannot journal a change of " + userId, e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		writePending();
+	}
+
+	public void setFavorites(String userId, List<String> ids, boolean favorite) {
+		lock.writeLock().lock();
+		try {
+			applyFavorites(userId, ids, favorite);
+			append(new JSONObject().put("op", favorite ? "fav" : "unfav").put("user_id", userId)
+					.put("item_ids", new JSONArray(ids)));
+		} catch (JSONException e) {
+			AccessLog.error("embedded.write", "Cannot journal a change of " + userId, e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		writePending();
+	}
+
+	/**
+	 * Adds and removes favorites under one lock and one journal record, so
+	 * readers and replay see either none or all of the changes.
+	 */
+	public void changeFavorites(String userId, List<String> added, List<String> removed) {
+		lock.writeLock().lock();
+		try {
+			applyFavorites(userId, added, true);
+			applyFavorites(userId, removed, false);
+			append(new JSONObject().put("op", "favs").put("user_id", userId)
+					.put("added", new JSONArray(added)).put("removed", new JSONArray(removed)));
+		} catch (JSONException e) {
+			AccessLog.error("embedded.write", "Cannot journal a change of " + userId, e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		writePending();
+	}
+
+	public Set<String> getFavoriteItemIds(String userId) {
+		Set<String> result = new HashSet<>();
+		lock.readLock().lock();
+		try {
+			User user = users.get(userId);
+			if (user != null) {
+				BitSet favorites = user.favorites;
+				for (int i = favorites.nextSetBit(0); i >= 0; i = favorites.nextSetBit(i + 1)) {
+					result.add(itemIds.get(i));
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return result;
+	}
+
+	public Set<String> getActiveUserIds() {
+		Set<String> result = new HashSet<>();
+		lock.readLock().lock();
+		try {
+			for (Map.Entry<String, User> user : users.entrySet()) {
+				if (!user.getValue().favorites.isEmpty()) {
+					result.add(user.getKey());
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return result;
+	}
+
+	public Set<Item> getFavoriteItems(String userId) {
+		Set<Item> result = new HashSet<>();
+		lock.readLock().lock();
+		try {
+			User user = users.get(userId);
+			if (user != null) {
+				BitSet favorites = user.favorites;
+				for (int i = favorites.nextSetBit(0); i >= 0; i = favorites.nextSetBit(i + 1)) {
+					Item item = items.get(i);
+					if (item != null) {
+						result.add(item);
+					}
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return result;
+	}
+
+	public Set<String> getCategories(String itemId) {
+		Set<String> result = new HashSet<>();
+		lock.readLock().lock();
+		try {
+			Integer ordinal = itemOrdinals.get(itemId);
+			if (ordinal != null) {
+				for (int category : itemCategories.get(ordinal)) {
+					result.add(categories.get(category));
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return result;
+	}
+
+	/**
+	 * Insert the item unless it is already stored, like INSERT IGNORE.
+	 *
+	 * @param item
+	 */
+	public void saveItem(Item item) {
+		lock.writeLock().lock();
+		try {
+			if (applyItem(item)) {
+				append(toJSONObject(item));
+			}
+		} catch (JSONException e) {
+			AccessLog.error("embedded.write", "Cannot journal item " + item.getItemId(), e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		writePending();
+	}
+
+	public String getFullname(String userId) {
+		lock.readLock().lock();
+		try {
+			User user = users.get(userId);
+			return user == null ? "" : String.join(" ", user.firstName, user.lastName);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public String getPassword(String userId) {
+		lock.readLock().lock();
+		try {
+			User user = users.get(userId);
+			return user == null ? null : user.password;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void setPassword(String userId, String password) {
+		lock.writeLock().lock();
+		try {
+			User user = users.get(userId);
+			if (user == null || user.password == null) {
+				return;
+			}
+			user.password = password;
+			append(new JSONObject().put("op", "password").put("user_id", userId).put("password", password));
+		} catch (JSONException e) {
+			AccessLog.error("embedded.write", "Cannot journal a change of " + userId, e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		writePending();
+	}
+
+	/**
+	 * Add a user unless one with a password exists, favorites alone do not
+	 * make a registered user.
+	 *
+	 * @return whether the user was added
+	 * @throws IllegalStateException
+	 *             if the user cannot be journaled, it is not added then
+	 */
+	public boolean addUserIfAbsent(String userId, String password, String firstName, String lastName) {
+		lock.writeLock().lock();
+		try {
+			User user = users.get(userId);
+			if (user != null && user.password != null) {
+				return false;
+			}
+			JSONObject record = new JSONObject().put("op", "user").put("user_id", userId).put("password", password)
+					.put("first_name", firstName).put("last_name", lastName);
+			applyUser(userId, password, firstName, lastName);
+			append(record);
+		} catch (JSONException e) {
+			throw new IllegalStateException("Cannot register " + userId, e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		writePending();
+		return true;
+	}
+
+	/**
+	 * Helper methods, callers hold the write lock.
+	 */
+	private int itemOrdinal(String itemId) {
+		Integer ordinal = itemOrdinals.get(itemId);
+		if (ordinal == null) {
+			ordinal = itemIds.size();
+			itemOrdinals.put(itemId, ordinal);
+			itemIds.add(itemId);
+			items.add(null);
+			itemCategories.add(new int[0]);
+		}
+		return ordinal;
+	}
+
+	private int categoryOrdinal(String category) {
+		Integer ordinal = categoryOrdinals.get(category);
+		if (ordinal == null) {
+			ordinal = categories.size();
+			categoryOrdinals.put(category, ordinal);
+			categories.add(category);
+		}
+		return ordinal;
+	}
+
+	private void applyUser(String userId, String password, String firstName, String lastName) {
+		User user = users.get(userId);
+		if (user == null) {
+			user = new User();
+			users.put(userId, user);
+		}
+		user.password = password;
+		user.firstName = firstName;
+		user.lastName = lastName;
+	}
+
+	private void applyFavorites(String userId, List<String> ids, boolean favorite) {
+		User user = users.get(userId);
+		if (user == null) {
+			if (!favorite) {
+				return;
+			}
+			user = new User();
+			users.put(userId, user);
+		}
+		for (String itemId : ids) {
+			user.favorites.set(itemOrdinal(itemId), favorite);
+		}
+	}
+
+	private boolean applyItem(Item item) {
+		int ordinal = itemOrdinal(item.getItemId());
+		if (items.get(ordinal) != null) {
+			return false;
+		}
+		items.set(ordinal, item);
+
+		Set<String> names = item.getCategories() == null ? new HashSet<String>() : item.getCategories();
+		int[] ordinals = new int[names.size()];
+		int i = 0;
+		for (String name : names) {
+			ordinals[i++] = categoryOrdinal(name);
+		}
+		itemCategories.set(ordinal, ordinals);
+		return true;
+	}
+
+	/**
+	 * Queue a record, callers hold the write lock.
+	 */
+	private void append(JSONObject record) {
+		pending.add(record.toString());
+	}
+
+	/**
+	 * Write out the queued records and compact the journal once it has grown
+	 * enough. Callers must not hold the data lock.
+	 */
+	private void writePending() {
+		synchronized (journalLock) {
+			if (journal == null && !journalFailed) {
+				pending.clear();
+				return;
+			}
+			if (!journalFailed) {
+				try {
+					int written = 0;
+					String record;
+					// Taken off the queue only once written.
+					while ((record = pending.peek()) != null) {
+						journal.write(record);
+						journal.newLine();
+						pending.poll();
+						++written;
+					}
+					if (written > 0) {
+						journal.flush();
+						journalRecords += written;
+					}
+				} catch (IOException e) {
+					Metrics.increment("embedded_journal_errors_total", "op", "append");
+					AccessLog.error("embedded.write", "Cannot append to " + journalFile + ", rewriting it", e);
+					journalFailed = true;
+				}
+			}
+			if (journalFailed || journalRecords >= compactAt) {
+				compact();
+			}
+		}
+	}
+
+	/**
+	 * Rewrite the journal with one record per user, favorites list and item,
+	 * then swap it in. Writers wait for the data lock meanwhile, readers do not.
+	 * Callers hold the journal lock.
+	 */
+	private void compact() {
+		File compacted = new File(journalFile.getPath() + ".tmp");
+		lock.readLock().lock();
+		try {
+			long records = 0;
+			try (FileOutputStream file = new FileOutputStream(compacted);
+					BufferedWriter out = new BufferedWriter(new OutputStreamWriter(file, StandardCharsets.UTF_8))) {
+				for (Item item : items) {
+					if (item != null) {
+						out.write(toJSONObject(item).toString());
+						out.newLine();
+						++records;
+					}
+				}
+				for (Map.Entry<String, User> entry : users.entrySet()) {
+					User user = entry.getValue();
+					if (user.password != null) {
+						out.write(new JSONObject().put("op", "user").put("user_id", entry.getKey())
+								.put("password", user.password).put("first_name", user.firstName)
+								.put("last_name", user.lastName).toString());
+						out.newLine();
+						++records;
+					}
+					if (!user.favorites.isEmpty()) {
+						List<String> ids = new ArrayList<>();
+						for (int i = user.favorites.nextSetBit(0); i >= 0; i = user.favorites.nextSetBit(i + 1)) {
+							ids.add(itemIds.get(i));
+						}
+						out.write(new JSONObject().put("op", "fav").put("user_id", entry.getKey())
+								.put("item_ids", new JSONArray(ids)).toString());
+						out.newLine();
+						++records;
+					}
+				}
+				out.flush();
+				file.getFD().sync();
+			}
+
+			if (journal != null) {
+				try {
+					journal.close();
+				} catch (IOException e) {
+					// A journal that failed may not flush, it is replaced anyway.
+				}
+				journal = null;
+			}
+			Files.move(compacted.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			// Every queued record is already applied, so the new journal has it.
+			pending.clear();
+			journalFailed = false;
+			Metrics.increment("embedded_journal_compactions_total", null, null);
+			journalRecords = records;
+			compactAt = Math.max(compactRecords, 2 * records);
+		} catch (IOException | JSONException e) {
+			Metrics.increment("embedded_journal_errors_total", "op", "compact");
+			AccessLog.error("embedded.compact", "Cannot compact " + journalFile, e);
+			// Keep appending to the old journal, and try again after as many records.
+			compactAt = journalRecords + Math.max(compactRecords, journalRecords);
+			compacted.delete();
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (journal == null) {
+			try {
+				journal = openJournal();
+			} catch (IOException e) {
+				Metrics.increment("embedded_journal_errors_total", "op", "open");
+				AccessLog.error("embedded.compact", "Cannot reopen journal " + journalFile, e);
+			}
+		}
+	}
+
+	BufferedWriter openJournal() throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return records a compacted journal of the current state would have
+	 */
+	private long liveRecords() {
+		long records = 0;
+		for (Item item : items) {
+			if (item != null) {
+				++records;
+			}
+		}
+		for (User user : users.values()) {
+			if (user.password != null) {
+				++records;
+			}
+			if (!user.favorites.isEmpty()) {
+				++records;
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * @return whether a record could not be read, e.g. a torn last line
+	 */
+	private boolean replay() throws IOException {
+		if (!journalFile.exists()) {
+			return false;
+		}
+		boolean torn = false;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(journalFile), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				try {
+					replay(new JSONObject(line));
+					++journalRecords;
+				} catch (JSONException e) {
+					// A torn last line after a crash, skip it.
+					Metrics.increment("embedded_journal_skipped_total", "reason", "unreadable");
+					AccessLog.error("embedded.replay", "Skipping journal record of " + journalFile, e);
+					torn = true;
+				}
+			}
+		}
+		return torn;
+	}
+
+	private void replay(JSONObject record) throws JSONException {
+		switch (record.getString("op")) {
+		case "user":
+			applyUser(record.getString("user_id"), record.getString("password"),
+					record.optString("first_name"), record.optString("last_name"));
+			break;
+		case "password":
+			User user = users.get(record.getString("user_id"));
+			if (user != null) {
+				user.password = record.getString("password");
+			}
+			break;
+		case "fav":
+		case "unfav":
+			applyFavorites(record.getString("user_id"), toList(record.getJSONArray("item_ids")),
+					record.getString("op").equals("fav"));
+			break;
+		case "favs":
+			applyFavorites(record.getString("user_id"), toList(record.getJSONArray("added")), true);
+			applyFavorites(record.getString("user_id"), toList(record.getJSONArray("removed")), false);
+			break;
+		case "item":
+			applyItem(toItem(record));
+			break;
+		default:
+			Metrics.increment("embedded_journal_skipped_total", "reason", "unknown_op");
+			AccessLog.error("embedded.replay", "Unknown journal op: " + record.getString("op"), null);
+		}
+	}
+
+	private static List<String> toList(JSONArray array) throws JSONException {
+		List<String> list = new ArrayList<>();
+		for (int i = 0; i < array.length(); ++i) {
+			list.add(array.getString(i));
+		}
+		return list;
+	}
+
+	private static JSONObject toJSONObject(Item item) throws JSONException {
+		JSONObject obj = item.toJSONObject();
+		obj.put("op", "item");
+		obj.put("latitude", item.getLatitude());
+		obj.put("longitude", item.getLongitude());
+		return obj;
+	}
+
+	private static Item toItem(JSONObject obj) throws JSONException {
+		ItemBuilder builder = new ItemBuilder();
+		builder.setItemId(obj.getString("item_id"));
+		builder.setName(obj.optString("name"));
+		builder.setRating(obj.optDouble("rating", 0));
+		builder.setAddress(obj.optString("address"));
+		builder.setImageUrl(obj.optString("image_url"));
+		builder.setUrl(obj.optString("url"));
+		builder.setDistance(obj.optDouble("distance", 0));
+		builder.setLatitude(obj.optDouble("latitude", 0));
+		builder.setLongitude(obj.optDouble("longitude", 0));
+
+		Set<String> categories = new HashSet<>();
+		JSONArray array = obj.optJSONArray("categories");
+		if (array != null) {
+			for (int i = 0; i < array.length(); ++i) {
+				categories.add(array.getString(i));
+			}
+		}
+		builder.setCategories(categories);
+		return builder.build();
+	}
+
+}
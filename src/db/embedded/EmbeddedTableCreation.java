@@ -0,0 +1,26 @@
+package db.embedded;
+
+import java.io.File;
+
+public class EmbeddedTableCreation {
+	// Run this as Java application to reset the embedded store.
+	public static void main(String[] args) {
+		try {
+			// Step 1 Drop the old journal in case it exists.
+			File journal = new File(EmbeddedDBUtil.JOURNAL_PATH);
+			if (journal.exists() && !journal.delete()) {
+				System.out.println("Cannot delete " + journal);
+				return;
+			}
+
+			// Step 2 Insert data
+			EmbeddedStore store = EmbeddedStore.getInstance();
+			store.addUser("1111", "3229c1097c00d497a0fd282d586be050", "John", "Smith");
+			store.close();
+
+			System.out.println("Import is done successfully.");
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
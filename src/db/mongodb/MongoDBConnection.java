@@ -0,0 +1,323 @@
+package db.mongodb;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.in;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bson.Document;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+import db.DBConnection;
+import db.InstrumentedConnection;
+import entity.Item;
+import entity.Item.ItemBuilder;
+import external.SearchResult;
+import external.TicketMasterAPI;
+
+public class MongoDBConnection implements DBConnection {
+	// MongoClient is a thread-safe connection pool, so all connections share one.
+	private static MongoClient sharedClient;
+
+	private MongoDatabase db;
+
+	public MongoDBConnection() {
+		try {
+			db = getSharedClient().getDatabase(MongoDBUtil.DB_NAME);
+		} catch (Exception e) {
+			InstrumentedConnection.failed("connect", e);
+		}
+	}
+
+	/**
+	 * Use an existing database, e.g. an in-process stand-in server in tests or
+	 * benchmarks. The caller owns the underlying client.
+	 *
+	 * @param db
+	 */
+	public MongoDBConnection(MongoDatabase db) {
+		this.db = db;
+	}
+
+	private static synchronized MongoClient getSharedClient() {
+		if (sharedClient == null) {
+			sharedClient = new MongoClient(new MongoClientURI(MongoDBUtil.URI));
+		}
+		return sharedClient;
+	}
+
+	@Override
+	public void close() {
+		// The shared client stays open for the next request.
+	}
+
+	private MongoCollection<Document> users() {
+		return db.getCollection(MongoDBUtil.USERS);
+	}
+
+	private MongoCollection<Document> items() {
+		return db.getCollection(MongoDBUtil.ITEMS);
+	}
+
+	@Override
+	public void setFavoriteItems(String userId, List<String> itemIds) {
+		if (db == null || itemIds.isEmpty()) {
+			return;
+		}
+		// One $addToSet $each update instead of one statement per item.
+		users().updateOne(eq("user_id", userId), Updates.addEachToSet("item_ids", itemIds),
+				new UpdateOptions().upsert(true));
+	}
+
+	@Override
+	public void unsetFavoriteItems(String userId, List<String> itemIds) {
+		if (db == null || itemIds.isEmpty()) {
+			return;
+		}
+		users().updateOne(eq("user_id", userId), Updates.pullAll("item_ids", itemIds));
+	}
+
+	@Override
+	public void applyFavoriteChanges(String userId, List<String> added, List<String> removed) {
+		if (db == null) {
+			throw new IllegalStateException("No database connection");
+		}
+		if (added.isEmpty() && removed.isEmpty()) {
+			return;
+		}
+		// $addToSet and $pull cannot touch the same field in one update, so this is
+		// one round trip of two updates to the user document, not a transaction.
+		List<WriteModel<Document>> writes = new ArrayList<>();
+		if (!added.isEmpty()) {
+			writes.add(new UpdateOneModel<Document>(eq("user_id", userId), Updates.addEachToSet("item_ids", added),
+					new UpdateOptions().upsert(true)));
+		}
+		if (!removed.isEmpty()) {
+			writes.add(new UpdateOneModel<Document>(eq("user_id", userId), Updates.pullAll("item_ids", removed)));
+		}
+		users().bulkWrite(writes, new BulkWriteOptions().ordered(true));
+	}
+
+	@Override
+	public Set<String> getFavoriteItemIds(String userId) {
+		if (db == null) {
+			return new HashSet<>();
+		}
+
+		Set<String> favoriteItemIds = new HashSet<>();
+		Document user = users().find(eq("user_id", userId))
+				.projection(Projections.include("item_ids")).first();
+		if (user != null && user.get("item_ids") != null) {
+			favoriteItemIds.addAll(user.getList("item_ids", String.class));
+		}
+		return favoriteItemIds;
+	}
+
+	@Override
+	public Set<String> getActiveUserIds() {
+		if (db == null) {
+			return new HashSet<>();
+		}
+
+		Set<String> userIds = new HashSet<>();
+		// item_ids.0 only exists for a non-empty favorites array.
+		for (Document user : users().find(exists("item_ids.0")).projection(Projections.include("user_id"))) {
+			userIds.add(user.getString("user_id"));
+		}
+		return userIds;
+	}
+
+	@Override
+	public Set<Item> getFavoriteItems(String userId) {
+		if (db == null) {
+			return new HashSet<>();
+		}
+
+		Set<Item> favoriteItems = new HashSet<>();
+		Set<String> itemIds = getFavoriteItemIds(userId);
+		if (itemIds.isEmpty()) {
+			return favoriteItems;
+		}
+
+		// Categories are embedded, so a single $in query returns complete items.
+		for (Document doc : items().find(in("item_id", itemIds))) {
+			favoriteItems.add(toItem(doc));
+		}
+		return favoriteItems;
+	}
+
+	@Override
+	public Set<String> getCategories(String itemId) {
+		if (db == null) {
+			return null;
+		}
+		Set<String> categories = new HashSet<>();
+		Document doc = items().find(eq("item_id", itemId))
+				.projection(Projections.include("categories")).first();
+		if (doc != null && doc.get("categories") != null) {
+			categories.addAll(doc.getList("categories", String.class));
+		}
+		return categories;
+	}
+
+	@Override
+	public List<Item> searchItems(double lat, double lon, String term) {
+		return searchItems(lat, lon, term, TicketMasterAPI.DEFAULT_LIMIT).getItems();
+	}
+
+	@Override
+	public SearchResult searchItems(double lat, double lon, String term, int limit) {
+		TicketMasterAPI tmAPI = new TicketMasterAPI();
+		SearchResult result = tmAPI.search(lat, lon, term, limit);
+		saveItems(result.getItems());
+		return result;
+	}
+
+	@Override
+	public void saveItem(Item item) {
+		saveItems(Arrays.asList(item));
+	}
+
+	/**
+	 * Upsert all items with a single unordered bulk write.
+	 *
+	 * @param items
+	 */
+	private void saveItems(List<Item> items) {
+		if (db == null || items.isEmpty()) {
+			return;
+		}
+		List<WriteModel<Document>> writes = new ArrayList<>();
+		ReplaceOptions upsert = new ReplaceOptions().upsert(true);
+		for (Item item : items) {
+			writes.add(new ReplaceOneModel<>(eq("item_id", item.getItemId()), toDocument(item), upsert));
+		}
+		try {
+			items().bulkWrite(writes, new BulkWriteOptions().ordered(false));
+		} catch (Exception e) {
+			InstrumentedConnection.failed("saveItem", e);
+		}
+	}
+
+	@Override
+	public String getFullname(String userId) {
+		if (db == null) {
+			return null;
+		}
+		Document user = users().find(eq("user_id", userId))
+				.projection(Projections.include("first_name", "last_name")).first();
+		if (user == null) {
+			return "";
+		}
+		return String.join(" ", user.getString("first_name"), user.getString("last_name"));
+	}
+
+	@Override
+	public String getPassword(String userId) {
+		if (db == null) {
+			throw new IllegalStateException("No database connection");
+		}
+		Document user = users().find(eq("user_id", userId))
+				.projection(Projections.include("password")).first();
+		return user == null ? null : user.getString("password");
+	}
+
+	@Override
+	public void setPassword(String userId, String password) {
+		if (db == null) {
+			return;
+		}
+		users().updateOne(eq("user_id", userId), Updates.set("password", password));
+	}
+
+	@Override
+	public boolean registerUser(String userId, String password, String firstname, String lastname) {
+		if (db == null) {
+			throw new IllegalStateException("No database connection");
+		}
+		// Favorites may have created the document already, then it has no password
+		// yet. If it has one the upsert inserts a second document and the unique
+		// index on user_id rejects it.
+		try {
+			users().updateOne(and(eq("user_id", userId), exists("password", false)),
+					Updates.combine(Updates.set("password", password), Updates.set("first_name", firstname),
+							Updates.set("last_name", lastname)),
+					new UpdateOptions().upsert(true));
+			return true;
+		} catch (MongoWriteException e) {
+			if (e.getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
+				return false;
+			}
+			throw e;
+		}
+	}
+
+	// {
+	//   "item_id": "abc", "name": "...", ...,
+	//   "categories": ["Music", "Sports"],
+	//   "location": {"type": "Point", "coordinates": [lon, lat]}
+	// }
+	private static Document toDocument(Item item) {
+		Document doc = new Document()
+				.append("item_id", item.getItemId())
+				.append("name", item.getName())
+				.append("rating", item.getRating())
+				.append("address", item.getAddress())
+				.append("image_url", item.getImageUrl())
+				.append("url", item.getUrl())
+				.append("distance", item.getDistance())
+				.append("categories", new ArrayList<>(item.getCategories()));
+		// Leave location out when the venue had none, the 2dsphere index skips it.
+		if (item.getLatitude() != 0 || item.getLongitude() != 0) {
+			doc.append("location", new Document("type", "Point")
+					.append("coordinates", Arrays.asList(item.getLongitude(), item.getLatitude())));
+		}
+		return doc;
+	}
+
+	private static Item toItem(Document doc) {
+		ItemBuilder builder = new ItemBuilder();
+		builder.setItemId(doc.getString("item_id"));
+		builder.setName(doc.getString("name"));
+		builder.setAddress(doc.getString("address"));
+		builder.setImageUrl(doc.getString("image_url"));
+		builder.setUrl(doc.getString("url"));
+		builder.setRating(toDouble(doc.get("rating")));
+		builder.setDistance(toDouble(doc.get("distance")));
+		builder.setCategories(doc.get("categories") == null ? new HashSet<String>()
+				: new HashSet<>(doc.getList("categories", String.class)));
+
+		Object location = doc.get("location");
+		if (location instanceof Document) {
+			List<Double> coordinates = ((Document) location).getList("coordinates", Double.class);
+			builder.setLongitude(coordinates.get(0));
+			builder.setLatitude(coordinates.get(1));
+		}
+		return builder.build();
+	}
+
+	private static double toDouble(Object value) {
+		return value instanceof Number ? ((Number) value).doubleValue() : 0;
+	}
+
+}
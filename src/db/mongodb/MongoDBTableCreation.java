@@ -0,0 +1,54 @@
+package db.mongodb;
+
+import org.bson.Document;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+
+public class MongoDBTableCreation {
+	// Run this as Java application to reset db schema.
+	public static void main(String[] args) {
+		MongoClient mongoClient = new MongoClient(new MongoClientURI(MongoDBUtil.URI));
+		try {
+			System.out.println("Connecting to " + MongoDBUtil.URI);
+			createCollections(mongoClient.getDatabase(MongoDBUtil.DB_NAME));
+			System.out.println("Import is done successfully.");
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			mongoClient.close();
+		}
+	}
+
+	/**
+	 * Drop and re-create both collections with their indexes. Also used to set up
+	 * an in-process stand-in database before exercising MongoDBConnection.
+	 * 
+	 * @param db
+	 */
+	public static void createCollections(MongoDatabase db) {
+		// Step 1 Drop collections in case they exist.
+		db.getCollection(MongoDBUtil.USERS).drop();
+		db.getCollection(MongoDBUtil.ITEMS).drop();
+
+		// Step 2 Create indexes. Favorites and categories are embedded, so
+		// item_ids and categories are multikey indexes instead of join tables.
+		IndexOptions unique = new IndexOptions().unique(true);
+		db.getCollection(MongoDBUtil.USERS).createIndex(Indexes.ascending("user_id"), unique);
+		db.getCollection(MongoDBUtil.USERS).createIndex(Indexes.ascending("item_ids"));
+
+		db.getCollection(MongoDBUtil.ITEMS).createIndex(Indexes.ascending("item_id"), unique);
+		db.getCollection(MongoDBUtil.ITEMS).createIndex(Indexes.ascending("categories"));
+		db.getCollection(MongoDBUtil.ITEMS).createIndex(Indexes.geo2dsphere("location"));
+
+		// Step 3 Insert data
+		db.getCollection(MongoDBUtil.USERS).insertOne(new Document()
+				.append("user_id", "1111")
+				.append("password", "3229c1097c00d497a0fd282d586be050")
+				.append("first_name", "John")
+				.append("last_name", "Smith"));
+	}
+}
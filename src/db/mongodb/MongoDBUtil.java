@@ -0,0 +1,13 @@
+package db.mongodb;
+
+public class MongoDBUtil {
+	private static final String HOSTNAME = "localhost";
+	private static final String PORT_NUM = "27017"; // change it to your mongodb port number
+	public static final String DB_NAME = "laiproject";
+	public static final String URI = "mongodb://" + HOSTNAME + ":" + PORT_NUM;
+
+	// Collection names. users = (users + history), items = (items + categories)
+	public static final String USERS = "users";
+	public static final String ITEMS = "items";
+
+}
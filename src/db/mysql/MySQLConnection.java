@@ -10,8 +10,10 @@ import java.util.List;
 import java.util.Set;
 
 import db.DBConnection;
+import db.InstrumentedConnection;
 import entity.Item;
 import entity.Item.ItemBuilder;
+import external.SearchResult;
 import external.TicketMasterAPI;
 
 public class MySQLConnection implements DBConnection {
@@ -22,7 +24,7 @@ public class MySQLConnection implements DBConnection {
 			Class.forName("com.mysql.jdbc.Driver").newInstance();
 			conn = DriverManager.getConnection(MySQLDBUtil.URL);
 		} catch (Exception e) {
-			e.printStackTrace();
+			InstrumentedConnection.failed("connect", e);
 		}
 	}
 
@@ -52,7 +54,7 @@ public class MySQLConnection implements DBConnection {
 				stmt.execute();
 			}
 		} catch (SQLException e) {
-			e.printStackTrace();
+			InstrumentedConnection.failed("setFavoriteItems", e);
 		}
 
 
@@ -73,12 +75,49 @@ public class MySQLConnection implements DBConnection {
 				stmt.execute();
 			}
 		} catch (SQLException e) {
-			e.printStackTrace();
+			InstrumentedConnection.failed("unsetFavoriteItems", e);
 		}
 
 
 	}
 
+	@Override
+	public void applyFavoriteChanges(String userId, List<String> added, List<String> removed) {
+		if (conn == null) {
+			throw new IllegalStateException("No database connection");
+		}
+		
+		try {
+			conn.setAutoCommit(false);
+			try {
+				PreparedStatement insert = conn.prepareStatement("INSERT IGNORE INTO history (user_id, item_id) VALUES (?, ?)");
+				for (String itemId : added) {
+					insert.setString(1, userId);
+					insert.setString(2, itemId);
+					insert.addBatch();
+				}
+				insert.executeBatch();
+				
+				PreparedStatement delete = conn.prepareStatement("DELETE FROM history WHERE user_id = ? AND item_id = ?");
+				for (String itemId : removed) {
+					delete.setString(1, userId);
+					delete.setString(2, itemId);
+					delete.addBatch();
+				}
+				delete.executeBatch();
+				conn.commit();
+			} catch (SQLException e) {
+				conn.rollback();
+				throw e;
+			} finally {
+				conn.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			// Thrown, so FavoriteWriteBuffer keeps the changes and retries them.
+			throw new IllegalStateException("Cannot apply favorite changes of " + userId, e);
+		}
+	}
+
 	@Override
 	public Set<String> getFavoriteItemIds(String userId) {
 		if (conn == null) {
@@ -98,12 +137,34 @@ public class MySQLConnection implements DBConnection {
 			}
 			
 		} catch (SQLException e) {
-			e.printStackTrace();
+			InstrumentedConnection.failed("getFavoriteItemIds", e);
 		}
 		
 		return favoriteItemIds;
 	}
 
+	@Override
+	public Set<String> getActiveUserIds() {
+		if (conn == null) {
+			return new HashSet<>();
+		}
+		
+		Set<String> userIds = new HashSet<>();
+		
+		try {
+			String sql = "SELECT DISTINCT user_id FROM history";
+			PreparedStatement stmt = conn.prepareStatement(sql);
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()) {
+				userIds.add(rs.getString("user_id"));
+			}
+		} catch (SQLException e) {
+			InstrumentedConnection.failed("getActiveUserIds", e);
+		}
+		
+		return userIds;
+	}
+
 	@Override
 	public Set<Item> getFavoriteItems(String userId) {
 		if (conn == null) {
@@ -137,7 +198,7 @@ public class MySQLConnection implements DBConnection {
 				}
 			}
 		} catch (SQLException e) {
-			e.printStackTrace();
+			InstrumentedConnection.failed("getFavoriteItems", e);
 		}
 		
 		return favoriteItems;
@@ -158,7 +219,7 @@ public class MySQLConnection implements DBConnection {
 				categories.add(rs.getString("category"));
 			}
 		} catch (Exception e) {
-			System.out.println(e.getMessage());
+			InstrumentedConnection.failed("getCategories", e);
 		}
 		return categories;
 
@@ -166,12 +227,17 @@ public class MySQLConnection implements DBConnection {
 
 	@Override
 	public List<Item> searchItems(double lat, double lon, String term) {
+		return searchItems(lat, lon, term, TicketMasterAPI.DEFAULT_LIMIT).getItems();
+	}
+
+	@Override
+	public SearchResult searchItems(double lat, double lon, String term, int limit) {
 		TicketMasterAPI tmAPI = new TicketMasterAPI();
-		List<Item> items = tmAPI.search(lat, lon, term);
-		for (Item item : items) {
+		SearchResult result = tmAPI.search(lat, lon, term, limit);
+		for (Item item : result.getItems()) {
 			saveItem(item);
 		}
-		return items;
+		return result;
 	}
 
 	@Override
@@ -211,7 +277,7 @@ public class MySQLConnection implements DBConnection {
 				stmt.execute();
 			}
 		} catch (SQLException e) {
-			e.printStackTrace();
+			InstrumentedConnection.failed("saveItem", e);
 		}
 
 	}
@@ -231,30 +297,65 @@ public class MySQLConnection implements DBConnection {
 				name = String.join(" ", rs.getString("first_name"), rs.getString("last_name"));
 			}
 		} catch (Exception e) {
-			e.printStackTrace();
+			InstrumentedConnection.failed("getFullname", e);
 		}
 		return name;
 
 	}
 
 	@Override
-	public boolean verifyLogin(String userId, String password) {
+	public String getPassword(String userId) {
 		if (conn == null) {
-			return false;
+			throw new IllegalStateException("No database connection");
 		}
 		try {
-			String sql = "SELECT user_id from users WHERE user_id = ? and password = ?";
+			String sql = "SELECT password from users WHERE user_id = ?";
 			PreparedStatement statement = conn.prepareStatement(sql);
 			statement.setString(1, userId);
-			statement.setString(2, password);
 			ResultSet rs = statement.executeQuery();
 			if (rs.next()) {
-				return true;
+				return rs.getString("password");
 			}
+		} catch (SQLException e) {
+			// Thrown, so the login is answered 500 instead of 401.
+			throw new IllegalStateException("Cannot read password of " + userId, e);
+		}
+		return null;
+	}
+
+	@Override
+	public void setPassword(String userId, String password) {
+		if (conn == null) {
+			return;
+		}
+		try {
+			String sql = "UPDATE users SET password = ? WHERE user_id = ?";
+			PreparedStatement statement = conn.prepareStatement(sql);
+			statement.setString(1, password);
+			statement.setString(2, userId);
+			statement.executeUpdate();
 		} catch (Exception e) {
-			e.printStackTrace();
+			InstrumentedConnection.failed("setPassword", e);
+		}
+	}
+
+	@Override
+	public boolean registerUser(String userId, String password, String firstname, String lastname) {
+		if (conn == null) {
+			throw new IllegalStateException("No database connection");
+		}
+		try {
+			String sql = "INSERT IGNORE INTO users VALUES (?, ?, ?, ?)";
+			PreparedStatement statement = conn.prepareStatement(sql);
+			statement.setString(1, userId);
+			statement.setString(2, password);
+			statement.setString(3, firstname);
+			statement.setString(4, lastname);
+			return statement.executeUpdate() == 1;
+		} catch (SQLException e) {
+			// Thrown, so the registration is answered 500 instead of 409.
+			throw new IllegalStateException("Cannot register " + userId, e);
 		}
-		return false;
 	}
 
 }
@@ -39,6 +39,8 @@ public class Item {
 	private String imageUrl;
 	private String url;
 	private double distance;
+	private double latitude;
+	private double longitude;
 	
 	public String getItemId() {
 		return itemId;
@@ -64,6 +66,12 @@ public class Item {
 	public double getDistance() {
 		return distance;
 	}
+	public double getLatitude() {
+		return latitude;
+	}
+	public double getLongitude() {
+		return longitude;
+	}
 
 	public JSONObject toJSONObject() {
 		JSONObject obj = new JSONObject();
@@ -92,6 +100,8 @@ public class Item {
 		this.imageUrl = builder.imageUrl;
 		this.url = builder.url;
 		this.distance = builder.distance;
+		this.latitude = builder.latitude;
+		this.longitude = builder.longitude;
 	}
 	
 	//Add static class ItemBuilder in Item class. 
@@ -105,6 +115,8 @@ public class Item {
 		private String imageUrl;
 		private String url;
 		private double distance;
+		private double latitude;
+		private double longitude;
 		
 		public void setItemId(String itemId) {
 			this.itemId = itemId;
@@ -130,6 +142,12 @@ public class Item {
 		public void setDistance(double distance) {
 			this.distance = distance;
 		}
+		public void setLatitude(double latitude) {
+			this.latitude = latitude;
+		}
+		public void setLongitude(double longitude) {
+			this.longitude = longitude;
+		}
 		
 		// Define a build function to create a ItemBuilder object from Item object.
 		public Item build() {
@@ -0,0 +1,135 @@
+package external;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import analytics.HeavyHitters;
+import logging.AccessLog;
+import metrics.Metrics;
+
+/**
+ * Refreshes the most requested EventCache keys before they go stale, so the
+ * request path rarely has to wait for Ticketmaster.
+ *
+ * Every lookup is counted in a bounded heavy-hitters sketch. Once per cycle
+ * the counts are folded into exponentially decayed scores, and the highest
+ * scoring keys that are close to expiry are refreshed, at most budget
+ * upstream calls per cycle. Refreshes draw on their own prefetch.qps share of
+ * the Ticketmaster quota and stop while requests are using most of it.
+ */
+public class CachePrefetcher {
+	private static final long CYCLE_MILLIS = 60 * 1000;
+	// Refresh entries that would stop being fresh within the next two cycles.
+	private static final long LEAD_MILLIS = 2 * CYCLE_MILLIS;
+	private static final int TRACKED_KEYS = 200;
+	private static final double DECAY = 0.5;
+
+	private static final int budget = Integer.getInteger("prefetch.budget", 20);
+	private static final TicketMasterAPI tmAPI = TicketMasterAPI.forPrefetch();
+
+	private static volatile HeavyHitters demand = new HeavyHitters(TRACKED_KEYS);
+	private static final Map<String, Double> scores = new HashMap<>();
+	private static ScheduledExecutorService scheduler;
+
+	private CachePrefetcher() {
+	}
+
+	/**
+	 * Count one request for a cache key.
+	 *
+	 * @param key
+	 */
+	static void recordLookup(String key) {
+		demand.add(key);
+	}
+
+	public static synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "cache-prefetcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					runCycle();
+				} catch (Exception e) {
+					AccessLog.error("cache.prefetch", "Prefetch cycle failed", e);
+				}
+			}
+		}, CYCLE_MILLIS, CYCLE_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	public static synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Fold the last cycle's demand into the scores and refresh the hottest keys
+	 * that are about to expire.
+	 */
+	static synchronized void runCycle() {
+		HeavyHitters last = demand;
+		demand = new HeavyHitters(TRACKED_KEYS);
+
+		for (Entry<String, Double> entry : scores.entrySet()) {
+			entry.setValue(entry.getValue() * DECAY);
+		}
+		for (Entry<String, Long> entry : last.top(TRACKED_KEYS)) {
+			Double score = scores.get(entry.getKey());
+			scores.put(entry.getKey(), (score == null ? 0 : score) + entry.getValue());
+		}
+
+		List<Entry<String, Double>> ranked = new ArrayList<>(scores.entrySet());
+		Collections.sort(ranked, new Comparator<Entry<String, Double>>() {
+			@Override
+			public int compare(Entry<String, Double> o1, Entry<String, Double> o2) {
+				return Double.compare(o2.getValue(), o1.getValue());
+			}
+		});
+		// Forget keys that fell out of the top.
+		for (int i = TRACKED_KEYS; i < ranked.size(); ++i) {
+			scores.remove(ranked.get(i).getKey());
+		}
+
+		int calls = 0;
+		long now = System.currentTimeMillis();
+		for (Entry<String, Double> entry : ranked.subList(0, Math.min(TRACKED_KEYS, ranked.size()))) {
+			EventCache.Entry cached = EventCache.get(entry.getKey());
+			if (cached == null || now - cached.getFetchedAt() < EventCache.FRESH_MILLIS - LEAD_MILLIS) {
+				continue;
+			}
+			if (calls >= budget) {
+				Metrics.increment("prefetch_skipped_total", "reason", "budget");
+				break;
+			}
+			calls++;
+			if (!tmAPI.refresh(entry.getKey(), cached)) {
+				// Out of prefetch quota, requests are short of tokens or upstream
+				// is failing; try again next cycle.
+				Metrics.increment("prefetch_skipped_total", "reason", "upstream");
+				break;
+			}
+			Metrics.increment("prefetch_refreshes_total", null, null);
+		}
+	}
+}
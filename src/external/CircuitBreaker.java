@@ -0,0 +1,86 @@
+package external;
+
+import metrics.Metrics;
+
+/**
+ * Stops calling a failing upstream for a while.
+ *
+ * CLOSED: calls go through, consecutive failures are counted.
+ * OPEN: after failureThreshold consecutive failures, calls are rejected for
+ * openMillis.
+ * HALF_OPEN: afterwards a single probe call is let through; its success closes
+ * the circuit, its failure opens it again.
+ */
+public class CircuitBreaker {
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final String name;
+	private final int failureThreshold;
+	private final long openMillis;
+
+	private State state = State.CLOSED;
+	private int failures;
+	private long openedAt;
+	private boolean probing;
+
+	public CircuitBreaker(String name, int failureThreshold, long openMillis) {
+		this.name = name;
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * @return whether the call may go ahead. Every allowed call must be followed
+	 *         by recordSuccess(), recordFailure() or release().
+	 */
+	public synchronized boolean allowRequest() {
+		if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+			transition(State.HALF_OPEN);
+		}
+		if (state == State.CLOSED) {
+			return true;
+		}
+		if (state == State.HALF_OPEN && !probing) {
+			probing = true;
+			return true;
+		}
+		Metrics.increment("circuit_breaker_rejections_total", "breaker", name);
+		return false;
+	}
+
+	public synchronized void recordSuccess() {
+		failures = 0;
+		probing = false;
+		if (state != State.CLOSED) {
+			transition(State.CLOSED);
+		}
+	}
+
+	public synchronized void recordFailure() {
+		failures++;
+		probing = false;
+		if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+			openedAt = System.currentTimeMillis();
+			transition(State.OPEN);
+		}
+	}
+
+	/**
+	 * An allowed call was not made after all. Lets another caller probe a
+	 * half-open circuit without counting as success or failure.
+	 */
+	public synchronized void release() {
+		probing = false;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	private void transition(State to) {
+		state = to;
+		Metrics.increment("circuit_breaker_transitions_total", "to", name + "." + to.name().toLowerCase());
+	}
+}
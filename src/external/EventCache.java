@@ -0,0 +1,219 @@
+package external;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import entity.Item;
+import metrics.Gauge;
+import metrics.Metrics;
+
+/**
+ * Last known Ticketmaster result per (geohash cell, keyword).
+ *
+ * Entries are fresh for FRESH_MILLIS and served without calling upstream.
+ * Older entries are kept up to STALE_MILLIS as a fallback for when the
+ * circuit is open or we are over quota.
+ *
+ * Every entry has a generation that changes whenever its results do, so
+ * anything computed from some entries can tell whether it is still current.
+ */
+public class EventCache {
+	// ~1.2km x 0.6km cells, nearby users share results.
+	public static final int KEY_PRECISION = 6;
+	public static final long FRESH_MILLIS = 10 * 60 * 1000;
+	public static final long STALE_MILLIS = 24 * 60 * 60 * 1000;
+	private static final int MAX_ENTRIES = 10000;
+
+	private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private static final AtomicLong generation = new AtomicLong();
+	private static volatile Loader loader;
+
+	static {
+		Metrics.gauge("event_cache_entries", new Gauge() {
+			@Override
+			public long value() {
+				return entries.size();
+			}
+		});
+	}
+
+	public static class Entry {
+		private final double lat;
+		private final double lon;
+		private final String keyword;
+		private final List<Item> items;
+		private final boolean complete;
+		private final long fetchedAt;
+		// Set when the entry is added, before other threads can see it.
+		private long generation;
+
+		public Entry(double lat, double lon, String keyword, List<Item> items, boolean complete, long fetchedAt) {
+			this.lat = lat;
+			this.lon = lon;
+			this.keyword = keyword;
+			this.items = Collections.unmodifiableList(items);
+			this.complete = complete;
+			this.fetchedAt = fetchedAt;
+		}
+
+		public double getLat() {
+			return lat;
+		}
+
+		public double getLon() {
+			return lon;
+		}
+
+		public String getKeyword() {
+			return keyword;
+		}
+
+		public List<Item> getItems() {
+			return items;
+		}
+
+		/**
+		 * @return whether items are all the results Ticketmaster has
+		 */
+		public boolean isComplete() {
+			return complete;
+		}
+
+		/**
+		 * @return whether this entry can answer a search for limit items
+		 */
+		public boolean covers(int limit) {
+			return complete || items.size() >= limit;
+		}
+
+		public long getFetchedAt() {
+			return fetchedAt;
+		}
+
+		public boolean isFresh() {
+			return System.currentTimeMillis() - fetchedAt < FRESH_MILLIS;
+		}
+
+		public boolean isExpired() {
+			return System.currentTimeMillis() - fetchedAt >= STALE_MILLIS;
+		}
+	}
+
+	/**
+	 * Source of entries from before a restart, asked on a miss.
+	 */
+	public interface Loader {
+		/**
+		 * @return the entry, or null if there is none
+		 */
+		Entry load(String key);
+	}
+
+	private EventCache() {
+	}
+
+	public static void setLoader(Loader loader) {
+		EventCache.loader = loader;
+	}
+
+	public static String key(double lat, double lon, String keyword) {
+		return GeoHash.encodeGeohash(lat, lon, KEY_PRECISION) + "|" + keyword;
+	}
+
+	/**
+	 * @param key
+	 * @return the entry, fresh or stale, or null if there is none
+	 */
+	public static Entry get(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null && loader != null) {
+			entry = loader.load(key);
+			if (entry != null) {
+				entry.generation = generation.incrementAndGet();
+				Entry current = entries.putIfAbsent(key, entry);
+				if (current != null) {
+					entry = current;
+				} else if (entries.size() > MAX_ENTRIES) {
+					evictOldest();
+				}
+			}
+		}
+		if (entry != null && entry.isExpired()) {
+			entries.remove(key, entry);
+			return null;
+		}
+		return entry;
+	}
+
+	public static void put(String key, Entry entry) {
+		// A refresh that returns the same events keeps the generation.
+		Entry previous = entries.get(key);
+		if (previous != null && sameItems(previous.items, entry.items)) {
+			entry.generation = previous.generation;
+		} else {
+			entry.generation = generation.incrementAndGet();
+		}
+		entries.put(key, entry);
+		if (entries.size() > MAX_ENTRIES) {
+			evictOldest();
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return a number that changes whenever the key's cached results do, 0
+	 *         while nothing is cached in memory
+	 */
+	public static long generation(String key) {
+		Entry entry = entries.get(key);
+		return entry == null ? 0 : entry.generation;
+	}
+
+	public static Map<String, Entry> entries() {
+		return Collections.unmodifiableMap(entries);
+	}
+
+	private static boolean sameItems(List<Item> a, List<Item> b) {
+		if (a.size() != b.size()) {
+			return false;
+		}
+		for (int i = 0; i < a.size(); ++i) {
+			if (!a.get(i).equals(b.get(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Drop expired entries, then the oldest tenth if still over capacity.
+	private static synchronized void evictOldest() {
+		if (entries.size() <= MAX_ENTRIES) {
+			return;
+		}
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			if (e.getValue().isExpired()) {
+				entries.remove(e.getKey(), e.getValue());
+			}
+		}
+		if (entries.size() > MAX_ENTRIES) {
+			long[] times = new long[entries.size()];
+			int i = 0;
+			for (Entry entry : entries.values()) {
+				if (i < times.length) {
+					times[i++] = entry.fetchedAt;
+				}
+			}
+			Arrays.sort(times, 0, i);
+			long cutoff = times[Math.min(i - 1, MAX_ENTRIES / 10)];
+			for (Map.Entry<String, Entry> e : entries.entrySet()) {
+				if (e.getValue().fetchedAt <= cutoff) {
+					entries.remove(e.getKey(), e.getValue());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package external;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import entity.Item;
+import logging.AccessLog;
+
+/**
+ * Iterates over Ticketmaster search results page by page. A page is only
+ * requested once the previous one has been consumed, and iteration stops at
+ * the caller's limit, so callers that stop early never pay for later pages.
+ * With prefetch on, the next page is fetched in the background while the
+ * current one is consumed.
+ */
+public class EventPager implements Iterator<Item> {
+	// Ticketmaster rejects page * size >= 1000.
+	private static final int DEEP_PAGING_LIMIT = 1000;
+	public static final int PAGE_SIZE = 50;
+
+	private static final ExecutorService prefetcher = Executors.newFixedThreadPool(4, new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "ticketmaster-page-prefetch");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * One page of results.
+	 */
+	public static class Page {
+		private final List<Item> items;
+		private final int totalPages;
+
+		public Page(List<Item> items, int totalPages) {
+			this.items = items;
+			this.totalPages = totalPages;
+		}
+	}
+
+	private final TicketMasterAPI api;
+	private final double lat;
+	private final double lon;
+	private final String keyword;
+	private final int pageSize;
+	private final int limit;
+	private final boolean prefetch;
+
+	private List<Item> current = new ArrayList<>();
+	private int index;
+	private int nextPage;
+	private int totalPages = 1; // unknown until the first page arrives
+	private int returned;
+	private boolean failed;
+	private Future<Page> pending;
+
+	EventPager(TicketMasterAPI api, double lat, double lon, String keyword, int limit, boolean prefetch) {
+		this.api = api;
+		this.lat = lat;
+		this.lon = lon;
+		this.keyword = keyword;
+		this.pageSize = Math.max(1, Math.min(limit, PAGE_SIZE));
+		this.limit = limit;
+		this.prefetch = prefetch;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (returned >= limit) {
+			cancelPending();
+			return false;
+		}
+		while (index >= current.size()) {
+			if (!loadNextPage()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public Item next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		returned++;
+		return current.get(index++);
+	}
+
+	/**
+	 * @return whether every result Ticketmaster has was fetched
+	 */
+	public boolean isComplete() {
+		return !failed && !hasMorePages();
+	}
+
+	/**
+	 * @return whether a page request was rejected or failed
+	 */
+	public boolean isFailed() {
+		return failed;
+	}
+
+	private boolean hasMorePages() {
+		return nextPage < totalPages && (nextPage + 1) * pageSize <= DEEP_PAGING_LIMIT;
+	}
+
+	private boolean loadNextPage() {
+		if (failed || !hasMorePages()) {
+			return false;
+		}
+		Page page = null;
+		if (pending != null) {
+			try {
+				page = pending.get();
+			} catch (Exception e) {
+				AccessLog.error("ticketmaster.search", "Page prefetch failed", e);
+			}
+			pending = null;
+		} else {
+			page = api.fetchPage(lat, lon, keyword, nextPage, pageSize);
+		}
+		if (page == null) {
+			failed = true;
+			return false;
+		}
+
+		totalPages = page.totalPages;
+		current = page.items;
+		index = 0;
+		nextPage++;
+
+		if (prefetch && hasMorePages() && returned + current.size() < limit) {
+			final int number = nextPage;
+			pending = prefetcher.submit(new Callable<Page>() {
+				@Override
+				public Page call() {
+					return api.fetchPage(lat, lon, keyword, number, pageSize);
+				}
+			});
+		}
+		return true;
+	}
+
+	private void cancelPending() {
+		if (pending != null) {
+			pending.cancel(false);
+			pending = null;
+		}
+	}
+}
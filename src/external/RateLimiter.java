@@ -0,0 +1,65 @@
+package external;
+
+/**
+ * Token bucket. Tokens refill continuously at permitsPerSecond up to burst, and
+ * tryAcquire() never blocks, so a caller over quota can fall back right away.
+ *
+ * A limiter with a parent also takes every permit from the parent, but only
+ * while the parent keeps more than reserve tokens. Background callers use one
+ * to stay within their own small rate and to leave the shared quota to
+ * requests when it runs low.
+ */
+public class RateLimiter {
+	private final double permitsPerSecond;
+	private final double burst;
+	private final RateLimiter parent;
+	private final double reserve;
+
+	private double tokens;
+	private long lastRefillNanos = System.nanoTime();
+
+	public RateLimiter(double permitsPerSecond, double burst) {
+		this(permitsPerSecond, burst, null, 0);
+	}
+
+	public RateLimiter(double permitsPerSecond, double burst, RateLimiter parent, double reserve) {
+		this.permitsPerSecond = permitsPerSecond;
+		this.burst = burst;
+		this.tokens = burst;
+		this.parent = parent;
+		this.reserve = reserve;
+	}
+
+	public synchronized boolean tryAcquire() {
+		refill();
+		if (tokens < 1 || (parent != null && !parent.tryAcquire(reserve))) {
+			return false;
+		}
+		tokens -= 1;
+		return true;
+	}
+
+	// Take a permit only if more than reserve tokens would be left over.
+	private synchronized boolean tryAcquire(double reserve) {
+		refill();
+		if (tokens < 1 + reserve) {
+			return false;
+		}
+		tokens -= 1;
+		return true;
+	}
+
+	/**
+	 * @return tokens currently available, rounded down
+	 */
+	public synchronized long available() {
+		refill();
+		return (long) tokens;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - lastRefillNanos) / 1e9 * permitsPerSecond);
+		lastRefillNanos = now;
+	}
+}
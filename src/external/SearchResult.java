@@ -0,0 +1,52 @@
+package external;
+
+import java.util.List;
+
+import entity.Item;
+import metrics.Trace;
+
+/**
+ * Items of one Ticketmaster search and where they came from. Searches often
+ * run on worker threads, where the request's Trace is not current, so the
+ * flags travel with the items and the request thread records them.
+ */
+public class SearchResult {
+	private final List<Item> items;
+	private final boolean cacheHit;
+	private final boolean stale;
+
+	public SearchResult(List<Item> items, boolean cacheHit, boolean stale) {
+		this.items = items;
+		this.cacheHit = cacheHit;
+		this.stale = stale;
+	}
+
+	public List<Item> getItems() {
+		return items;
+	}
+
+	/**
+	 * @return whether the items are a fresh cached result
+	 */
+	public boolean isCacheHit() {
+		return cacheHit;
+	}
+
+	/**
+	 * @return whether Ticketmaster could not be asked, so the items are an older
+	 *         result or none at all
+	 */
+	public boolean isStale() {
+		return stale;
+	}
+
+	/**
+	 * Record the flags on the current thread's request Trace.
+	 */
+	public void trace() {
+		Trace.setCacheHit(cacheHit);
+		if (stale) {
+			Trace.setStale();
+		}
+	}
+}
@@ -3,6 +3,7 @@ package external;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -13,19 +14,232 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONException;
 
+import analytics.TrafficStats;
 import entity.Item;
 import entity.Item.ItemBuilder;
+import logging.AccessLog;
+import metrics.Gauge;
+import metrics.Metrics;
 
 public class TicketMasterAPI {
-	private static final String URL = "https://app.ticketmaster.com/discovery/v2/events.json";
+	// URL and key can be overridden, e.g. to point at loadtest.TicketMasterStub.
+	private static final String URL = System.getProperty("ticketmaster.url",
+			"https://app.ticketmaster.com/discovery/v2/events.json");
 	private static final String DEFAULT_KEYWORD = ""; // no restriction
-	private static final String API_KEY = "D9aPsZqW0T189o8nwqw5wdrtwNZhsNZX";
+	// Same as Ticketmaster's default page size, which was all we used to read.
+	public static final int DEFAULT_LIMIT = 20;
+	private static final String API_KEY = System.getProperty("ticketmaster.apikey", "D9aPsZqW0T189o8nwqw5wdrtwNZhsNZX");
+	// A stalled call must fail like any other, or the breaker never opens and
+	// the threads waiting on it are never freed.
+	private static final int CONNECT_TIMEOUT_MILLIS = Integer.getInteger("ticketmaster.connectTimeoutMillis", 2000);
+	private static final int READ_TIMEOUT_MILLIS = Integer.getInteger("ticketmaster.readTimeoutMillis", 5000);
 	
+	// Our API quota is 5 requests per second; open the circuit after 5
+	// consecutive failures and probe again after 30 seconds.
+	private static final RateLimiter sharedLimiter = new RateLimiter(
+			Double.parseDouble(System.getProperty("ticketmaster.qps", "5")), 5);
+	private static final CircuitBreaker sharedBreaker = new CircuitBreaker("ticketmaster", 5, 30 * 1000);
+	// Prefetching has its own small rate within the quota and yields the last
+	// tokens of it to requests.
+	private static final RateLimiter prefetchLimiter = new RateLimiter(
+			Double.parseDouble(System.getProperty("prefetch.qps", "1")), 1, sharedLimiter,
+			Double.parseDouble(System.getProperty("prefetch.reserve", "2")));
+	// So has the recommendation precomputer, which searches several categories
+	// of a cell at once.
+	private static final RateLimiter precomputeLimiter = new RateLimiter(
+			Double.parseDouble(System.getProperty("precompute.qps", "1")),
+			Double.parseDouble(System.getProperty("precompute.burst", "3")), sharedLimiter,
+			Double.parseDouble(System.getProperty("precompute.reserve", "2")));
+
+	static {
+		Metrics.gauge("ticketmaster_circuit_open", new Gauge() {
+			@Override
+			public long value() {
+				return sharedBreaker.getState() == CircuitBreaker.State.CLOSED ? 0 : 1;
+			}
+		});
+		Metrics.gauge("ticketmaster_tokens_available", new Gauge() {
+			@Override
+			public long value() {
+				return sharedLimiter.available();
+			}
+		});
+	}
+
+	private final RateLimiter limiter;
+	private final CircuitBreaker breaker;
+
+	public TicketMasterAPI() {
+		this(sharedLimiter, sharedBreaker);
+	}
+
+	TicketMasterAPI(RateLimiter limiter, CircuitBreaker breaker) {
+		this.limiter = limiter;
+		this.breaker = breaker;
+	}
+
+	/**
+	 * @return an instance for CachePrefetcher, limited to the prefetch share of
+	 *         the quota
+	 */
+	static TicketMasterAPI forPrefetch() {
+		return new TicketMasterAPI(prefetchLimiter, sharedBreaker);
+	}
+
+	/**
+	 * @return an instance for RecommendationPrecomputer, limited to the
+	 *         precompute share of the quota
+	 */
+	public static TicketMasterAPI forPrecompute() {
+		return new TicketMasterAPI(precomputeLimiter, sharedBreaker);
+	}
+	
+	/**
+	 * Search the first DEFAULT_LIMIT events near a location.
+	 * 
+	 * @see #search(double, double, String, int)
+	 */
 	public List<Item> search(double lat, double lon, String keyword) {
-		// Encode keyword in url since it may contain special characters
+		return search(lat, lon, keyword, DEFAULT_LIMIT).getItems();
+	}
+	
+	/**
+	 * Search up to limit events near a location, fetching only as many result
+	 * pages as needed. Fresh cached results are returned without calling
+	 * Ticketmaster. When the circuit is open, we are over quota or the call
+	 * fails, the last known result is served instead, flagged stale. So are the
+	 * pages we got when a later one fails.
+	 * 
+	 * @param lat
+	 * @param lon
+	 * @param keyword
+	 *            (Nullable)
+	 * @param limit
+	 *            maximum number of items
+	 * @return items, with whether they came from cache or are stale
+	 */
+	public SearchResult search(double lat, double lon, String keyword, int limit) {
 		if (keyword == null) {
 			keyword= DEFAULT_KEYWORD;
 		}
+		TrafficStats.recordKeyword(keyword);
+		
+		String key = EventCache.key(lat, lon, keyword);
+		CachePrefetcher.recordLookup(key);
+		EventCache.Entry cached = EventCache.get(key);
+		if (cached != null && cached.isFresh() && cached.covers(limit)) {
+			return new SearchResult(first(cached.getItems(), limit), true, false);
+		}
+		
+		EventPager pager = new EventPager(this, lat, lon, keyword, limit, true);
+		List<Item> items = new ArrayList<>();
+		while (pager.hasNext()) {
+			items.add(pager.next());
+		}
+		if (pager.isFailed()) {
+			if (items.isEmpty()) {
+				return fallback(cached, limit);
+			}
+			// Keep the earlier pages we got. They are cached as incomplete, so a
+			// request for more asks again, and served flagged as stale.
+			if (cached == null || cached.getItems().size() < items.size()) {
+				EventCache.put(key, new EventCache.Entry(lat, lon, keyword, items, false,
+						System.currentTimeMillis()));
+			}
+			Metrics.increment("ticketmaster_partial_served_total", null, null);
+			return new SearchResult(items, false, true);
+		}
+		EventCache.put(key, new EventCache.Entry(lat, lon, keyword, items, pager.isComplete(),
+				System.currentTimeMillis()));
+		return new SearchResult(items, false, false);
+	}
+	
+	/**
+	 * Iterate lazily over up to limit events near a location, bypassing the
+	 * cache. Pages are fetched as the iterator is consumed, the next one in the
+	 * background.
+	 * 
+	 * @param lat
+	 * @param lon
+	 * @param keyword
+	 *            (Nullable)
+	 * @param limit
+	 *            maximum number of items
+	 * @return iterator of items
+	 */
+	public EventPager stream(double lat, double lon, String keyword, int limit) {
+		return new EventPager(this, lat, lon, keyword == null ? DEFAULT_KEYWORD : keyword, limit, true);
+	}
+	
+	/**
+	 * Re-fetch a cached result ahead of its expiry, under this instance's rate
+	 * limiter and circuit breaker.
+	 * 
+	 * @param key
+	 * @param cached
+	 * @return false if the call was rejected or failed
+	 */
+	boolean refresh(String key, EventCache.Entry cached) {
+		int limit = Math.max(DEFAULT_LIMIT, cached.getItems().size());
+		EventPager pager = new EventPager(this, cached.getLat(), cached.getLon(), cached.getKeyword(), limit, false);
+		List<Item> items = new ArrayList<>();
+		while (pager.hasNext()) {
+			items.add(pager.next());
+		}
+		if (pager.isFailed()) {
+			return false;
+		}
+		EventCache.put(key, new EventCache.Entry(cached.getLat(), cached.getLon(), cached.getKeyword(), items,
+				pager.isComplete(), System.currentTimeMillis()));
+		return true;
+	}
+	
+	// Serve the last known result, if any, flagged as stale.
+	private SearchResult fallback(EventCache.Entry cached, int limit) {
+		if (cached == null) {
+			return new SearchResult(new ArrayList<Item>(), false, true);
+		}
+		Metrics.increment("ticketmaster_stale_served_total", null, null);
+		return new SearchResult(first(cached.getItems(), limit), false, true);
+	}
+	
+	private static List<Item> first(List<Item> items, int limit) {
+		return new ArrayList<>(items.subList(0, Math.min(limit, items.size())));
+	}
+	
+	/**
+	 * Fetch one result page, under the circuit breaker and rate limiter. The
+	 * breaker is asked first so calls it rejects spend no quota.
+	 * 
+	 * @return page, or null if the call was rejected or failed
+	 */
+	EventPager.Page fetchPage(double lat, double lon, String keyword, int page, int size) {
+		if (!breaker.allowRequest()) {
+			Metrics.increment("ticketmaster_rejections_total", "reason", "circuit_open");
+			return null;
+		}
+		if (!limiter.tryAcquire()) {
+			// Not a call, so a half-open probe is handed back untried.
+			breaker.release();
+			Metrics.increment("ticketmaster_rejections_total", "reason", "rate_limited");
+			return null;
+		}
+		EventPager.Page result = fetch(lat, lon, keyword, page, size);
+		if (result == null) {
+			breaker.recordFailure();
+		} else {
+			breaker.recordSuccess();
+		}
+		return result;
+	}
+	
+	/**
+	 * Call Ticketmaster, giving up after the connect or read timeout.
+	 * 
+	 * @return page, or null if the call failed or timed out
+	 */
+	private EventPager.Page fetch(double lat, double lon, String keyword, int page, int size) {
+		// Encode keyword in url since it may contain special characters
 		try {
 			keyword= java.net.URLEncoder.encode(keyword, "UTF-8");
 		} catch (Exception e) {
@@ -35,19 +249,26 @@ public class TicketMasterAPI {
 		// Convert lat/lon to geo hash  
 		String geoHash = GeoHash.encodeGeohash(lat, lon, 8);
 		
-		// Make your url query part like: "apikey=12345&geoPoint=abcd&keyword=music&radius=50"
-		String query = String.format("apikey=%s&geoPoint=%s&keyword=%s&radius=%s", API_KEY, geoHash, keyword, 50);
+		// Make your url query part like: "apikey=12345&geoPoint=abcd&keyword=music&radius=50&page=0&size=20"
+		String query = String.format("apikey=%s&geoPoint=%s&keyword=%s&radius=%s&page=%s&size=%s", API_KEY, geoHash,
+				keyword, 50, page, size);
+		long start = System.nanoTime();
 		try {
 			// Open a HTTP connection between your Java application and TicketMaster based on url
 			HttpURLConnection connection = (HttpURLConnection) new URL(URL + "?" + query).openConnection();
+			connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+			connection.setReadTimeout(READ_TIMEOUT_MILLIS);
 			// Set request method to GET
 			connection.setRequestMethod("GET");
 			// Send request to TicketMaster and get response, response code could be
 			// returned directly
 			// response body is saved in InputStream of connection.
 			int responseCode = connection.getResponseCode();
-			System.out.println("\nSending 'GET' request to URL : " + URL + "?" + query);
-			System.out.println("Response Code : " + responseCode);
+			if (responseCode != HttpURLConnection.HTTP_OK) {
+				Metrics.increment("upstream_errors_total", "call", "ticketmaster.search");
+				AccessLog.error("ticketmaster.search", "Response code " + responseCode, null);
+				return null;
+			}
 			// Now read response body to get events data
 			BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
 			String inputLine;
@@ -57,16 +278,27 @@ public class TicketMasterAPI {
 			}
 			in.close();
 			JSONObject obj = new JSONObject(response.toString());
+			// "page": {"size": 20, "totalElements": 57, "totalPages": 3, "number": 0}
+			int totalPages = 1;
+			if (!obj.isNull("page")) {
+				totalPages = obj.getJSONObject("page").optInt("totalPages", 1);
+			}
 			if (obj.isNull("_embedded")) {
-				return new ArrayList<>();
+				return new EventPager.Page(new ArrayList<Item>(), totalPages);
 			}
 			JSONObject embedded = obj.getJSONObject("_embedded");
 			JSONArray events = embedded.getJSONArray("events");
-			return getItemList(events);
+			return new EventPager.Page(getItemList(events), totalPages);
+		} catch (SocketTimeoutException e) {
+			Metrics.increment("upstream_timeouts_total", "call", "ticketmaster.search");
+			AccessLog.error("ticketmaster.search", "Search timed out", e);
 		} catch (Exception e) {
-			e.printStackTrace();
+			Metrics.increment("upstream_errors_total", "call", "ticketmaster.search");
+			AccessLog.error("ticketmaster.search", "Search failed", e);
+		} finally {
+			Metrics.histogram("upstream_call_seconds", "call", "ticketmaster.search").record(System.nanoTime() - start);
 		}
-		return new ArrayList<>();
+		return null;
 
 }
 	
@@ -180,6 +412,24 @@ public class TicketMasterAPI {
 	return categories;
 }
 
+// {"_embedded": {"venues": [{"location": {"latitude": "37.38", "longitude": "-122.08"}}, ...]}}
+	private JSONObject getLocation(JSONObject event) throws JSONException {
+	if (!event.isNull("_embedded")) {
+		JSONObject embedded = event.getJSONObject("_embedded");
+		if (!embedded.isNull("venues")) {
+			JSONArray venues = embedded.getJSONArray("venues");
+			for (int i = 0; i < venues.length(); ++i) {
+				JSONObject venue = venues.getJSONObject(i);
+				if (!venue.isNull("location")) {
+					return venue.getJSONObject("location");
+				}
+			}
+		}
+	}
+
+	return null;
+}
+
 // Convert JSONArray to a list of item objects.
 	private List<Item> getItemList(JSONArray events) throws JSONException {
 	List<Item> itemList = new ArrayList<>();
@@ -209,6 +459,12 @@ public class TicketMasterAPI {
 			builder.setDistance(event.getDouble("distance"));
 		}
 		
+		JSONObject location = getLocation(event);
+		if (location != null && !location.isNull("latitude") && !location.isNull("longitude")) {
+			builder.setLatitude(location.getDouble("latitude"));
+			builder.setLongitude(location.getDouble("longitude"));
+		}
+		
 		builder.setCategories(getCategories(event));
 		builder.setAddress(getAddress(event));
 		builder.setImageUrl(getImageUrl(event));
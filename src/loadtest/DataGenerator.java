@@ -0,0 +1,122 @@
+package loadtest;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import db.DBConnection;
+import db.DBConnectionFactory;
+import db.embedded.EmbeddedStore;
+import db.mysql.MySQLDBUtil;
+import entity.Item;
+import entity.Item.ItemBuilder;
+
+/**
+ * Seeds users, items and favorite history for load tests. The same seed
+ * always produces the same data, and item ids match the events served by
+ * TicketMasterStub.
+ *
+ * Run it before starting the webapp, against the backend the webapp uses:
+ * DataGenerator [backend] [users] [seed] (default: embedded 1000 42)
+ */
+public class DataGenerator {
+	public static final int ITEM_POOL = 2000;
+	public static final String USER_PREFIX = "load-";
+	private static final int MAX_FAVORITES = 10;
+
+	public static void main(String[] args) throws Exception {
+		String backend = args.length > 0 ? args[0] : "embedded";
+		int users = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+
+		long start = System.currentTimeMillis();
+		generate(backend, users, seed);
+		System.out.println(String.format("Generated %d items and %d users on %s in %d ms", ITEM_POOL, users, backend,
+				System.currentTimeMillis() - start));
+	}
+
+	public static String itemId(int n) {
+		return "stub-" + n;
+	}
+
+	public static String segmentOf(int n) {
+		return TicketMasterStub.SEGMENTS[n % TicketMasterStub.SEGMENTS.length];
+	}
+
+	public static void generate(String backend, int users, long seed) throws Exception {
+		Random random = new Random(seed);
+
+		// Step 1 Users, which have no DBConnection method.
+		addUsers(backend, users);
+
+		// Step 2 Items
+		DBConnection conn = DBConnectionFactory.getConnection(backend);
+		try {
+			for (int n = 0; n < ITEM_POOL; ++n) {
+				conn.saveItem(item(n));
+			}
+
+			// Step 3 Favorite history, skewed so some items are much more popular.
+			for (int u = 0; u < users; ++u) {
+				int count = 1 + random.nextInt(MAX_FAVORITES);
+				Set<String> itemIds = new HashSet<>();
+				for (int i = 0; i < count; ++i) {
+					int n = (int) (ITEM_POOL * Math.pow(random.nextDouble(), 2));
+					itemIds.add(itemId(n));
+				}
+				conn.setFavoriteItems(USER_PREFIX + u, new ArrayList<>(itemIds));
+			}
+		} finally {
+			conn.close();
+		}
+	}
+
+	private static Item item(int n) {
+		ItemBuilder builder = new ItemBuilder();
+		builder.setItemId(itemId(n));
+		builder.setName(segmentOf(n) + " event " + n);
+		builder.setRating(0);
+		builder.setAddress(n + " Main St Mountain View");
+		builder.setImageUrl("http://localhost/img/" + n + ".jpg");
+		builder.setUrl("http://localhost/events/" + n);
+		builder.setDistance(0);
+		Set<String> categories = new HashSet<>();
+		categories.add(segmentOf(n));
+		builder.setCategories(categories);
+		return builder.build();
+	}
+
+	private static void addUsers(String backend, int users) throws Exception {
+		// Same password as the demo user.
+		String password = "3229c1097c00d497a0fd282d586be050";
+		switch (backend) {
+		case "embedded":
+			EmbeddedStore store = EmbeddedStore.getInstance();
+			for (int u = 0; u < users; ++u) {
+				store.addUser(USER_PREFIX + u, password, "Load", "User" + u);
+			}
+			break;
+		case "mysql":
+			Class.forName("com.mysql.cj.jdbc.Driver").getConstructor().newInstance();
+			try (Connection conn = DriverManager.getConnection(MySQLDBUtil.URL)) {
+				PreparedStatement stmt = conn.prepareStatement("INSERT IGNORE INTO users VALUES (?, ?, ?, ?)");
+				for (int u = 0; u < users; ++u) {
+					stmt.setString(1, USER_PREFIX + u);
+					stmt.setString(2, password);
+					stmt.setString(3, "Load");
+					stmt.setString(4, "User" + u);
+					stmt.addBatch();
+				}
+				stmt.executeBatch();
+			}
+			break;
+		default:
+			// MongoDB upserts users together with their favorites.
+			break;
+		}
+	}
+}
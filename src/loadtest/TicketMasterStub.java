@@ -0,0 +1,225 @@
+package loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the Ticketmaster Discovery API, so load tests need
+ * neither network nor API quota.
+ *
+ * Serves /discovery/v2/events.json with page/size paging. Events come from
+ * recorded responses in the fixture directory (<keyword>.json, or
+ * default.json for an empty keyword) when present, and are generated
+ * deterministically from the keyword otherwise. Latency and errors can be
+ * injected.
+ *
+ * Usage: TicketMasterStub [port] [fixtureDir|-] [latencyMs] [errorRate]
+ * then run the webapp with
+ * -Dticketmaster.url=http://localhost:port/discovery/v2/events.json
+ * -Dticketmaster.qps=1000, since the stub has no quota to protect.
+ */
+public class TicketMasterStub {
+	public static final String[] SEGMENTS = { "Music", "Sports", "Arts & Theatre", "Film", "Miscellaneous" };
+	public static final int EVENTS_PER_KEYWORD = 120;
+
+	private final int port;
+	private final File fixtureDir;
+	private final long latencyMillis;
+	private final double errorRate;
+	private final Random random = new Random();
+	private final Map<String, JSONArray> fixtures = new HashMap<>();
+	private HttpServer server;
+
+	public TicketMasterStub(int port, File fixtureDir, long latencyMillis, double errorRate) {
+		this.port = port;
+		this.fixtureDir = fixtureDir;
+		this.latencyMillis = latencyMillis;
+		this.errorRate = errorRate;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8089;
+		File fixtureDir = args.length > 1 && !args[1].equals("-") ? new File(args[1]) : null;
+		long latency = args.length > 2 ? Long.parseLong(args[2]) : 50;
+		double errorRate = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+
+		new TicketMasterStub(port, fixtureDir, latency, errorRate).start();
+		System.out.println("Ticketmaster stub on http://localhost:" + port + "/discovery/v2/events.json");
+		System.out.println("Run the webapp with -Dticketmaster.url=http://localhost:" + port
+				+ "/discovery/v2/events.json -Dticketmaster.qps=1000");
+	}
+
+	public void start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/discovery/v2/events.json", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					serve(exchange);
+				} catch (Exception e) {
+					respond(exchange, 500, "{\"error\":\"" + e.getMessage() + "\"}");
+				}
+			}
+		});
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+	}
+
+	/**
+	 * @return the bound port, useful when started on port 0
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+		}
+	}
+
+	private void serve(HttpExchange exchange) throws Exception {
+		Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+
+		// Latency is uniformly spread between half and one and a half times the mean.
+		if (latencyMillis > 0) {
+			Thread.sleep(latencyMillis / 2 + (long) (random.nextDouble() * latencyMillis));
+		}
+		if (random.nextDouble() < errorRate) {
+			// Alternate between being throttled and failing.
+			respond(exchange, random.nextBoolean() ? 429 : 503, "{\"fault\":\"injected\"}");
+			return;
+		}
+
+		String keyword = params.containsKey("keyword") ? params.get("keyword") : "";
+		int page = params.containsKey("page") ? Integer.parseInt(params.get("page")) : 0;
+		int size = params.containsKey("size") ? Integer.parseInt(params.get("size")) : 20;
+
+		JSONArray all = events(keyword);
+		int totalPages = (all.length() + size - 1) / size;
+		JSONArray events = new JSONArray();
+		for (int i = page * size; i < Math.min(all.length(), (page + 1) * size); ++i) {
+			events.put(all.get(i));
+		}
+
+		JSONObject body = new JSONObject();
+		if (events.length() > 0) {
+			body.put("_embedded", new JSONObject().put("events", events));
+		}
+		body.put("page", new JSONObject().put("size", size).put("totalElements", all.length())
+				.put("totalPages", totalPages).put("number", page));
+		respond(exchange, 200, body.toString());
+	}
+
+	private synchronized JSONArray events(String keyword) throws IOException, JSONException {
+		JSONArray events = fixtures.get(keyword);
+		if (events == null) {
+			events = loadFixture(keyword);
+			if (events == null) {
+				events = generate(keyword);
+			}
+			fixtures.put(keyword, events);
+		}
+		return events;
+	}
+
+	// A recorded events.json response; only its event list is used.
+	private JSONArray loadFixture(String keyword) throws IOException, JSONException {
+		if (fixtureDir == null) {
+			return null;
+		}
+		File file = new File(fixtureDir, (keyword.isEmpty() ? "default" : keyword) + ".json");
+		if (!file.exists()) {
+			return null;
+		}
+		JSONObject recorded = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+		if (recorded.isNull("_embedded")) {
+			return new JSONArray();
+		}
+		return recorded.getJSONObject("_embedded").getJSONArray("events");
+	}
+
+	/**
+	 * Events shaped like the Discovery API, seeded by the keyword so every run
+	 * sees the same ids. Ids are shared with DataGenerator.
+	 */
+	static JSONArray generate(String keyword) throws JSONException {
+		Random seeded = new Random(keyword.hashCode());
+		int segmentIndex = -1;
+		for (int s = 0; s < SEGMENTS.length; ++s) {
+			if (SEGMENTS[s].equals(keyword)) {
+				segmentIndex = s;
+			}
+		}
+		int offset = seeded.nextInt(DataGenerator.ITEM_POOL);
+		JSONArray events = new JSONArray();
+		for (int i = 0; i < EVENTS_PER_KEYWORD; ++i) {
+			// Distinct ids from a pool shared by all keywords, like overlapping real
+			// results. An item's segment is fixed by its id, see DataGenerator.
+			int id;
+			if (segmentIndex < 0) {
+				id = (offset + i * 7) % DataGenerator.ITEM_POOL;
+			} else {
+				int perSegment = DataGenerator.ITEM_POOL / SEGMENTS.length;
+				id = ((offset + i * 7) % perSegment) * SEGMENTS.length + segmentIndex;
+			}
+			String segment = DataGenerator.segmentOf(id);
+			JSONObject venue = new JSONObject()
+					.put("address", new JSONObject().put("line1", id + " Main St"))
+					.put("city", new JSONObject().put("name", "Mountain View"))
+					.put("location", new JSONObject()
+							.put("latitude", String.valueOf(37.38 + seeded.nextGaussian() * 0.1))
+							.put("longitude", String.valueOf(-122.08 + seeded.nextGaussian() * 0.1)));
+			events.put(new JSONObject()
+					.put("id", DataGenerator.itemId(id))
+					.put("name", segment + " event " + id)
+					.put("url", "http://localhost/events/" + id)
+					.put("distance", seeded.nextDouble() * 50)
+					.put("images", new JSONArray().put(new JSONObject().put("url", "http://localhost/img/" + id + ".jpg")))
+					.put("classifications", new JSONArray().put(
+							new JSONObject().put("segment", new JSONObject().put("name", segment))))
+					.put("_embedded", new JSONObject().put("venues", new JSONArray().put(venue))));
+		}
+		return events;
+	}
+
+	private static Map<String, String> parseQuery(String query) throws IOException {
+		Map<String, String> params = new HashMap<>();
+		if (query == null) {
+			return params;
+		}
+		for (String pair : query.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0) {
+				params.put(pair.substring(0, eq), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+			}
+		}
+		return params;
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+}
@@ -0,0 +1,222 @@
+package loadtest;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a mix of /search, /history and /recommendation calls at a fixed
+ * target rate and reports throughput and latency percentiles.
+ *
+ * Requests are issued open-loop: each one has a scheduled start time and its
+ * latency is measured from then, so a slow server shows up as latency rather
+ * than as a lower request rate.
+ *
+ * Usage: WorkloadDriver baseUrl [rate/s] [seconds] [users] [search:history:recommendation] [seed]
+ * An optional fourth mix weight adds favorite writes (POST /history).
+ * e.g. WorkloadDriver http://localhost:8080/EventRecommend 50 60 1000 60:25:15 42
+ *
+ * Requests carry user_id but no session, so run the server with
+ * -Dauth.optional=true and -Ddb.backend=embedded, the only backend that
+ * honours it.
+ *
+ * Against TicketMasterStub, also run the server with a quota the stub does not
+ * have, e.g. -Dticketmaster.qps=1000. At the default of 5 calls a second most
+ * cache misses are rate limited and served stale, so the run measures the
+ * limiter rather than the server.
+ */
+public class WorkloadDriver {
+	// Metro areas the generated traffic clusters around.
+	private static final double[][] METROS = { { 37.38, -122.08 }, { 40.71, -74.00 }, { 34.05, -118.24 },
+			{ 29.68, -95.30 }, { 51.50, -0.12 } };
+
+	private final String baseUrl;
+	private final int users;
+	private final int[] mix;
+	private final Map<String, Recorder> recorders = new LinkedHashMap<>();
+
+	/**
+	 * Latencies of one endpoint, appended from many threads.
+	 */
+	private static class Recorder {
+		private long[] latencies = new long[1024];
+		private int count;
+		private final AtomicLong errors = new AtomicLong();
+
+		synchronized void record(long nanos) {
+			if (count == latencies.length) {
+				latencies = Arrays.copyOf(latencies, count * 2);
+			}
+			latencies[count++] = nanos;
+		}
+
+		synchronized long[] sorted() {
+			long[] copy = Arrays.copyOf(latencies, count);
+			Arrays.sort(copy);
+			return copy;
+		}
+	}
+
+	public WorkloadDriver(String baseUrl, int users, int[] mix) {
+		this.baseUrl = baseUrl;
+		this.users = users;
+		this.mix = mix;
+		for (String endpoint : new String[] { "search", "history", "recommendation", "favorite" }) {
+			recorders.put(endpoint, new Recorder());
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: WorkloadDriver baseUrl [rate/s] [seconds] [users] [search:history:recommendation] [seed]");
+			System.out.println("Run the server with -Dauth.optional=true -Ddb.backend=embedded, and with -Dticketmaster.qps=1000 against TicketMasterStub.");
+			return;
+		}
+		String baseUrl = args[0];
+		double rate = args.length > 1 ? Double.parseDouble(args[1]) : 20;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+		int users = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+		String[] parts = (args.length > 4 ? args[4] : "60:25:15").split(":");
+		long seed = args.length > 5 ? Long.parseLong(args[5]) : 42;
+
+		int[] mix = new int[parts.length];
+		for (int i = 0; i < parts.length; ++i) {
+			mix[i] = Integer.parseInt(parts[i]);
+		}
+		new WorkloadDriver(baseUrl, users, mix).run(rate, seconds, seed);
+	}
+
+	public void run(double rate, int seconds, long seed) throws InterruptedException {
+		final Random random = new Random(seed);
+		ExecutorService workers = Executors.newFixedThreadPool(256);
+		long intervalNanos = (long) (1e9 / rate);
+		long total = (long) (rate * seconds);
+		long start = System.nanoTime();
+
+		for (long i = 0; i < total; ++i) {
+			final long scheduled = start + i * intervalNanos;
+			long wait = scheduled - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			final String userId = DataGenerator.USER_PREFIX + random.nextInt(users);
+			final double[] metro = METROS[(int) (METROS.length * Math.pow(random.nextDouble(), 2))];
+			final double lat = metro[0] + random.nextGaussian() * 0.05;
+			final double lon = metro[1] + random.nextGaussian() * 0.05;
+			final int pick = pick(random);
+			final String itemId = DataGenerator.itemId(random.nextInt(DataGenerator.ITEM_POOL));
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					issue(pick, userId, lat, lon, itemId, scheduled);
+				}
+			});
+		}
+		workers.shutdown();
+		workers.awaitTermination(5, TimeUnit.MINUTES);
+		report(total, System.nanoTime() - start);
+	}
+
+	// 0 = search, 1 = history, 2 = recommendation, 3 = favorite toggle
+	private int pick(Random random) {
+		int sum = 0;
+		for (int weight : mix) {
+			sum += weight;
+		}
+		int r = random.nextInt(sum);
+		for (int i = 0; i < mix.length; ++i) {
+			r -= mix[i];
+			if (r < 0) {
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	private void issue(int pick, String userId, double lat, double lon, String itemId, long scheduled) {
+		String endpoint;
+		String method = "GET";
+		String url;
+		String body = null;
+		switch (pick) {
+		case 1:
+			endpoint = "history";
+			url = baseUrl + "/history?user_id=" + userId;
+			break;
+		case 2:
+			endpoint = "recommendation";
+			url = baseUrl + "/recommendation?user_id=" + userId + "&lat=" + lat + "&lon=" + lon;
+			break;
+		case 3:
+			endpoint = "favorite";
+			method = "POST";
+			url = baseUrl + "/history";
+			body = "{\"user_id\":\"" + userId + "\",\"favorite\":[\"" + itemId + "\"]}";
+			break;
+		default:
+			endpoint = "search";
+			url = baseUrl + "/search?user_id=" + userId + "&lat=" + lat + "&lon=" + lon;
+		}
+
+		Recorder recorder = recorders.get(endpoint);
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+			connection.setRequestMethod(method);
+			if (body != null) {
+				connection.setDoOutput(true);
+				connection.setRequestProperty("Content-Type", "application/json;charset=utf-8");
+				OutputStream out = connection.getOutputStream();
+				out.write(body.getBytes(StandardCharsets.UTF_8));
+				out.close();
+			}
+			int status = connection.getResponseCode();
+			InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+			if (in != null) {
+				byte[] buffer = new byte[8192];
+				while (in.read(buffer) >= 0) {
+					// Drain so the connection can be reused.
+				}
+				in.close();
+			}
+			if (status >= 400) {
+				recorder.errors.incrementAndGet();
+			}
+		} catch (Exception e) {
+			recorder.errors.incrementAndGet();
+		}
+		recorder.record(System.nanoTime() - scheduled);
+	}
+
+	private void report(long total, long elapsedNanos) {
+		double seconds = elapsedNanos / 1e9;
+		System.out.println(String.format("%d requests in %.1f s, %.1f req/s", total, seconds, total / seconds));
+		System.out.println(String.format("%-15s %8s %7s %9s %9s %9s %9s %9s", "endpoint", "count", "errors",
+				"p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+		for (Entry<String, Recorder> entry : recorders.entrySet()) {
+			long[] sorted = entry.getValue().sorted();
+			if (sorted.length == 0) {
+				continue;
+			}
+			System.out.println(String.format("%-15s %8d %7d %9.1f %9.1f %9.1f %9.1f %9.1f", entry.getKey(),
+					sorted.length, entry.getValue().errors.get(), percentile(sorted, 0.5), percentile(sorted, 0.9),
+					percentile(sorted, 0.99), percentile(sorted, 0.999), sorted[sorted.length - 1] / 1e6));
+		}
+	}
+
+	private static double percentile(long[] sorted, double q) {
+		int index = (int) Math.ceil(q * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+	}
+}
@@ -0,0 +1,258 @@
+package logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import metrics.Gauge;
+import metrics.Metrics;
+import metrics.Trace;
+
+/**
+ * Asynchronous structured log: one JSON line per request or error event.
+ *
+ * Request threads only claim a preallocated slot in a ring buffer and copy a
+ * few references into it. A single background thread formats the slots and
+ * writes them to rolling files. When the ring is full the record is dropped
+ * and counted, so a slow disk never blocks a request.
+ */
+public class AccessLog {
+	private static final int CAPACITY = 8192; // power of two
+	private static final int MASK = CAPACITY - 1;
+	private static final long MAX_FILE_BYTES = 100L * 1024 * 1024;
+
+	private static final Record[] ring = new Record[CAPACITY];
+	// Last sequence claimed by a producer and last sequence written by the writer.
+	private static final AtomicLong claimed = new AtomicLong(-1);
+	private static final AtomicLong consumed = new AtomicLong(-1);
+
+	private static volatile Thread writer;
+	private static volatile boolean running;
+	private static volatile boolean stopped;
+	private static File dir = new File(System.getProperty("access.log.dir",
+			System.getProperty("catalina.base", System.getProperty("java.io.tmpdir")) + File.separator + "logs"));
+
+	static {
+		for (int i = 0; i < CAPACITY; ++i) {
+			ring[i] = new Record();
+		}
+		Metrics.gauge("access_log_pending", new Gauge() {
+			@Override
+			public long value() {
+				return claimed.get() - consumed.get();
+			}
+		});
+	}
+
+	private static class Record {
+		// Sequence this slot was last published for.
+		private volatile long published = -1;
+		private String type;
+		private long timestamp;
+		private String endpoint;
+		private String method;
+		private int status;
+		private long latencyNanos;
+		private Trace trace;
+		private String message;
+		private Throwable error;
+	}
+
+	private AccessLog() {
+	}
+
+	/**
+	 * Start the writer thread. Called from AppLifecycle, and lazily on the first
+	 * record otherwise.
+	 *
+	 * @param logDir
+	 *            directory for access-*.log files, or null to keep the default
+	 */
+	public static synchronized void start(File logDir) {
+		if (logDir != null) {
+			dir = logDir;
+		}
+		if (running) {
+			return;
+		}
+		running = true;
+		stopped = false;
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drainLoop();
+			}
+		}, "access-log-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Stop the writer thread after it has written everything already logged.
+	 */
+	public static synchronized void stop() {
+		stopped = true;
+		running = false;
+		Thread thread = writer;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+			try {
+				thread.join(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			writer = null;
+		}
+	}
+
+	/**
+	 * Log a finished request. The trace carries user, geohash bucket, result
+	 * count and cache hit.
+	 */
+	public static void request(String endpoint, String method, int status, long latencyNanos, Trace trace) {
+		long seq = claim();
+		if (seq < 0) {
+			return;
+		}
+		Record record = ring[(int) (seq & MASK)];
+		record.timestamp = System.currentTimeMillis();
+		record.type = "request";
+		record.endpoint = endpoint;
+		record.method = method;
+		record.status = status;
+		record.latencyNanos = latencyNanos;
+		record.trace = trace;
+		record.published = seq;
+	}
+
+	/**
+	 * Log a failure instead of printing its stack trace on the request thread.
+	 */
+	public static void error(String source, String message, Throwable error) {
+		long seq = claim();
+		if (seq < 0) {
+			return;
+		}
+		Record record = ring[(int) (seq & MASK)];
+		record.timestamp = System.currentTimeMillis();
+		record.type = "error";
+		record.endpoint = source;
+		record.message = message;
+		record.error = error;
+		record.published = seq;
+	}
+
+	/**
+	 * Claim the next slot. The caller fills ring[seq & MASK] and then publishes
+	 * it by setting its published field to seq.
+	 *
+	 * @return sequence, or -1 if the ring is full or the log is stopped
+	 */
+	private static long claim() {
+		if (stopped) {
+			return -1;
+		}
+		if (!running) {
+			start(null);
+		}
+		long seq;
+		do {
+			seq = claimed.get() + 1;
+			if (seq - consumed.get() > CAPACITY) {
+				Metrics.increment("access_log_dropped_total", null, null);
+				return -1;
+			}
+		} while (!claimed.compareAndSet(seq - 1, seq));
+		return seq;
+	}
+
+	private static void drainLoop() {
+		RollingFileWriter out = new RollingFileWriter(dir, "access", MAX_FILE_BYTES);
+		while (true) {
+			boolean wrote = false;
+			long next = consumed.get() + 1;
+			Record record = ring[(int) (next & MASK)];
+			while (record.published == next) {
+				try {
+					out.writeLine(format(record), record.timestamp);
+				} catch (IOException e) {
+					Metrics.increment("access_log_write_errors_total", null, null);
+				}
+				clear(record);
+				consumed.set(next);
+				wrote = true;
+				next++;
+				record = ring[(int) (next & MASK)];
+			}
+			try {
+				if (wrote) {
+					out.flush();
+				}
+			} catch (IOException e) {
+				Metrics.increment("access_log_write_errors_total", null, null);
+			}
+			if (!running && claimed.get() < next) {
+				break;
+			}
+			if (!wrote) {
+				LockSupport.parkNanos(1000000);
+			}
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			Metrics.increment("access_log_write_errors_total", null, null);
+		}
+	}
+
+	private static void clear(Record record) {
+		record.trace = null;
+		record.message = null;
+		record.error = null;
+		record.endpoint = null;
+		record.method = null;
+	}
+
+	private static String format(Record record) {
+		JSONObject obj = new JSONObject();
+		try {
+			obj.put("type", record.type);
+			obj.put("timestamp", record.timestamp);
+			if (record.type.equals("request")) {
+				obj.put("endpoint", record.endpoint);
+				obj.put("method", record.method);
+				obj.put("status", record.status);
+				obj.put("latency_ms", record.latencyNanos / 1e6);
+				Trace trace = record.trace;
+				if (trace != null) {
+					obj.put("user_id", trace.getUserId());
+					obj.put("geohash", trace.getGeoHash());
+					if (trace.getResultCount() >= 0) {
+						obj.put("result_count", trace.getResultCount());
+					}
+					obj.put("cache_hit", trace.getCacheHit());
+					obj.put("stale", trace.wasStale());
+					obj.put("spans", trace.spansToJSONArray());
+				}
+			} else {
+				obj.put("source", record.endpoint);
+				obj.put("message", record.message);
+				if (record.error != null) {
+					StringWriter stackTrace = new StringWriter();
+					record.error.printStackTrace(new PrintWriter(stackTrace));
+					obj.put("error", record.error.toString());
+					obj.put("stack_trace", stackTrace.toString());
+				}
+			}
+		} catch (JSONException e) {
+			Metrics.increment("access_log_write_errors_total", null, null);
+		}
+		return obj.toString();
+	}
+}
@@ -0,0 +1,80 @@
+package logging;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Appends lines to <prefix>-yyyy-MM-dd.log, starting a new file every day and
+ * whenever the current one grows past maxBytes (<prefix>-yyyy-MM-dd.1.log, ...).
+ * Only used from the single AccessLog writer thread, so it is not thread-safe.
+ */
+class RollingFileWriter {
+	private final File dir;
+	private final String prefix;
+	private final long maxBytes;
+	private final SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy-MM-dd");
+
+	private BufferedWriter out;
+	private String day;
+	private int index;
+	private long bytes;
+
+	RollingFileWriter(File dir, String prefix, long maxBytes) {
+		this.dir = dir;
+		this.prefix = prefix;
+		this.maxBytes = maxBytes;
+	}
+
+	void writeLine(String line, long timestamp) throws IOException {
+		String today = dayFormat.format(new Date(timestamp));
+		if (out == null || !today.equals(day) || bytes >= maxBytes) {
+			roll(today);
+		}
+		out.write(line);
+		out.write('\n');
+		// Close enough for size-based rolling, lines are mostly ASCII.
+		bytes += line.length() + 1;
+	}
+
+	void flush() throws IOException {
+		if (out != null) {
+			out.flush();
+		}
+	}
+
+	void close() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+	}
+
+	private void roll(String today) throws IOException {
+		close();
+		if (!today.equals(day)) {
+			day = today;
+			index = 0;
+		}
+		File file = nextFile();
+		while (file.exists() && file.length() >= maxBytes) {
+			index++;
+			file = nextFile();
+		}
+		if (!dir.exists()) {
+			dir.mkdirs();
+		}
+		bytes = file.length();
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+	}
+
+	private File nextFile() {
+		String name = index == 0 ? prefix + "-" + day + ".log" : prefix + "-" + day + "." + index + ".log";
+		return new File(dir, name);
+	}
+}
@@ -0,0 +1,8 @@
+package metrics;
+
+/**
+ * A value sampled when metrics are scraped, e.g. a pool or cache size.
+ */
+public interface Gauge {
+	public long value();
+}
@@ -0,0 +1,99 @@
+package metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Latency histogram with fixed buckets. Recording is lock-free, so it is safe
+ * to call from every request thread.
+ */
+public class Histogram {
+	// Upper bounds in milliseconds, the last bucket is +Inf.
+	static final double[] BOUNDS_MS = { 1, 2.5, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+
+	private final LongAdder[] buckets = new LongAdder[BOUNDS_MS.length + 1];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sumNanos = new LongAdder();
+
+	Histogram() {
+		for (int i = 0; i < buckets.length; ++i) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	public void record(long nanos) {
+		double millis = nanos / 1e6;
+		int i = 0;
+		while (i < BOUNDS_MS.length && millis > BOUNDS_MS[i]) {
+			i++;
+		}
+		buckets[i].increment();
+		count.increment();
+		sumNanos.add(nanos);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public double getSumSeconds() {
+		return sumNanos.sum() / 1e9;
+	}
+
+	/**
+	 * Non-cumulative count of each bucket, +Inf last.
+	 */
+	long[] getBucketCounts() {
+		long[] counts = new long[buckets.length];
+		for (int i = 0; i < buckets.length; ++i) {
+			counts[i] = buckets[i].sum();
+		}
+		return counts;
+	}
+
+	/**
+	 * Approximate quantile in milliseconds, using the upper bound of the bucket
+	 * that contains it. Anything past the last bound is reported as that bound.
+	 * 
+	 * @param q
+	 *            between 0 and 1
+	 * @return milliseconds
+	 */
+	public double quantileMillis(double q) {
+		long[] counts = getBucketCounts();
+		long total = 0;
+		for (long c : counts) {
+			total += c;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(q * total);
+		long seen = 0;
+		int i = 0;
+		for (; i < counts.length; ++i) {
+			seen += counts[i];
+			if (seen >= rank) {
+				break;
+			}
+		}
+		return BOUNDS_MS[Math.min(i, BOUNDS_MS.length - 1)];
+	}
+
+	public JSONObject toJSONObject() {
+		JSONObject obj = new JSONObject();
+		try {
+			long n = getCount();
+			obj.put("count", n);
+			obj.put("mean_ms", n == 0 ? 0 : getSumSeconds() * 1000 / n);
+			obj.put("p50_ms", quantileMillis(0.5));
+			obj.put("p95_ms", quantileMillis(0.95));
+			obj.put("p99_ms", quantileMillis(0.99));
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		return obj;
+	}
+}
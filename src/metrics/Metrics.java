@@ -0,0 +1,122 @@
+package metrics;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Process-wide registry of histograms, counters and gauges.
+ *
+ * Metrics are keyed by name plus one optional label, e.g.
+ * http_request_seconds{endpoint="/search"}.
+ */
+public class Metrics {
+	private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+	private static final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+	private static final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+	private Metrics() {
+	}
+
+	public static Histogram histogram(String name, String label, String value) {
+		String key = key(name, label, value);
+		Histogram histogram = histograms.get(key);
+		if (histogram == null) {
+			histograms.putIfAbsent(key, new Histogram());
+			histogram = histograms.get(key);
+		}
+		return histogram;
+	}
+
+	public static void increment(String name, String label, String value) {
+		add(name, label, value, 1);
+	}
+
+	public static void add(String name, String label, String value, long delta) {
+		String key = key(name, label, value);
+		LongAdder counter = counters.get(key);
+		if (counter == null) {
+			counters.putIfAbsent(key, new LongAdder());
+			counter = counters.get(key);
+		}
+		counter.add(delta);
+	}
+
+	public static long count(String name, String label, String value) {
+		LongAdder counter = counters.get(key(name, label, value));
+		return counter == null ? 0 : counter.sum();
+	}
+
+	public static void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	private static String key(String name, String label, String value) {
+		if (label == null) {
+			return name;
+		}
+		return name + "{" + label + "=\"" + value.replace("\"", "\\\"") + "\"}";
+	}
+
+	/**
+	 * Write every metric in the Prometheus text exposition format.
+	 *
+	 * @param out
+	 */
+	public static void writePrometheus(PrintWriter out) {
+		for (Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+			String key = entry.getKey();
+			int brace = key.indexOf('{');
+			String name = brace < 0 ? key : key.substring(0, brace);
+			String labels = brace < 0 ? "" : key.substring(brace + 1, key.length() - 1) + ",";
+
+			Histogram histogram = entry.getValue();
+			long[] counts = histogram.getBucketCounts();
+			long cumulative = 0;
+			for (int i = 0; i < counts.length; ++i) {
+				cumulative += counts[i];
+				String le = i < Histogram.BOUNDS_MS.length ? String.valueOf(Histogram.BOUNDS_MS[i] / 1000) : "+Inf";
+				out.println(name + "_bucket{" + labels + "le=\"" + le + "\"} " + cumulative);
+			}
+			out.println(name + "_sum" + (brace < 0 ? "" : key.substring(brace)) + " " + histogram.getSumSeconds());
+			out.println(name + "_count" + (brace < 0 ? "" : key.substring(brace)) + " " + cumulative);
+		}
+		for (Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+			out.println(entry.getKey() + " " + entry.getValue().sum());
+		}
+		for (Entry<String, Gauge> entry : new TreeMap<>(gauges).entrySet()) {
+			out.println(entry.getKey() + " " + entry.getValue().value());
+		}
+	}
+
+	public static JSONObject toJSONObject() {
+		JSONObject obj = new JSONObject();
+		try {
+			JSONObject latencies = new JSONObject();
+			for (Entry<String, Histogram> entry : histograms.entrySet()) {
+				latencies.put(entry.getKey(), entry.getValue().toJSONObject());
+			}
+			JSONObject counts = new JSONObject();
+			for (Entry<String, LongAdder> entry : counters.entrySet()) {
+				counts.put(entry.getKey(), entry.getValue().sum());
+			}
+			Map<String, Long> values = new TreeMap<>();
+			for (Entry<String, Gauge> entry : gauges.entrySet()) {
+				values.put(entry.getKey(), entry.getValue().value());
+			}
+			obj.put("histograms", latencies);
+			obj.put("counters", counts);
+			obj.put("gauges", new JSONObject(values));
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		return obj;
+	}
+}
@@ -0,0 +1,192 @@
+package metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Spans recorded on the current request thread, so a request log line can
+ * show where its time went. Spans are also aggregated into span_seconds.
+ */
+public class Trace {
+	private static final ThreadLocal<Trace> current = new ThreadLocal<>();
+
+	private final String name;
+	private final long startNanos = System.nanoTime();
+	private final List<Span> spans = new ArrayList<>();
+
+	// Request attributes for the access log, filled in by the servlets.
+	private String userId;
+	private String geoHash;
+	private int resultCount = -1;
+	private Boolean cacheHit;
+	private boolean stale;
+
+	public class Span {
+		private final String name;
+		private final long startNanos = System.nanoTime();
+		private long durationNanos = -1;
+
+		private Span(String name) {
+			this.name = name;
+		}
+
+		public void end() {
+			if (durationNanos < 0) {
+				durationNanos = System.nanoTime() - startNanos;
+				Metrics.histogram("span_seconds", "span", name).record(durationNanos);
+			}
+		}
+	}
+
+	private Trace(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Begin a trace on the current thread.
+	 * 
+	 * @param name
+	 * @return the trace
+	 */
+	public static Trace start(String name) {
+		Trace trace = new Trace(name);
+		current.set(trace);
+		return trace;
+	}
+
+	/**
+	 * @return the trace of the current thread, or null outside a request
+	 */
+	public static Trace current() {
+		return current.get();
+	}
+
+	/**
+	 * Begin a span on the current trace. Outside a request the span only feeds
+	 * the span_seconds histogram.
+	 * 
+	 * @param name
+	 * @return span, call end() when done
+	 */
+	public static Span span(String name) {
+		Trace trace = current.get();
+		if (trace == null) {
+			trace = new Trace(null);
+		}
+		Span span = trace.new Span(name);
+		if (trace.name != null) {
+			trace.spans.add(span);
+		}
+		return span;
+	}
+
+	/**
+	 * End the trace of the current thread.
+	 */
+	public static void finish() {
+		current.remove();
+	}
+
+	public static void setUserId(String userId) {
+		Trace trace = current.get();
+		if (trace != null) {
+			trace.userId = userId;
+		}
+	}
+
+	public static void setGeoHash(String geoHash) {
+		Trace trace = current.get();
+		if (trace != null) {
+			trace.geoHash = geoHash;
+		}
+	}
+
+	public static void setResultCount(int resultCount) {
+		Trace trace = current.get();
+		if (trace != null) {
+			trace.resultCount = resultCount;
+		}
+	}
+
+	/**
+	 * Record whether upstream data came from cache. A single miss marks the
+	 * whole request as a miss.
+	 * 
+	 * @param hit
+	 */
+	public static void setCacheHit(boolean hit) {
+		Trace trace = current.get();
+		if (trace != null) {
+			trace.cacheHit = trace.cacheHit == null ? hit : trace.cacheHit && hit;
+		}
+	}
+
+	/**
+	 * Record that some results were served stale from the fallback cache.
+	 */
+	public static void setStale() {
+		Trace trace = current.get();
+		if (trace != null) {
+			trace.stale = true;
+		}
+	}
+
+	public static boolean isStale() {
+		Trace trace = current.get();
+		return trace != null && trace.stale;
+	}
+
+	public String getUserId() {
+		return userId;
+	}
+
+	public String getGeoHash() {
+		return geoHash;
+	}
+
+	/**
+	 * @return number of results returned, or -1 if not set
+	 */
+	public int getResultCount() {
+		return resultCount;
+	}
+
+	/**
+	 * @return whether upstream data came from cache, or null if not known
+	 */
+	public Boolean getCacheHit() {
+		return cacheHit;
+	}
+
+	public boolean wasStale() {
+		return stale;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long elapsedNanos() {
+		return System.nanoTime() - startNanos;
+	}
+
+	public JSONArray spansToJSONArray() {
+		JSONArray array = new JSONArray();
+		try {
+			for (Span span : spans) {
+				JSONObject obj = new JSONObject();
+				obj.put("name", span.name);
+				obj.put("start_ms", (span.startNanos - startNanos) / 1e6);
+				obj.put("duration_ms", span.durationNanos < 0 ? -1 : span.durationNanos / 1e6);
+				array.put(obj);
+			}
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		return array;
+	}
+}
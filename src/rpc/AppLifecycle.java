@@ -0,0 +1,43 @@
+package rpc;
+
+import java.io.File;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+import algorithm.RecommendationPrecomputer;
+import db.FavoriteWriteBuffer;
+import external.CachePrefetcher;
+import logging.AccessLog;
+import snapshot.WarmStart;
+
+/**
+ * Starts and stops the background workers with the web application.
+ */
+@WebListener
+public class AppLifecycle implements ServletContextListener {
+
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		// Optional context-param in web.xml, defaults to $CATALINA_BASE/logs.
+		String logDir = event.getServletContext().getInitParameter("accessLogDir");
+		AccessLog.start(logDir == null ? null : new File(logDir));
+		// Optional context-param too, defaults to $CATALINA_BASE/work.
+		String snapshotFile = event.getServletContext().getInitParameter("snapshotFile");
+		WarmStart.start(snapshotFile == null ? null : new File(snapshotFile));
+		CachePrefetcher.start();
+		FavoriteWriteBuffer.start();
+		RecommendationPrecomputer.start();
+	}
+
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		RecommendationPrecomputer.stop();
+		CachePrefetcher.stop();
+		FavoriteWriteBuffer.stop();
+		WarmStart.stop();
+		AccessLog.stop();
+	}
+
+}
@@ -0,0 +1,116 @@
+package rpc;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import logging.AccessLog;
+import metrics.Metrics;
+
+/**
+ * Takes the user of an API request from its session, which lives in memory,
+ * instead of trusting the user_id the client sends. Requests without a
+ * logged in session get 401, unless -Dauth.optional=true, e.g. for load
+ * tests that drive many users without logging them in. That is honoured only
+ * with -Ddb.backend=embedded, which production does not run, and is logged at
+ * startup. Mapped in web.xml, inside RequestMetricsFilter.
+ */
+public class AuthFilter implements Filter {
+	// Session attributes set by Login.
+	static final String USER_ID = "user_id";
+	static final String NAME = "name";
+
+	private static final boolean OPTIONAL_REQUESTED = Boolean.getBoolean("auth.optional");
+	private static final boolean OPTIONAL = optional(OPTIONAL_REQUESTED, System.getProperty("db.backend", "mysql"));
+
+	@Override
+	public void init(FilterConfig config) throws ServletException {
+		String warning = null;
+		if (OPTIONAL) {
+			warning = "auth.optional=true: API requests without a session are NOT authenticated";
+		} else if (OPTIONAL_REQUESTED) {
+			warning = "auth.optional=true is ignored, it needs -Ddb.backend=embedded";
+		}
+		if (warning != null) {
+			AccessLog.error("auth.filter", warning, null);
+		}
+	}
+
+	/**
+	 * @return whether requests without a session are let through
+	 */
+	static boolean optional(boolean requested, String backend) {
+		return requested && "embedded".equals(backend);
+	}
+
+	@Override
+	public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
+			throws IOException, ServletException {
+		HttpServletRequest request = (HttpServletRequest) req;
+		HttpServletResponse response = (HttpServletResponse) res;
+
+		HttpSession session = request.getSession(false);
+		final String userId = session == null ? null : (String) session.getAttribute(USER_ID);
+		if (userId == null) {
+			Metrics.increment("auth_sessions_total", "result", "missing");
+			if (OPTIONAL) {
+				chain.doFilter(req, res);
+				return;
+			}
+			RpcHelper.respond(response, HttpServletResponse.SC_UNAUTHORIZED, "Invalid Session");
+			return;
+		}
+		Metrics.increment("auth_sessions_total", "result", "valid");
+
+		request.setAttribute(USER_ID, userId);
+		chain.doFilter(new HttpServletRequestWrapper(request) {
+			@Override
+			public String getParameter(String name) {
+				return USER_ID.equals(name) ? userId : super.getParameter(name);
+			}
+
+			@Override
+			public String[] getParameterValues(String name) {
+				return USER_ID.equals(name) ? new String[] { userId } : super.getParameterValues(name);
+			}
+		}, res);
+	}
+
+	/**
+	 * The user a request acts as, whichever filter asks first.
+	 *
+	 * @return the session's user, or with auth.optional the claimed user_id;
+	 *         null if there is none
+	 */
+	static String sessionUserId(HttpServletRequest request) {
+		HttpSession session = request.getSession(false);
+		String userId = session == null ? null : (String) session.getAttribute(USER_ID);
+		return userId == null && OPTIONAL ? request.getParameter(USER_ID) : userId;
+	}
+
+	/**
+	 * The user of a request whose user_id is in the body rather than the query.
+	 *
+	 * @param claimed
+	 *            user_id sent by the client, used only without a session
+	 * @return the session's user if there is one, else claimed
+	 */
+	static String userId(HttpServletRequest request, String claimed) {
+		Object userId = request.getAttribute(USER_ID);
+		return userId != null ? (String) userId : claimed;
+	}
+
+	@Override
+	public void destroy() {
+	}
+
+}
@@ -1,8 +1,8 @@
 package rpc;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
 import javax.servlet.ServletException;
@@ -17,7 +17,10 @@ import org.json.JSONObject;
 
 import db.DBConnection;
 import db.DBConnectionFactory;
+import db.FavoriteVersions;
+import db.FavoriteWriteBuffer;
 import entity.Item;
+import metrics.Trace;
 
 /**
  * Servlet implementation class ItemHistory
@@ -39,10 +42,20 @@ public class ItemHistory extends HttpServlet {
 	 */
 	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 		String userId = request.getParameter("user_id");
+		if (userId == null) {
+			RpcHelper.respond(response, HttpServletResponse.SC_BAD_REQUEST, "Missing user_id");
+			return;
+		}
+		if (RpcHelper.notModified(request, response, "h" + FavoriteVersions.get(userId))) {
+			return;
+		}
 		JSONArray array = new JSONArray();
 
+		// Read your own writes.
+		FavoriteWriteBuffer.flush(userId);
 		DBConnection conn = DBConnectionFactory.getConnection();
 		Set<Item> items = conn.getFavoriteItems(userId);
+		conn.close();
 		for (Item item : items) {
 			JSONObject obj = item.toJSONObject();
 			try {
@@ -52,6 +65,7 @@ public class ItemHistory extends HttpServlet {
 			}
 			array.put(obj);
 		}
+		Trace.setResultCount(array.length());
 		RpcHelper.writeJsonArray(response, array);
 
 	}
@@ -62,17 +76,15 @@ public class ItemHistory extends HttpServlet {
 	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 		try {
 			JSONObject input = RpcHelper.readJsonObject(request);
-			String userId = input.getString("user_id");
+			String userId = AuthFilter.userId(request, input.getString("user_id"));
 			
 			JSONArray array = input.getJSONArray("favorite");
-			List<String> itemIds = new ArrayList<>();
+			Map<String, Boolean> changes = new LinkedHashMap<>();
 			for (int i = 0; i < array.length(); ++i) {
-				itemIds.add(array.get(i).toString());
+				changes.put(array.get(i).toString(), true);
 			}
 			
-			DBConnection conn = DBConnectionFactory.getConnection();
-			conn.setFavoriteItems(userId, itemIds);
-			conn.close();
+			FavoriteWriteBuffer.enqueue(userId, changes);
 			
 			RpcHelper.writeJsonObject(response,
 					new JSONObject().put("result", "SUCCESS"));
@@ -88,17 +100,15 @@ public class ItemHistory extends HttpServlet {
 	protected void doDelete(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 		try {
 			JSONObject input = RpcHelper.readJsonObject(request);
-			String userId = input.getString("user_id");
+			String userId = AuthFilter.userId(request, input.getString("user_id"));
 			
 			JSONArray array = input.getJSONArray("favorite");
-			List<String> itemIds = new ArrayList<>();
+			Map<String, Boolean> changes = new LinkedHashMap<>();
 			for (int i = 0; i < array.length(); ++i) {
-				itemIds.add(array.get(i).toString());
+				changes.put(array.get(i).toString(), false);
 			}
 			
-			DBConnection conn = DBConnectionFactory.getConnection();
-			conn.unsetFavoriteItems(userId, itemIds);
-			conn.close();
+			FavoriteWriteBuffer.enqueue(userId, changes);
 			
 			RpcHelper.writeJsonObject(response,
 					new JSONObject().put("result", "SUCCESS"));
@@ -0,0 +1,72 @@
+package rpc;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import db.FavoriteWriteBuffer;
+
+/**
+ * Servlet implementation class ItemHistoryBatch
+ */
+@WebServlet("/history/batch")
+public class ItemHistoryBatch extends HttpServlet {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @see HttpServlet#HttpServlet()
+	 */
+	public ItemHistoryBatch() {
+		super();
+	}
+
+	/**
+	 * Adds and removes favorites in one request. Request json data: { user_id:
+	 * 1111, changes: [{ item_id: abc, favorite: true }, ...] }. Later changes
+	 * of the same item win.
+	 * 
+	 * @see HttpServlet#doPost(HttpServletRequest request, HttpServletResponse response)
+	 */
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		try {
+			JSONObject input = RpcHelper.readJsonObject(request);
+			if (input == null) {
+				throw new JSONException("Request body is not a JSON object");
+			}
+			String userId = AuthFilter.userId(request, input.getString("user_id"));
+
+			JSONArray array = input.getJSONArray("changes");
+			Map<String, Boolean> changes = new LinkedHashMap<>();
+			for (int i = 0; i < array.length(); ++i) {
+				JSONObject change = array.getJSONObject(i);
+				String itemId = change.getString("item_id");
+				changes.remove(itemId);
+				changes.put(itemId, change.getBoolean("favorite"));
+			}
+
+			FavoriteWriteBuffer.enqueue(userId, changes);
+
+			RpcHelper.writeJsonObject(response,
+					new JSONObject().put("result", "SUCCESS").put("changes", changes.size()));
+		} catch (JSONException e) {
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			try {
+				RpcHelper.writeJsonObject(response,
+						new JSONObject().put("result", "FAILED").put("error", e.getMessage()));
+			} catch (JSONException e1) {
+				e1.printStackTrace();
+			}
+		}
+	}
+
+}
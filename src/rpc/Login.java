@@ -0,0 +1,134 @@
+package rpc;
+
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import auth.Authenticator;
+import logging.AccessLog;
+import metrics.Metrics;
+
+/**
+ * Servlet implementation class Login
+ */
+@WebServlet(urlPatterns = "/login", asyncSupported = true)
+public class Login extends HttpServlet {
+	private static final long serialVersionUID = 1L;
+	// Idle sessions log out after this long.
+	private static final int SESSION_SECONDS = Integer.getInteger("auth.sessionSeconds", 30 * 60);
+
+	/**
+	 * @see HttpServlet#HttpServlet()
+	 */
+	public Login() {
+		super();
+	}
+
+	/**
+	 * Whether the session is logged in.
+	 *
+	 * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse response)
+	 */
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		HttpSession session = request.getSession(false);
+		if (session == null || session.getAttribute(AuthFilter.USER_ID) == null) {
+			RpcHelper.respond(response, HttpServletResponse.SC_FORBIDDEN, "Invalid Session");
+			return;
+		}
+		try {
+			RpcHelper.writeJsonObject(response, new JSONObject().put("status", "OK")
+					.put("user_id", session.getAttribute(AuthFilter.USER_ID))
+					.put("name", session.getAttribute(AuthFilter.NAME)));
+		} catch (JSONException e) {
+			AccessLog.error("auth.login", "Cannot build session status", e);
+		}
+	}
+
+	/**
+	 * Log in. Request json data: { user_id: 1111, password: md5(user_id +
+	 * md5(password)) }. A credential verified recently is answered right away,
+	 * others are verified on the password hashing pool and get 503 when it is
+	 * full.
+	 *
+	 * @see HttpServlet#doPost(HttpServletRequest request, HttpServletResponse response)
+	 */
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		final long start = System.nanoTime();
+		JSONObject input = RpcHelper.readJsonObject(request);
+		final String userId = input == null ? "" : input.optString("user_id");
+		final String password = input == null ? "" : input.optString("password");
+		if (userId.isEmpty() || password.isEmpty()) {
+			RpcHelper.respond(response, HttpServletResponse.SC_BAD_REQUEST, "Missing user_id or password");
+			return;
+		}
+
+		String fullname = Authenticator.cachedLogin(userId, password);
+		if (fullname != null) {
+			loggedIn(request, response, userId, fullname, start);
+			return;
+		}
+
+		final AsyncContext async = request.startAsync();
+		try {
+			Authenticator.execute(new Runnable() {
+				@Override
+				public void run() {
+					HttpServletRequest request = (HttpServletRequest) async.getRequest();
+					HttpServletResponse response = (HttpServletResponse) async.getResponse();
+					try {
+						String fullname = Authenticator.login(userId, password);
+						if (fullname != null) {
+							loggedIn(request, response, userId, fullname, start);
+						} else {
+							Metrics.increment("auth_total", "result", "failed");
+							Metrics.histogram("auth_seconds", "op", "login").record(System.nanoTime() - start);
+							RpcHelper.respond(response, HttpServletResponse.SC_UNAUTHORIZED, "Invalid Credentials");
+						}
+					} catch (RuntimeException e) {
+						AccessLog.error("auth.login", "Cannot verify login of " + userId, e);
+						RpcHelper.respond(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Error");
+					} finally {
+						async.complete();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			Metrics.increment("auth_total", "result", "rejected");
+			RpcHelper.rejected(response);
+			async.complete();
+		}
+	}
+
+	private static void loggedIn(HttpServletRequest request, HttpServletResponse response, String userId,
+			String fullname, long start) {
+		// A new session id on login, so one fixed before it is worthless.
+		HttpSession session = request.getSession(false);
+		if (session != null) {
+			session.invalidate();
+		}
+		session = request.getSession(true);
+		session.setAttribute(AuthFilter.USER_ID, userId);
+		session.setAttribute(AuthFilter.NAME, fullname);
+		session.setMaxInactiveInterval(SESSION_SECONDS);
+
+		Metrics.increment("auth_total", "result", "ok");
+		Metrics.histogram("auth_seconds", "op", "login").record(System.nanoTime() - start);
+		try {
+			RpcHelper.writeJsonObject(response,
+					new JSONObject().put("status", "OK").put("user_id", userId).put("name", fullname));
+		} catch (JSONException e) {
+			AccessLog.error("auth.login", "Cannot build login response for " + userId, e);
+		}
+	}
+
+}
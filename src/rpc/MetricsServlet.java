@@ -0,0 +1,38 @@
+package rpc;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import metrics.Metrics;
+
+/**
+ * Servlet implementation class MetricsServlet
+ *
+ * GET /metrics returns the Prometheus text format, /metrics?format=json the
+ * same numbers with p50/p95/p99 as JSON.
+ */
+@WebServlet("/metrics")
+public class MetricsServlet extends HttpServlet {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse response)
+	 */
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if ("json".equals(request.getParameter("format"))) {
+			RpcHelper.writeJsonObject(response, Metrics.toJSONObject());
+			return;
+		}
+		response.setContentType("text/plain; version=0.0.4");
+		PrintWriter out = response.getWriter();
+		Metrics.writePrometheus(out);
+		out.close();
+	}
+
+}
@@ -15,7 +15,14 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import algorithm.GeoRecommendation;
+import algorithm.GeoRecommendation.Profile;
+import algorithm.RecommendationStore;
 import entity.Item;
+import external.EventCache;
+import external.GeoHash;
+import metrics.Metrics;
+import metrics.Trace;
+import metrics.Trace.Span;
 
 /**
  * Servlet implementation class RecommendItem
@@ -38,11 +45,30 @@ public class RecommendItem extends HttpServlet {
 	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 		// TODO Auto-generated method stub
 		String userId = request.getParameter("user_id");
+		if (userId == null) {
+			RpcHelper.respond(response, HttpServletResponse.SC_BAD_REQUEST, "Missing user_id");
+			return;
+		}
 		double lat = Double.parseDouble(request.getParameter("lat"));
 		double lon = Double.parseDouble(request.getParameter("lon"));
+		RecommendationStore.recordRegion(userId, lat, lon);
+		// Read once, for the tag and, unless the client has the response, the
+		// recommendations.
+		Span span = Trace.span("recommend.histogram");
+		Profile profile = GeoRecommendation.profile(userId);
+		span.end();
+		if (RpcHelper.notModified(request, response, etag(profile, lat, lon))) {
+			return;
+		}
 		
-		GeoRecommendation recommendation = new GeoRecommendation();
-		List<Item> items = recommendation.recommendItems(userId, lat, lon);
+		List<Item> items = RecommendationStore.get(userId, lat, lon);
+		if (items != null) {
+			Metrics.increment("recommendations_total", "source", "precomputed");
+		} else {
+			Metrics.increment("recommendations_total", "source", "live");
+			GeoRecommendation recommendation = new GeoRecommendation();
+			items = recommendation.recommendItems(profile, lat, lon);
+		}
 		
 		JSONArray result = new JSONArray();
 		try {
@@ -53,10 +79,28 @@ public class RecommendItem extends HttpServlet {
 			e.printStackTrace();
 		}
 		
+		Trace.setResultCount(result.length());
 		RpcHelper.writeJsonArray(response, result);
 
 	}
 
+	/**
+	 * Recommendations only change with the user's favorites, the user's cell and
+	 * the cached events of the cell for the user's categories. A 304 never
+	 * refetches expired cache entries, so the tag also rolls over once per cache
+	 * freshness period.
+	 */
+	static String etag(Profile profile, double lat, double lon) {
+		String version = profile.getFavoritesVersion();
+		long generations = 1;
+		for (String category : profile.getCategories()) {
+			generations = 31 * generations + EventCache.generation(EventCache.key(lat, lon, category));
+		}
+		long period = System.currentTimeMillis() / EventCache.FRESH_MILLIS;
+		return "r" + version + "-" + Long.toHexString(generations) + "-"
+				+ GeoHash.encodeGeohash(lat, lon, EventCache.KEY_PRECISION) + "-" + Long.toString(period, 36);
+	}
+
 	/**
 	 * @see HttpServlet#doPost(HttpServletRequest request, HttpServletResponse response)
 	 */
@@ -0,0 +1,209 @@
+package rpc;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import algorithm.GeoRecommendation;
+import algorithm.GeoRecommendation.Profile;
+import algorithm.RecommendationStore;
+import analytics.TrafficStats;
+import db.DBConnection;
+import db.DBConnectionFactory;
+import db.FavoriteWriteBuffer;
+import entity.Item;
+import external.SearchResult;
+import logging.AccessLog;
+import metrics.Metrics;
+import metrics.Trace;
+import metrics.Trace.Span;
+
+/**
+ * Servlet implementation class RecommendItemStream
+ *
+ * Same recommendations as /recommendation, sent as Server-Sent Events. The
+ * category searches run in parallel and each category's ranked items are
+ * sent as an "items" event in profile order, as soon as its search and those
+ * of the categories before it finished. A "complete" event ends the stream.
+ * Both carry "stale": true when some results are not live, a category's
+ * items for that category and "complete" for the whole list.
+ */
+@WebServlet("/recommendation/stream")
+public class RecommendItemStream extends HttpServlet {
+	private static final long serialVersionUID = 1L;
+	// Give up on categories still searching after this long.
+	private static final long DEADLINE_MILLIS = 30 * 1000;
+
+	private static final ExecutorService searches = Executors.newFixedThreadPool(
+			Integer.getInteger("recommend.stream.threads", 16), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "recommendation-search");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * @see HttpServlet#HttpServlet()
+	 */
+	public RecommendItemStream() {
+		super();
+	}
+
+	/**
+	 * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse response)
+	 */
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		String userId = request.getParameter("user_id");
+		if (userId == null) {
+			RpcHelper.respond(response, HttpServletResponse.SC_BAD_REQUEST, "Missing user_id");
+			return;
+		}
+		final double lat = Double.parseDouble(request.getParameter("lat"));
+		final double lon = Double.parseDouble(request.getParameter("lon"));
+		RecommendationStore.recordRegion(userId, lat, lon);
+		FavoriteWriteBuffer.flush(userId);
+
+		response.setContentType("text/event-stream");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		response.addHeader("Access-Control-Allow-Origin", "*");
+		PrintWriter out = response.getWriter();
+
+		try {
+			List<Item> precomputed = RecommendationStore.get(userId, lat, lon);
+			if (precomputed != null) {
+				Metrics.increment("recommendations_total", "source", "precomputed");
+				send(out, "items", new JSONObject().put("items", toJSONArray(precomputed)).put("stale", false));
+				complete(out, precomputed.size(), false);
+			} else {
+				Metrics.increment("recommendations_total", "source", "live");
+				streamLive(out, userId, lat, lon);
+			}
+		} catch (JSONException e) {
+			AccessLog.error("recommend.stream", "Cannot build recommendation event", e);
+		}
+		out.close();
+	}
+
+	private void streamLive(PrintWriter out, String userId, final double lat, final double lon)
+			throws JSONException {
+		Span span = Trace.span("recommend.histogram");
+		DBConnection conn = DBConnectionFactory.getConnection();
+		Profile profile;
+		try {
+			profile = GeoRecommendation.profile(conn, userId);
+		} finally {
+			conn.close();
+		}
+		span.end();
+
+		List<Future<SearchResult>> futures = new ArrayList<>();
+		for (final String category : profile.getCategories()) {
+			TrafficStats.recordCategory(category);
+			futures.add(searches.submit(new Callable<SearchResult>() {
+				@Override
+				public SearchResult call() {
+					DBConnection conn = DBConnectionFactory.getConnection();
+					try {
+						return GeoRecommendation.search(conn, lat, lon, category);
+					} finally {
+						conn.close();
+					}
+				}
+			}));
+		}
+
+		// Categories are sent in profile order, as /recommendation ranks them. A
+		// category that finishes early waits for those before it.
+		Set<Item> visitedItems = new HashSet<>();
+		long deadline = System.currentTimeMillis() + DEADLINE_MILLIS;
+		int count = 0;
+		boolean stale = false;
+		for (int i = 0; i < futures.size(); ++i) {
+			SearchResult result;
+			span = Trace.span("recommend.fanout");
+			try {
+				result = futures.get(i).get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				Metrics.increment("recommendation_stream_timeouts_total", null, null);
+				stale = true;
+				break;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (ExecutionException e) {
+				AccessLog.error("recommend.stream", "Category search failed", e);
+				stale = true;
+				continue;
+			} finally {
+				span.end();
+			}
+			// Back on the request thread, where the Trace is.
+			result.trace();
+			stale |= result.isStale();
+
+			span = Trace.span("recommend.ranking");
+			List<Item> ranked = GeoRecommendation.rankCategory(profile, result.getItems(), visitedItems);
+			span.end();
+			if (!send(out, "items", new JSONObject().put("category", profile.getCategories().get(i))
+					.put("items", toJSONArray(ranked)).put("stale", result.isStale()))) {
+				// The client went away.
+				break;
+			}
+			count += ranked.size();
+		}
+		for (Future<SearchResult> future : futures) {
+			future.cancel(true);
+		}
+		complete(out, count, stale);
+	}
+
+	private static void complete(PrintWriter out, int count, boolean stale) throws JSONException {
+		Trace.setResultCount(count);
+		send(out, "complete", new JSONObject().put("count", count).put("stale", stale));
+	}
+
+	private static JSONArray toJSONArray(List<Item> items) {
+		JSONArray array = new JSONArray();
+		for (Item item : items) {
+			array.put(item.toJSONObject());
+		}
+		return array;
+	}
+
+	/**
+	 * Write one event and push it to the client.
+	 *
+	 * @return false once the client has disconnected
+	 */
+	private static boolean send(PrintWriter out, String event, JSONObject data) {
+		out.write("event: " + event + "\n");
+		out.write("data: " + data + "\n\n");
+		out.flush();
+		return !out.checkError();
+	}
+
+}
@@ -0,0 +1,82 @@
+package rpc;
+
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONObject;
+
+import auth.Authenticator;
+import logging.AccessLog;
+import metrics.Metrics;
+
+/**
+ * Servlet implementation class Register
+ */
+@WebServlet(urlPatterns = "/register", asyncSupported = true)
+public class Register extends HttpServlet {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @see HttpServlet#HttpServlet()
+	 */
+	public Register() {
+		super();
+	}
+
+	/**
+	 * Add a user. Request json data: { user_id: 1111, password: md5(user_id +
+	 * md5(password)), first_name: John, last_name: Smith }. The password is
+	 * hashed on the password hashing pool, 503 when it is full.
+	 *
+	 * @see HttpServlet#doPost(HttpServletRequest request, HttpServletResponse response)
+	 */
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		final long start = System.nanoTime();
+		JSONObject input = RpcHelper.readJsonObject(request);
+		final String userId = input == null ? "" : input.optString("user_id");
+		final String password = input == null ? "" : input.optString("password");
+		if (userId.isEmpty() || password.isEmpty()) {
+			RpcHelper.respond(response, HttpServletResponse.SC_BAD_REQUEST, "Missing user_id or password");
+			return;
+		}
+		final String firstname = input.optString("first_name");
+		final String lastname = input.optString("last_name");
+
+		final AsyncContext async = request.startAsync();
+		try {
+			Authenticator.execute(new Runnable() {
+				@Override
+				public void run() {
+					HttpServletResponse response = (HttpServletResponse) async.getResponse();
+					try {
+						if (Authenticator.register(userId, password, firstname, lastname)) {
+							Metrics.increment("auth_registrations_total", "result", "ok");
+							RpcHelper.respond(response, HttpServletResponse.SC_OK, "OK");
+						} else {
+							Metrics.increment("auth_registrations_total", "result", "exists");
+							RpcHelper.respond(response, HttpServletResponse.SC_CONFLICT, "User Already Exists");
+						}
+						Metrics.histogram("auth_seconds", "op", "register").record(System.nanoTime() - start);
+					} catch (RuntimeException e) {
+						AccessLog.error("auth.register", "Cannot register " + userId, e);
+						RpcHelper.respond(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Error");
+					} finally {
+						async.complete();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			Metrics.increment("auth_total", "result", "rejected");
+			RpcHelper.rejected(response);
+			async.complete();
+		}
+	}
+
+}
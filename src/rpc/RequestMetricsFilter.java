@@ -0,0 +1,79 @@
+package rpc;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import analytics.TrafficStats;
+import external.GeoHash;
+import logging.AccessLog;
+import metrics.Metrics;
+import metrics.Trace;
+
+/**
+ * Times every API request, counts errors and writes one access log record per
+ * request with its trace spans. Mapped in web.xml, outside AuthFilter.
+ */
+public class RequestMetricsFilter implements Filter {
+
+	@Override
+	public void init(FilterConfig config) throws ServletException {
+	}
+
+	@Override
+	public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
+			throws IOException, ServletException {
+		HttpServletRequest request = (HttpServletRequest) req;
+		HttpServletResponse response = (HttpServletResponse) res;
+		String endpoint = request.getServletPath();
+
+		Trace trace = Trace.start(endpoint);
+		// Not the user_id the client claims, AuthFilter may reject it.
+		Trace.setUserId(AuthFilter.sessionUserId(request));
+		Trace.setGeoHash(geoHashBucket(request));
+		boolean failed = false;
+		try {
+			chain.doFilter(req, res);
+		} catch (IOException | ServletException | RuntimeException e) {
+			failed = true;
+			throw e;
+		} finally {
+			long nanos = trace.elapsedNanos();
+			Trace.finish();
+
+			Metrics.histogram("http_request_seconds", "endpoint", endpoint).record(nanos);
+			int status = failed ? 500 : response.getStatus();
+			if (status >= 500) {
+				Metrics.increment("http_errors_total", "endpoint", endpoint);
+			}
+			AccessLog.request(endpoint, request.getMethod(), status, nanos, trace);
+			TrafficStats.recordRequest(endpoint, trace.getUserId(), trace.getGeoHash());
+		}
+	}
+
+	// Region of the request, ~40km cells are fine enough for traffic analysis.
+	private static String geoHashBucket(HttpServletRequest request) {
+		String lat = request.getParameter("lat");
+		String lon = request.getParameter("lon");
+		if (lat == null || lon == null) {
+			return null;
+		}
+		try {
+			return GeoHash.encodeGeohash(Double.parseDouble(lat), Double.parseDouble(lon), 4);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public void destroy() {
+	}
+
+}
@@ -7,8 +7,13 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import logging.AccessLog;
+import metrics.Metrics;
+import metrics.Trace;
+
 public class RpcHelper {
 	public static void writeJsonObject(HttpServletResponse response,JSONObject obj) {
 		try {
@@ -27,6 +32,10 @@ public class RpcHelper {
 		try {
 				response.setContentType("application/json");
 				response.addHeader("Access-Control-Allow-Origin", "*");
+				if (Trace.isStale()) {
+					// Some upstream results are a fallback copy, not live data.
+					response.addHeader("X-Stale-Results", "true");
+				}
 				PrintWriter out = response.getWriter();
 				out.print(array);
 				out.close();
@@ -35,6 +44,56 @@ public class RpcHelper {
 		}
 	}
 	
+	/**
+	 * Answer with a status and { status: message }.
+	 */
+	public static void respond(HttpServletResponse response, int status, String message) {
+		response.setStatus(status);
+		try {
+			writeJsonObject(response, new JSONObject().put("status", message));
+		} catch (JSONException e) {
+			AccessLog.error("rpc.respond", "Cannot write status " + status, e);
+		}
+	}
+
+	/**
+	 * Answer 503 because a bounded pool is full, asking the client to retry
+	 * shortly.
+	 */
+	public static void rejected(HttpServletResponse response) {
+		response.setHeader("Retry-After", "1");
+		respond(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Busy");
+	}
+
+	/**
+	 * Tags the response with etag and, if the client already has that version,
+	 * answers 304 Not Modified. Clients must revalidate on every use.
+	 *
+	 * @return whether the 304 was sent and there is nothing left to write
+	 */
+	public static boolean notModified(HttpServletRequest request, HttpServletResponse response, String etag) {
+		String quoted = "\"" + etag + "\"";
+		response.setHeader("ETag", quoted);
+		response.setHeader("Cache-Control", "no-cache");
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+			if (candidate.equals(quoted) || candidate.equals("*")) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				response.addHeader("Access-Control-Allow-Origin", "*");
+				Metrics.increment("http_not_modified_total", "endpoint", request.getServletPath());
+				return true;
+			}
+		}
+		return false;
+	}
+
 	// Parses a JSONObject from http request
 	public static JSONObject readJsonObject(HttpServletRequest request) {
 		StringBuilder sb = new StringBuilder();
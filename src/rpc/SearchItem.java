@@ -11,8 +11,11 @@ import org.json.JSONObject;
 
 import db.DBConnection;
 import db.DBConnectionFactory;
+import db.FavoriteWriteBuffer;
 import entity.Item;
+import external.SearchResult;
 import external.TicketMasterAPI;
+import metrics.Trace;
 
 import org.json.JSONArray;
 
@@ -29,6 +32,7 @@ import javax.servlet.http.HttpServletResponse;
 @WebServlet("/search")
 public class SearchItem extends HttpServlet {
 	private static final long serialVersionUID = 1L;
+	private static final int MAX_LIMIT = 200;
        
     /**
      * @see HttpServlet#HttpServlet()
@@ -43,13 +47,31 @@ public class SearchItem extends HttpServlet {
 	 */
 	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 		String userId = request.getParameter("user_id");
+		if (userId == null) {
+			RpcHelper.respond(response, HttpServletResponse.SC_BAD_REQUEST, "Missing user_id");
+			return;
+		}
 		double lat = Double.parseDouble(request.getParameter("lat"));
 		double lon = Double.parseDouble(request.getParameter("lon"));
 		// Term can be empty or null.
 		String term = request.getParameter("term");
+		// Limit is optional, pages past it are never fetched.
+		int limit = TicketMasterAPI.DEFAULT_LIMIT;
+		if (request.getParameter("limit") != null) {
+			try {
+				limit = Math.max(1, Math.min(MAX_LIMIT, Integer.parseInt(request.getParameter("limit"))));
+			} catch (NumberFormatException e) {
+				RpcHelper.respond(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid limit");
+				return;
+			}
+		}
 
+		// Read the user's own favorite writes.
+		FavoriteWriteBuffer.flush(userId);
 		DBConnection conn = DBConnectionFactory.getConnection();
-		List<Item> items = conn.searchItems(lat, lon, term);
+		SearchResult result = conn.searchItems(lat, lon, term, limit);
+		result.trace();
+		List<Item> items = result.getItems();
 
 		Set<String> favorite = conn.getFavoriteItemIds(userId);
 		conn.close();
@@ -69,6 +91,7 @@ public class SearchItem extends HttpServlet {
 			e.printStackTrace();
 		}
 		JSONArray array = new JSONArray(list);
+		Trace.setResultCount(array.length());
 		RpcHelper.writeJsonArray(response, array);
 
 	}
@@ -0,0 +1,40 @@
+package rpc;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import analytics.TrafficStats;
+
+/**
+ * Servlet implementation class StatsServlet
+ *
+ * GET /stats?windows=15 returns the last 15 one-minute traffic windows and an
+ * aggregate over them (default 10, at most 60).
+ */
+@WebServlet("/stats")
+public class StatsServlet extends HttpServlet {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse response)
+	 */
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		int windows = 10;
+		String param = request.getParameter("windows");
+		if (param != null) {
+			try {
+				windows = Math.max(1, Math.min(60, Integer.parseInt(param)));
+			} catch (NumberFormatException e) {
+				response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+				return;
+			}
+		}
+		RpcHelper.writeJsonObject(response, TrafficStats.toJSONObject(windows));
+	}
+
+}
@@ -0,0 +1,358 @@
+package snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import algorithm.RecommendationStore;
+import entity.Item;
+import entity.Item.ItemBuilder;
+import external.EventCache;
+import logging.AccessLog;
+import metrics.Metrics;
+
+/**
+ * A snapshot file mapped into memory. Only the header and the index are read
+ * when it is opened; a record is decoded the first time it is asked for, so
+ * startup cost does not grow with the cached data and untouched pages are
+ * never read from disk.
+ *
+ * Layout, big-endian:
+ * <pre>
+ * header  int magic, int format version, long created at, int record count,
+ *         int index length, int CRC32 of header and index, int reserved
+ * index   per record: byte type, short key length, key (UTF-8), long timestamp,
+ *         int data offset, int data length, int CRC32 of data
+ * data    the records
+ * </pre>
+ *
+ * Records whose timestamp is past their type's TTL are dropped from the
+ * index when the file is opened.
+ */
+public class MappedSnapshot implements EventCache.Loader, RecommendationStore.Loader {
+	public static final int MAGIC = 0x45525353; // "ERSS"
+	public static final int FORMAT_VERSION = 1;
+	public static final int HEADER_SIZE = 32;
+
+	public static final int EVENT_CACHE = 1;
+	public static final int RECOMMENDATION = 2;
+	public static final int CELL_ITEMS = 3;
+	public static final int REGION = 4;
+
+	/**
+	 * Where an unread record is.
+	 */
+	private static class Ref {
+		private final int type;
+		private final String key;
+		private final long timestamp;
+		private final int offset;
+		private final int length;
+		private final int crc;
+
+		Ref(int type, String key, long timestamp, int offset, int length, int crc) {
+			this.type = type;
+			this.key = key;
+			this.timestamp = timestamp;
+			this.offset = offset;
+			this.length = length;
+			this.crc = crc;
+		}
+	}
+
+	private final MappedByteBuffer buffer;
+	private final int dataStart;
+	// type:key -> record not yet handed out
+	private final Map<String, Ref> unread = new ConcurrentHashMap<>();
+
+	private MappedSnapshot(MappedByteBuffer buffer, int dataStart) {
+		this.buffer = buffer;
+		this.dataStart = dataStart;
+	}
+
+	/**
+	 * Map a snapshot and read its index.
+	 *
+	 * @return the snapshot, or null if there is none or it is unusable
+	 */
+	public static MappedSnapshot open(File file) {
+		if (!file.exists()) {
+			return null;
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			// The mapping stays valid after the channel is closed.
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return read(buffer);
+		} catch (IOException | RuntimeException e) {
+			AccessLog.error("snapshot.restore", "Cannot read snapshot " + file, e);
+			return null;
+		}
+	}
+
+	private static MappedSnapshot read(MappedByteBuffer buffer) {
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			reject("bad_magic");
+			return null;
+		}
+		if (buffer.getInt(4) != FORMAT_VERSION) {
+			// Written by another version of the service, start cold.
+			reject("version");
+			return null;
+		}
+		int records = buffer.getInt(16);
+		int indexLength = buffer.getInt(20);
+		if (indexLength < 0 || HEADER_SIZE + (long) indexLength > buffer.capacity()) {
+			reject("truncated");
+			return null;
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(slice(buffer, 0, 24));
+		crc.update(slice(buffer, HEADER_SIZE, indexLength));
+		if ((int) crc.getValue() != buffer.getInt(24)) {
+			reject("checksum");
+			return null;
+		}
+
+		MappedSnapshot snapshot = new MappedSnapshot(buffer, HEADER_SIZE + indexLength);
+		long now = System.currentTimeMillis();
+		ByteBuffer index = slice(buffer, HEADER_SIZE, indexLength);
+		int expired = 0;
+		for (int i = 0; i < records; ++i) {
+			int type = index.get();
+			byte[] keyBytes = new byte[index.getShort() & 0xffff];
+			index.get(keyBytes);
+			String key = new String(keyBytes, StandardCharsets.UTF_8);
+			long timestamp = index.getLong();
+			Ref ref = new Ref(type, key, timestamp, index.getInt(), index.getInt(), index.getInt());
+			if (snapshot.dataStart + (long) ref.offset + ref.length > buffer.capacity()) {
+				reject("truncated");
+				return null;
+			}
+			if (now - timestamp >= ttl(type)) {
+				expired++;
+				continue;
+			}
+			snapshot.unread.put(type + ":" + key, ref);
+		}
+		Metrics.add("snapshot_records_expired_total", null, null, expired);
+		return snapshot;
+	}
+
+	private static long ttl(int type) {
+		switch (type) {
+		case EVENT_CACHE:
+			return EventCache.STALE_MILLIS;
+		case RECOMMENDATION:
+		case CELL_ITEMS:
+			return RecommendationStore.FRESH_MILLIS;
+		case REGION:
+			return RecommendationStore.REGION_MILLIS;
+		default:
+			// Unknown to this version, drop it.
+			return 0;
+		}
+	}
+
+	private static void reject(String reason) {
+		Metrics.increment("snapshot_rejected_total", "reason", reason);
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer slice = buffer.duplicate();
+		slice.position(offset);
+		slice.limit(offset + length);
+		return slice.slice();
+	}
+
+	/**
+	 * @return the records not handed out yet
+	 */
+	public int size() {
+		return unread.size();
+	}
+
+	/**
+	 * Take a record out of the snapshot, so it is handed out at most once.
+	 *
+	 * @return the record, or null if there is none
+	 */
+	private Ref take(int type, String key) {
+		return unread.remove(type + ":" + key);
+	}
+
+	/**
+	 * @return the record's data, or null if it is corrupt
+	 */
+	private ByteBuffer data(Ref ref) {
+		ByteBuffer data = slice(buffer, dataStart + ref.offset, ref.length);
+		CRC32 crc = new CRC32();
+		crc.update(data.duplicate());
+		if ((int) crc.getValue() != ref.crc) {
+			reject("record_checksum");
+			return null;
+		}
+		Metrics.increment("snapshot_records_loaded_total", "type", String.valueOf(ref.type));
+		return data;
+	}
+
+	@Override
+	public EventCache.Entry load(String key) {
+		Ref ref = take(EVENT_CACHE, key);
+		ByteBuffer data = ref == null ? null : data(ref);
+		if (data == null) {
+			return null;
+		}
+		try {
+			double lat = data.getDouble();
+			double lon = data.getDouble();
+			String keyword = readString(data);
+			boolean complete = data.get() != 0;
+			List<Item> items = readItems(data);
+			return new EventCache.Entry(lat, lon, keyword, items, complete, ref.timestamp);
+		} catch (RuntimeException e) {
+			reject("decode");
+			return null;
+		}
+	}
+
+	@Override
+	public RecommendationStore.Entry loadEntry(String key) {
+		Ref ref = take(RECOMMENDATION, key);
+		ByteBuffer data = ref == null ? null : data(ref);
+		if (data == null) {
+			return null;
+		}
+		try {
+			long fingerprint = data.getLong();
+			int count = data.getInt();
+			List<String> itemIds = new ArrayList<>(count);
+			for (int i = 0; i < count; ++i) {
+				itemIds.add(readString(data));
+			}
+			return new RecommendationStore.Entry(itemIds, null, fingerprint, ref.timestamp);
+		} catch (RuntimeException e) {
+			reject("decode");
+			return null;
+		}
+	}
+
+	@Override
+	public Map<String, Item> loadCellItems(String cell) {
+		Ref ref = take(CELL_ITEMS, cell);
+		ByteBuffer data = ref == null ? null : data(ref);
+		if (data == null) {
+			return null;
+		}
+		try {
+			Map<String, Item> items = new HashMap<>();
+			for (Item item : readItems(data)) {
+				items.put(item.getItemId(), item);
+			}
+			return items;
+		} catch (RuntimeException e) {
+			reject("decode");
+			return null;
+		}
+	}
+
+	/**
+	 * Regions are small and needed by the next precompute batch, so they are
+	 * all restored at once.
+	 */
+	public void restoreRegions() {
+		for (Ref ref : new ArrayList<>(unread.values())) {
+			if (ref.type != REGION || take(REGION, ref.key) == null) {
+				continue;
+			}
+			ByteBuffer data = data(ref);
+			if (data == null) {
+				continue;
+			}
+			try {
+				String cell = readString(data);
+				double lat = data.getDouble();
+				double lon = data.getDouble();
+				RecommendationStore.restoreRegion(ref.key,
+						new RecommendationStore.Region(cell, lat, lon, ref.timestamp));
+			} catch (RuntimeException e) {
+				reject("decode");
+			}
+		}
+	}
+
+	/**
+	 * Copy the records nobody asked for yet into the next snapshot, unless it
+	 * already has newer data for them or they expired.
+	 */
+	public void copyUnread(SnapshotWriter writer) throws IOException {
+		long now = System.currentTimeMillis();
+		Set<String> expired = new HashSet<>();
+		for (Map.Entry<String, Ref> entry : unread.entrySet()) {
+			Ref ref = entry.getValue();
+			if (now - ref.timestamp >= ttl(ref.type)) {
+				expired.add(entry.getKey());
+				continue;
+			}
+			if (writer.contains(ref.type, ref.key)) {
+				continue;
+			}
+			ByteBuffer data = slice(buffer, dataStart + ref.offset, ref.length);
+			byte[] bytes = new byte[ref.length];
+			data.get(bytes);
+			writer.addRaw(ref.type, ref.key, ref.timestamp, bytes);
+		}
+		for (String key : expired) {
+			unread.remove(key);
+		}
+	}
+
+	private static List<Item> readItems(ByteBuffer data) {
+		int count = data.getInt();
+		List<Item> items = new ArrayList<>(count);
+		for (int i = 0; i < count; ++i) {
+			ItemBuilder builder = new ItemBuilder();
+			builder.setItemId(readString(data));
+			builder.setName(readString(data));
+			builder.setRating(data.getDouble());
+			builder.setAddress(readString(data));
+			builder.setImageUrl(readString(data));
+			builder.setUrl(readString(data));
+			builder.setDistance(data.getDouble());
+			builder.setLatitude(data.getDouble());
+			builder.setLongitude(data.getDouble());
+			int categoryCount = data.getInt();
+			if (categoryCount >= 0) {
+				Set<String> categories = new HashSet<>();
+				for (int c = 0; c < categoryCount; ++c) {
+					categories.add(readString(data));
+				}
+				builder.setCategories(categories);
+			}
+			items.add(builder.build());
+		}
+		return items;
+	}
+
+	private static String readString(ByteBuffer data) {
+		int length = data.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		data.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
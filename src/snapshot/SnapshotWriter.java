@@ -0,0 +1,183 @@
+package snapshot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import algorithm.RecommendationStore;
+import entity.Item;
+import external.EventCache;
+
+/**
+ * Builds a snapshot file, see MappedSnapshot for the layout. Records are
+ * buffered in memory and written to a temporary file that is then moved to
+ * the snapshot's path.
+ */
+public class SnapshotWriter {
+	private final ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+	private final DataOutputStream index = new DataOutputStream(indexBytes);
+	private final ByteArrayOutputStream dataBytes = new ByteArrayOutputStream();
+	private final Set<String> written = new HashSet<>();
+	private int records;
+
+	/**
+	 * @return whether a record of this type and key was already added
+	 */
+	public boolean contains(int type, String key) {
+		return written.contains(type + ":" + key);
+	}
+
+	public void addEventCacheEntry(String key, EventCache.Entry entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeDouble(entry.getLat());
+		out.writeDouble(entry.getLon());
+		writeString(out, entry.getKeyword());
+		out.writeBoolean(entry.isComplete());
+		writeItems(out, entry.getItems());
+		addRaw(MappedSnapshot.EVENT_CACHE, key, entry.getFetchedAt(), bytes.toByteArray());
+	}
+
+	public void addRecommendation(String key, RecommendationStore.Entry entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		// The favorites version only means something to this process.
+		out.writeLong(entry.getFavoritesFingerprint());
+		out.writeInt(entry.getItemIds().size());
+		for (String itemId : entry.getItemIds()) {
+			writeString(out, itemId);
+		}
+		addRaw(MappedSnapshot.RECOMMENDATION, key, entry.getComputedAt(), bytes.toByteArray());
+	}
+
+	/**
+	 * @param computedAt
+	 *            when the items were computed, they expire with the cell's
+	 *            entries
+	 */
+	public void addCellItems(String cell, Map<String, Item> items, long computedAt) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeItems(out, items.values());
+		addRaw(MappedSnapshot.CELL_ITEMS, cell, computedAt, bytes.toByteArray());
+	}
+
+	public void addRegion(String userId, RecommendationStore.Region region) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeString(out, region.getCell());
+		out.writeDouble(region.getLat());
+		out.writeDouble(region.getLon());
+		addRaw(MappedSnapshot.REGION, userId, region.getSeenAt(), bytes.toByteArray());
+	}
+
+	/**
+	 * Add an encoded record, e.g. one carried over unread from the previous
+	 * snapshot.
+	 */
+	public void addRaw(int type, String key, long timestamp, byte[] data) throws IOException {
+		if (!written.add(type + ":" + key)) {
+			return;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		index.writeByte(type);
+		index.writeShort(keyBytes.length);
+		index.write(keyBytes);
+		index.writeLong(timestamp);
+		index.writeInt(dataBytes.size());
+		index.writeInt(data.length);
+		index.writeInt((int) crc.getValue());
+		dataBytes.write(data);
+		records++;
+	}
+
+	public int size() {
+		return records;
+	}
+
+	/**
+	 * Write the snapshot to a temporary file next to file, then move it to
+	 * file. File should be a new path: a file that is still mapped cannot be
+	 * replaced on Windows.
+	 */
+	public void writeTo(File file) throws IOException {
+		index.flush();
+		byte[] indexArray = indexBytes.toByteArray();
+
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream(MappedSnapshot.HEADER_SIZE);
+		DataOutputStream header = new DataOutputStream(headerBytes);
+		header.writeInt(MappedSnapshot.MAGIC);
+		header.writeInt(MappedSnapshot.FORMAT_VERSION);
+		header.writeLong(System.currentTimeMillis());
+		header.writeInt(records);
+		header.writeInt(indexArray.length);
+		byte[] headerArray = headerBytes.toByteArray();
+
+		// The checksum covers the header and the index, records have their own.
+		CRC32 crc = new CRC32();
+		crc.update(headerArray, 0, headerArray.length);
+		crc.update(indexArray, 0, indexArray.length);
+		header.writeInt((int) crc.getValue());
+		header.writeInt(0);
+		headerArray = headerBytes.toByteArray();
+
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(tmp)) {
+			out.write(headerArray);
+			out.write(indexArray);
+			dataBytes.writeTo(out);
+			out.getFD().sync();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void writeItems(DataOutputStream out, Collection<Item> items) throws IOException {
+		out.writeInt(items.size());
+		for (Item item : items) {
+			writeString(out, item.getItemId());
+			writeString(out, item.getName());
+			out.writeDouble(item.getRating());
+			writeString(out, item.getAddress());
+			writeString(out, item.getImageUrl());
+			writeString(out, item.getUrl());
+			out.writeDouble(item.getDistance());
+			out.writeDouble(item.getLatitude());
+			out.writeDouble(item.getLongitude());
+			Set<String> categories = item.getCategories();
+			out.writeInt(categories == null ? -1 : categories.size());
+			if (categories != null) {
+				for (String category : categories) {
+					writeString(out, category);
+				}
+			}
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+}
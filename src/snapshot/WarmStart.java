@@ -0,0 +1,213 @@
+package snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import algorithm.RecommendationStore;
+import entity.Item;
+import external.EventCache;
+import logging.AccessLog;
+import metrics.Gauge;
+import metrics.Metrics;
+
+/**
+ * Persists the hot in-memory state, Ticketmaster results, precomputed
+ * recommendations with their items, and user regions, so a restarted service
+ * does not begin cold.
+ *
+ * On start the last snapshot is mapped and installed as the loader of
+ * EventCache and RecommendationStore, which take records from it on a miss.
+ * A new snapshot is written every -Dsnapshot.intervalMillis and on stop.
+ *
+ * Each snapshot goes to a new file, the path followed by the time it was
+ * written, and older ones are deleted once it is complete. The restored file
+ * stays mapped, and Windows can neither replace nor delete a mapped file, so
+ * there it is left until a later write manages to delete it.
+ */
+public class WarmStart {
+	private static final long INTERVAL_MILLIS = Long.getLong("snapshot.intervalMillis", 5 * 60 * 1000);
+
+	private static File file;
+	private static long lastWritten;
+	private static volatile MappedSnapshot restored;
+	private static ScheduledExecutorService scheduler;
+
+	static {
+		Metrics.gauge("snapshot_records_unread", new Gauge() {
+			@Override
+			public long value() {
+				MappedSnapshot snapshot = restored;
+				return snapshot == null ? 0 : snapshot.size();
+			}
+		});
+	}
+
+	private WarmStart() {
+	}
+
+	/**
+	 * Restore from the snapshot at path, if there is one, and start writing
+	 * new ones there.
+	 *
+	 * @param path
+	 *            (Nullable) defaults to -Dsnapshot.path, then
+	 *            $CATALINA_BASE/work/eventrecommend.snapshot
+	 */
+	public static synchronized void start(File path) {
+		if (scheduler != null) {
+			return;
+		}
+		file = path != null ? path : defaultFile();
+
+		long start = System.nanoTime();
+		for (File snapshot : snapshots()) {
+			restored = MappedSnapshot.open(snapshot);
+			if (restored != null) {
+				break;
+			}
+		}
+		if (restored != null) {
+			restored.restoreRegions();
+			EventCache.setLoader(restored);
+			RecommendationStore.setLoader(restored);
+			Metrics.histogram("snapshot_restore_seconds", null, null).record(System.nanoTime() - start);
+		}
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "snapshot-writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, INTERVAL_MILLIS, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop the periodic writes and write a final snapshot.
+	 */
+	public static synchronized void stop() {
+		if (scheduler == null) {
+			return;
+		}
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		scheduler = null;
+		write();
+	}
+
+	private static File defaultFile() {
+		String path = System.getProperty("snapshot.path");
+		if (path != null) {
+			return new File(path);
+		}
+		String base = System.getProperty("catalina.base", System.getProperty("java.io.tmpdir"));
+		return new File(new File(base, "work"), "eventrecommend.snapshot");
+	}
+
+	/**
+	 * @return the snapshot files written for the path, newest first
+	 */
+	static List<File> snapshots() {
+		final String prefix = file.getName() + ".";
+		File[] files = file.getAbsoluteFile().getParentFile().listFiles();
+		List<File> snapshots = new ArrayList<>();
+		if (files == null) {
+			return snapshots;
+		}
+		for (File snapshot : files) {
+			String name = snapshot.getName();
+			if (name.startsWith(prefix) && name.length() > prefix.length()
+					&& name.substring(prefix.length()).matches("[0-9]+")) {
+				snapshots.add(snapshot);
+			}
+		}
+		Collections.sort(snapshots, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(writtenAt(b), writtenAt(a));
+			}
+		});
+		return snapshots;
+	}
+
+	private static long writtenAt(File snapshot) {
+		return Long.parseLong(snapshot.getName().substring(file.getName().length() + 1));
+	}
+
+	/**
+	 * Write everything in memory, plus what the restored snapshot still holds
+	 * unread.
+	 */
+	static synchronized void write() {
+		long start = System.nanoTime();
+		try {
+			SnapshotWriter writer = new SnapshotWriter();
+			for (Map.Entry<String, EventCache.Entry> entry : EventCache.entries().entrySet()) {
+				if (!entry.getValue().isExpired()) {
+					writer.addEventCacheEntry(entry.getKey(), entry.getValue());
+				}
+			}
+			long now = System.currentTimeMillis();
+			// Cell items expire with the oldest entry of the cell that refers to them.
+			Map<String, Long> cellComputedAt = new HashMap<>();
+			for (Map.Entry<String, RecommendationStore.Entry> entry : RecommendationStore.entries().entrySet()) {
+				long computedAt = entry.getValue().getComputedAt();
+				if (now - computedAt < RecommendationStore.FRESH_MILLIS) {
+					writer.addRecommendation(entry.getKey(), entry.getValue());
+					String cell = entry.getKey().substring(entry.getKey().lastIndexOf('|') + 1);
+					Long oldest = cellComputedAt.get(cell);
+					if (oldest == null || computedAt < oldest) {
+						cellComputedAt.put(cell, computedAt);
+					}
+				}
+			}
+			for (Map.Entry<String, Map<String, Item>> cell : RecommendationStore.cellItems().entrySet()) {
+				Long computedAt = cellComputedAt.get(cell.getKey());
+				if (computedAt != null) {
+					writer.addCellItems(cell.getKey(), cell.getValue(), computedAt);
+				}
+			}
+			for (Map.Entry<String, RecommendationStore.Region> region : RecommendationStore.recentRegions()
+					.entrySet()) {
+				writer.addRegion(region.getKey(), region.getValue());
+			}
+			MappedSnapshot snapshot = restored;
+			if (snapshot != null) {
+				snapshot.copyUnread(writer);
+			}
+			long writtenAt = Math.max(now, lastWritten + 1);
+			File next = new File(file.getPath() + "." + writtenAt);
+			writer.writeTo(next);
+			lastWritten = writtenAt;
+			for (File old : snapshots()) {
+				if (!old.equals(next) && !old.delete()) {
+					AccessLog.error("snapshot.write", "Cannot delete old snapshot " + old, null);
+				}
+			}
+			Metrics.histogram("snapshot_write_seconds", null, null).record(System.nanoTime() - start);
+		} catch (IOException | RuntimeException e) {
+			AccessLog.error("snapshot.write", "Cannot write snapshot " + file, e);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package algorithm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import db.DBConnection;
+import db.DBConnectionFactory;
+import entity.Item.ItemBuilder;
+import external.TicketMasterAPI;
+import loadtest.TicketMasterStub;
+import metrics.Metrics;
+
+public class RecommendationPrecomputerQuotaTest {
+	private static final TicketMasterStub stub;
+
+	static {
+		try {
+			stub = new TicketMasterStub(0, Files.createTempDirectory("fixtures").toFile(), 0, 0);
+			stub.start();
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+		System.setProperty("ticketmaster.url", "http://127.0.0.1:" + stub.getPort() + "/discovery/v2/events.json");
+		// Neither quota refills during the test; precomputing may burst 3 calls
+		// and must leave 2 of the 5 shared tokens.
+		System.setProperty("ticketmaster.qps", "0.001");
+		System.setProperty("precompute.qps", "0.001");
+	}
+
+	@AfterClass
+	public static void stopStub() {
+		stub.stop();
+	}
+
+	@Test
+	public void searchesStayWithinThePrecomputeShare() {
+		ItemBuilder builder = new ItemBuilder();
+		builder.setItemId("busy-favorite");
+		builder.setCategories(new HashSet<>(Arrays.asList("Music", "Sports", "Film", "Miscellaneous")));
+		DBConnection conn = DBConnectionFactory.getConnection();
+		conn.saveItem(builder.build());
+		conn.setFavoriteItems("busy-fan", Arrays.asList("busy-favorite"));
+		conn.close();
+		RecommendationStore.recordRegion("busy-fan", 37.38, -122.08);
+		long limited = Metrics.count("ticketmaster_rejections_total", "reason", "rate_limited");
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			assertEquals(0, RecommendationPrecomputer.runBatch(pool));
+		} finally {
+			pool.shutdown();
+		}
+		// One of the four categories was over the share, so the cell is not stored.
+		assertNull(RecommendationStore.get("busy-fan", 37.38, -122.08));
+		assertEquals(limited + 1, Metrics.count("ticketmaster_rejections_total", "reason", "rate_limited"));
+
+		// Requests still have the reserve.
+		for (int i = 0; i < 2; ++i) {
+			assertFalse(new TicketMasterAPI().search(37.38, -122.08, "user-" + i, 5).isStale());
+		}
+		assertTrue(new TicketMasterAPI().search(37.38, -122.08, "user-2", 5).isStale());
+	}
+
+}
@@ -0,0 +1,85 @@
+package algorithm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import db.DBConnection;
+import db.DBConnectionFactory;
+import entity.Item;
+import entity.Item.ItemBuilder;
+import external.EventPager;
+import loadtest.TicketMasterStub;
+import metrics.Metrics;
+
+public class RecommendationPrecomputerTest {
+	private static final TicketMasterStub stub;
+
+	static {
+		try {
+			// Searches for the Broken category fail, the stub cannot parse its fixture.
+			File fixtures = Files.createTempDirectory("fixtures").toFile();
+			Files.write(new File(fixtures, "Broken.json").toPath(), "not json".getBytes("UTF-8"));
+			stub = new TicketMasterStub(0, fixtures, 0, 0);
+			stub.start();
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+		System.setProperty("ticketmaster.url", "http://127.0.0.1:" + stub.getPort() + "/discovery/v2/events.json");
+		System.setProperty("ticketmaster.qps", "1000");
+		System.setProperty("precompute.qps", "1000");
+		System.setProperty("precompute.burst", "1000");
+	}
+
+	@AfterClass
+	public static void stopStub() {
+		stub.stop();
+	}
+
+	private static void likes(String userId, String category, double lat, double lon) {
+		ItemBuilder builder = new ItemBuilder();
+		builder.setItemId(userId + "-favorite");
+		builder.setCategories(new HashSet<>(Arrays.asList(category)));
+		DBConnection conn = DBConnectionFactory.getConnection();
+		conn.saveItem(builder.build());
+		conn.setFavoriteItems(userId, Arrays.asList(userId + "-favorite"));
+		conn.close();
+		RecommendationStore.recordRegion(userId, lat, lon);
+	}
+
+	@Test
+	public void storesCellsWhoseSearchesSucceededOnly() {
+		likes("music-fan", "Music", 37.38, -122.08);
+		likes("sports-fan", "Sports", 37.38, -122.08);
+		// Same cell elsewhere, one of its categories cannot be searched.
+		likes("film-fan", "Film", 40.71, -74.00);
+		likes("broken-fan", "Broken", 40.71, -74.00);
+		long skipped = Metrics.count("precompute_cells_skipped_total", "reason", "stale");
+
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			assertEquals(2, RecommendationPrecomputer.runBatch(pool));
+		} finally {
+			pool.shutdown();
+		}
+
+		List<Item> music = RecommendationStore.get("music-fan", 37.38, -122.08);
+		assertNotNull(music);
+		assertEquals(EventPager.PAGE_SIZE, music.size());
+		assertNotNull(RecommendationStore.get("sports-fan", 37.38, -122.08));
+		assertNull(RecommendationStore.get("film-fan", 40.71, -74.00));
+		assertNull(RecommendationStore.get("broken-fan", 40.71, -74.00));
+		assertEquals(skipped + 1, Metrics.count("precompute_cells_skipped_total", "reason", "stale"));
+	}
+
+}
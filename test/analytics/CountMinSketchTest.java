@@ -0,0 +1,37 @@
+package analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CountMinSketchTest {
+
+	@Test
+	public void neverUndercountsAndStaysClose() {
+		CountMinSketch sketch = new CountMinSketch();
+		int total = 0;
+		for (int i = 0; i < 1000; ++i) {
+			for (int j = 0; j <= i % 10; ++j) {
+				sketch.add("key-" + i);
+				total++;
+			}
+		}
+		for (int i = 0; i < 1000; ++i) {
+			long estimate = sketch.estimate("key-" + i);
+			assertTrue(estimate >= i % 10 + 1);
+			// 0.3% of the total, per the class comment, with a little slack.
+			assertTrue(estimate - (i % 10 + 1) <= total * 0.005);
+		}
+	}
+
+	@Test
+	public void addReturnsTheNewEstimate() {
+		CountMinSketch sketch = new CountMinSketch();
+		assertEquals(0, sketch.estimate("a"));
+		assertEquals(1, sketch.add("a"));
+		assertEquals(2, sketch.add("a"));
+		assertEquals(2, sketch.estimate("a"));
+	}
+
+}
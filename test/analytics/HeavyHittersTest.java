@@ -0,0 +1,95 @@
+package analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.junit.Test;
+
+public class HeavyHittersTest {
+
+	private static List<String> keys(List<Entry<String, Long>> entries) {
+		List<String> keys = new ArrayList<>();
+		for (Entry<String, Long> entry : entries) {
+			keys.add(entry.getKey());
+		}
+		return keys;
+	}
+
+	@Test
+	public void longTailStaysBounded() {
+		for (int capacity : new int[] { 10, 200 }) {
+			HeavyHitters hitters = new HeavyHitters(capacity);
+			for (int i = 0; i < 200000; ++i) {
+				hitters.add("key-" + i);
+				assertTrue(hitters.size() <= 2 * capacity);
+			}
+			assertTrue(hitters.size() > 0);
+		}
+	}
+
+	@Test
+	public void findsHeavyKeysInNoise() {
+		HeavyHitters hitters = new HeavyHitters(10);
+		for (int i = 0; i < 50000; ++i) {
+			hitters.add("noise-" + i);
+			if (i % 10 == 0) {
+				hitters.add("hot-a");
+			}
+			if (i % 20 == 0) {
+				hitters.add("hot-b");
+			}
+		}
+		List<Entry<String, Long>> top = hitters.top(2);
+		assertEquals("hot-a", top.get(0).getKey());
+		assertEquals("hot-b", top.get(1).getKey());
+		// Count-Min never undercounts.
+		assertTrue(top.get(0).getValue() >= 5000);
+	}
+
+	@Test
+	public void tiesAreBrokenByKey() {
+		HeavyHitters hitters = new HeavyHitters(2);
+		for (String key : new String[] { "d", "b", "c", "a", "e" }) {
+			hitters.add(key);
+		}
+		// Four candidates fit, the newcomer loses a tie.
+		assertEquals(Arrays.asList("a", "b", "c", "d"), keys(hitters.top(10)));
+
+		// Seen twice, e evicts the lowest count with the highest key.
+		hitters.add("e");
+		assertEquals(Arrays.asList("e", "a", "b", "c"), keys(hitters.top(10)));
+	}
+
+	@Test
+	public void concurrentAddsStayBounded() throws Exception {
+		final HeavyHitters hitters = new HeavyHitters(200);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 8; ++t) {
+			final int offset = t * 100000;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 50000; ++i) {
+						hitters.add("key-" + (offset + i));
+						hitters.add("hot-" + (i % 5));
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(hitters.size() <= 400);
+		for (String key : keys(hitters.top(5))) {
+			assertTrue(key, key.startsWith("hot-"));
+		}
+	}
+
+}
@@ -0,0 +1,34 @@
+package analytics;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class HyperLogLogTest {
+
+	@Test
+	public void estimatesDistinctValues() {
+		for (int distinct : new int[] { 10, 1000, 100000 }) {
+			HyperLogLog users = new HyperLogLog();
+			for (int i = 0; i < distinct; ++i) {
+				users.add("user-" + i);
+				users.add("user-" + i);
+			}
+			// A few standard errors of 1.6%.
+			assertEquals(distinct, users.estimate(), Math.max(1, distinct * 0.05));
+		}
+	}
+
+	@Test
+	public void mergeCountsTheUnion() {
+		HyperLogLog first = new HyperLogLog();
+		HyperLogLog second = new HyperLogLog();
+		for (int i = 0; i < 20000; ++i) {
+			first.add("user-" + i);
+			second.add("user-" + (i + 10000));
+		}
+		first.merge(second);
+		assertEquals(30000, first.estimate(), 30000 * 0.05);
+	}
+
+}
@@ -0,0 +1,105 @@
+package auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import db.DBConnection;
+import db.DBConnectionFactory;
+
+public class AuthenticatorTest {
+
+	static {
+		// One hasher with a queue of one, and credentials cached briefly.
+		System.setProperty("auth.threads", "1");
+		System.setProperty("auth.queue", "1");
+		System.setProperty("auth.cacheMillis", "300");
+	}
+
+	private static String storedPassword(String userId) {
+		DBConnection conn = DBConnectionFactory.getConnection();
+		try {
+			return conn.getPassword(userId);
+		} finally {
+			conn.close();
+		}
+	}
+
+	@Test
+	public void registeredUserLogsIn() {
+		assertTrue(Authenticator.register("alice", "pw", "Alice", "Smith"));
+		assertFalse(Authenticator.register("alice", "other", "Alice", "Jones"));
+		assertTrue(storedPassword("alice").startsWith("pbkdf2$"));
+
+		assertEquals("Alice Smith", Authenticator.login("alice", "pw"));
+		assertNull(Authenticator.login("alice", "other"));
+		assertNull(Authenticator.login("nobody", "pw"));
+	}
+
+	@Test
+	public void legacyPasswordIsRehashedOnLogin() {
+		DBConnection conn = DBConnectionFactory.getConnection();
+		try {
+			conn.registerUser("legacy", "md5hash", "Old", "User");
+		} finally {
+			conn.close();
+		}
+		assertEquals("Old User", Authenticator.login("legacy", "md5hash"));
+		String stored = storedPassword("legacy");
+		assertTrue(stored.startsWith("pbkdf2$"));
+		assertTrue(Passwords.verify(stored, "md5hash"));
+		assertEquals("Old User", Authenticator.login("legacy", "md5hash"));
+	}
+
+	@Test
+	public void verifiedLoginIsCachedUntilItExpires() throws InterruptedException {
+		Authenticator.register("bob", "pw", "Bob", "Smith");
+		assertNull(Authenticator.cachedLogin("bob", "pw"));
+		Authenticator.login("bob", "pw");
+
+		assertEquals("Bob Smith", Authenticator.cachedLogin("bob", "pw"));
+		// Failed or different credentials are never answered from the cache.
+		assertNull(Authenticator.cachedLogin("bob", "wrong"));
+		Thread.sleep(400);
+		assertNull(Authenticator.cachedLogin("bob", "pw"));
+	}
+
+	@Test
+	public void fullQueueRejects() throws InterruptedException {
+		final CountDownLatch running = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Runnable blocked = new Runnable() {
+			@Override
+			public void run() {
+				running.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		try {
+			Authenticator.execute(blocked);
+			assertTrue(running.await(5, TimeUnit.SECONDS));
+			Authenticator.execute(blocked);
+			try {
+				Authenticator.execute(blocked);
+				fail("queue of one accepted a second task");
+			} catch (RejectedExecutionException e) {
+				// expected
+			}
+		} finally {
+			release.countDown();
+		}
+	}
+
+}
@@ -0,0 +1,51 @@
+package auth;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PasswordsTest {
+
+	@Test
+	public void hashVerifiesOnlyItsPassword() {
+		String stored = Passwords.hash("secret");
+		assertTrue(stored.startsWith("pbkdf2$"));
+		assertTrue(Passwords.verify(stored, "secret"));
+		assertFalse(Passwords.verify(stored, "Secret"));
+		assertFalse(Passwords.verify(stored, ""));
+		assertFalse(Passwords.needsRehash(stored));
+	}
+
+	@Test
+	public void hashesAreSalted() {
+		assertNotEquals(Passwords.hash("secret"), Passwords.hash("secret"));
+	}
+
+	@Test
+	public void legacyPasswordVerifiesAndNeedsRehash() {
+		assertTrue(Passwords.verify("3229c1097c00d497a0fd282d586be050", "3229c1097c00d497a0fd282d586be050"));
+		assertFalse(Passwords.verify("3229c1097c00d497a0fd282d586be050", "wrong"));
+		assertTrue(Passwords.needsRehash("3229c1097c00d497a0fd282d586be050"));
+	}
+
+	@Test
+	public void fewerIterationsNeedRehash() {
+		String stored = Passwords.hash("secret");
+		String[] parts = stored.split("\\$");
+		String weaker = parts[0] + "$" + (Integer.parseInt(parts[1]) - 1) + "$" + parts[2] + "$" + parts[3];
+		assertTrue(Passwords.needsRehash(weaker));
+		// The iteration count is part of the hash.
+		assertFalse(Passwords.verify(weaker, "secret"));
+	}
+
+	@Test
+	public void malformedOrMissingHashDoesNotVerify() {
+		assertFalse(Passwords.verify(null, "secret"));
+		assertFalse(Passwords.verify(Passwords.hash("secret"), null));
+		assertFalse(Passwords.verify("pbkdf2$1000$not base64$!!", "secret"));
+		assertFalse(Passwords.verify("pbkdf2$many$c2FsdA==$aGFzaA==", "secret"));
+	}
+
+}
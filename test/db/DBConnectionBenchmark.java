@@ -0,0 +1,143 @@
+package db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import entity.Item;
+import entity.Item.ItemBuilder;
+
+/**
+ * Runs the same seeded workload against each backend and prints throughput.
+ * Every operation opens and closes a connection, the same way the servlets do.
+ * MySQL and MongoDB must be running as configured in MySQLDBUtil and
+ * MongoDBUtil.
+ *
+ * Usage, after test/run-tests.sh compiled it:
+ * java -cp "build/test:WebContent/WEB-INF/lib/*" db.DBConnectionBenchmark [backend ...]
+ * (default: mysql mongodb embedded)
+ */
+public class DBConnectionBenchmark {
+	private static final long SEED = 42;
+	private static final int ITEMS = 2000;
+	private static final int USERS = 200;
+	private static final int OPERATIONS = 20000;
+	private static final int THREADS = 8;
+	private static final String[] CATEGORIES = { "Music", "Sports", "Arts & Theatre", "Film", "Miscellaneous" };
+
+	public static void main(String[] args) throws Exception {
+		List<String> backends = args.length > 0 ? Arrays.asList(args)
+				: Arrays.asList("mysql", "mongodb", "embedded");
+		for (String backend : backends) {
+			try {
+				run(backend);
+			} catch (Exception e) {
+				System.out.println(backend + ": failed, " + e);
+			}
+		}
+	}
+
+	private static void run(final String backend) throws Exception {
+		final List<Item> items = generateItems();
+
+		// Load phase: save all items.
+		long start = System.nanoTime();
+		DBConnection conn = DBConnectionFactory.getConnection(backend);
+		for (Item item : items) {
+			conn.saveItem(item);
+		}
+		conn.close();
+		report(backend, "saveItem", items.size(), System.nanoTime() - start);
+
+		// Mixed phase: 20% writes, 80% reads, split over THREADS workers.
+		runConcurrently(backend, "mixed", items, 10);
+		// Write phase: favorite changes only, contending for the write path.
+		runConcurrently(backend, "writes", items, 2);
+	}
+
+	private static void runConcurrently(final String backend, String phase, final List<Item> items,
+			final int operationKinds) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		List<Future<?>> futures = new ArrayList<>();
+		long start = System.nanoTime();
+		for (int t = 0; t < THREADS; ++t) {
+			final Random random = new Random(SEED + t);
+			futures.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < OPERATIONS / THREADS; ++i) {
+						runOperation(backend, items, random, operationKinds);
+					}
+				}
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		report(backend, phase, OPERATIONS, System.nanoTime() - start);
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * @param operationKinds
+	 *            10 for the mixed workload, 2 for writes only
+	 */
+	private static void runOperation(String backend, List<Item> items, Random random, int operationKinds) {
+		String userId = "bench-" + random.nextInt(USERS);
+		List<String> itemIds = Arrays.asList(items.get(random.nextInt(items.size())).getItemId());
+		DBConnection conn = DBConnectionFactory.getConnection(backend);
+		try {
+			int op = random.nextInt(operationKinds);
+			if (op == 0) {
+				conn.setFavoriteItems(userId, itemIds);
+			} else if (op == 1) {
+				conn.unsetFavoriteItems(userId, itemIds);
+			} else if (op < 5) {
+				conn.getFavoriteItemIds(userId);
+			} else if (op < 8) {
+				conn.getFavoriteItems(userId);
+			} else {
+				conn.getCategories(itemIds.get(0));
+			}
+		} finally {
+			conn.close();
+		}
+	}
+
+	private static List<Item> generateItems() {
+		Random random = new Random(SEED);
+		List<Item> items = new ArrayList<>();
+		for (int i = 0; i < ITEMS; ++i) {
+			ItemBuilder builder = new ItemBuilder();
+			builder.setItemId("bench-item-" + i);
+			builder.setName("Event " + i);
+			builder.setRating(random.nextInt(10) / 2.0);
+			builder.setAddress(i + " First St San Francisco");
+			builder.setImageUrl("");
+			builder.setUrl("");
+			builder.setDistance(random.nextDouble() * 50);
+			builder.setLatitude(37 + random.nextDouble());
+			builder.setLongitude(-122 - random.nextDouble());
+			Set<String> categories = new HashSet<>();
+			categories.add(CATEGORIES[random.nextInt(CATEGORIES.length)]);
+			categories.add(CATEGORIES[random.nextInt(CATEGORIES.length)]);
+			builder.setCategories(categories);
+			items.add(builder.build());
+		}
+		return items;
+	}
+
+	private static void report(String backend, String phase, int operations, long nanos) {
+		double seconds = nanos / 1e9;
+		System.out.println(String.format("%-10s %-10s %8d ops %8.2f s %10.1f ops/s",
+				backend, phase, operations, seconds, operations / seconds));
+	}
+}
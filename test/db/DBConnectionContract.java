@@ -0,0 +1,155 @@
+package db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import entity.Item;
+import entity.Item.ItemBuilder;
+
+/**
+ * Behaviour every DBConnection backend shares. A backend test extends this
+ * and connects to an empty database.
+ */
+public abstract class DBConnectionContract {
+	protected DBConnection conn;
+
+	/**
+	 * @return a connection to an empty database
+	 */
+	protected abstract DBConnection connect() throws Exception;
+
+	@Before
+	public void setUp() throws Exception {
+		conn = connect();
+	}
+
+	@After
+	public void tearDown() {
+		conn.close();
+	}
+
+	static Item item(String itemId, String... categories) {
+		ItemBuilder builder = new ItemBuilder();
+		builder.setItemId(itemId);
+		builder.setName("Event " + itemId);
+		builder.setRating(4.5);
+		builder.setAddress("1 Main St");
+		builder.setImageUrl("http://img/" + itemId);
+		builder.setUrl("http://event/" + itemId);
+		builder.setDistance(1.25);
+		builder.setLatitude(37.38);
+		builder.setLongitude(-122.08);
+		builder.setCategories(new HashSet<>(Arrays.asList(categories)));
+		return builder.build();
+	}
+
+	static Set<String> set(String... values) {
+		return new HashSet<>(Arrays.asList(values));
+	}
+
+	@Test
+	public void setAndUnsetFavorites() {
+		conn.setFavoriteItems("u1", Arrays.asList("a", "b", "c"));
+		conn.setFavoriteItems("u1", Arrays.asList("b"));
+		assertEquals(set("a", "b", "c"), conn.getFavoriteItemIds("u1"));
+
+		conn.unsetFavoriteItems("u1", Arrays.asList("a", "missing"));
+		assertEquals(set("b", "c"), conn.getFavoriteItemIds("u1"));
+		assertEquals(set(), conn.getFavoriteItemIds("u2"));
+	}
+
+	@Test
+	public void applyFavoriteChangesAddsAndRemoves() {
+		conn.setFavoriteItems("u1", Arrays.asList("a", "b"));
+		conn.applyFavoriteChanges("u1", Arrays.asList("c"), Arrays.asList("a"));
+		assertEquals(set("b", "c"), conn.getFavoriteItemIds("u1"));
+
+		conn.applyFavoriteChanges("u2", Arrays.asList("a"), Collections.<String>emptyList());
+		assertEquals(set("a"), conn.getFavoriteItemIds("u2"));
+	}
+
+	@Test
+	public void activeUsersHaveFavorites() {
+		conn.setFavoriteItems("u1", Arrays.asList("a"));
+		conn.setFavoriteItems("u2", Arrays.asList("a"));
+		conn.unsetFavoriteItems("u2", Arrays.asList("a"));
+		conn.unsetFavoriteItems("u3", Arrays.asList("a"));
+		assertEquals(set("u1"), conn.getActiveUserIds());
+	}
+
+	@Test
+	public void favoriteItemsComeWithCategories() {
+		conn.saveItem(item("a", "Music", "Rock"));
+		conn.saveItem(item("b", "Sports"));
+		conn.setFavoriteItems("u1", Arrays.asList("a", "b", "unsaved"));
+
+		Set<Item> favorites = conn.getFavoriteItems("u1");
+		assertEquals(2, favorites.size());
+		for (Item item : favorites) {
+			assertEquals(item.getItemId().equals("a") ? set("Music", "Rock") : set("Sports"), item.getCategories());
+		}
+		assertTrue(conn.getFavoriteItems("u2").isEmpty());
+	}
+
+	@Test
+	public void saveItemKeepsFields() {
+		Item saved = item("a", "Music");
+		conn.saveItem(saved);
+		conn.setFavoriteItems("u1", Arrays.asList("a"));
+
+		Item loaded = conn.getFavoriteItems("u1").iterator().next();
+		assertEquals(saved.getName(), loaded.getName());
+		assertEquals(saved.getRating(), loaded.getRating(), 0);
+		assertEquals(saved.getAddress(), loaded.getAddress());
+		assertEquals(saved.getImageUrl(), loaded.getImageUrl());
+		assertEquals(saved.getUrl(), loaded.getUrl());
+		assertEquals(saved.getDistance(), loaded.getDistance(), 0);
+		assertEquals(saved.getLatitude(), loaded.getLatitude(), 1e-9);
+		assertEquals(saved.getLongitude(), loaded.getLongitude(), 1e-9);
+	}
+
+	@Test
+	public void categoriesOfItem() {
+		conn.saveItem(item("a", "Music", "Rock"));
+		assertEquals(set("Music", "Rock"), conn.getCategories("a"));
+		assertTrue(conn.getCategories("missing").isEmpty());
+	}
+
+	@Test
+	public void fullnameOfMissingUserIsEmpty() {
+		assertEquals("", conn.getFullname("nobody"));
+		assertFalse(conn.getActiveUserIds().contains("nobody"));
+	}
+
+	@Test
+	public void registerUserOnce() {
+		assertTrue(conn.registerUser("u9", "hash", "Jane", "Doe"));
+		assertFalse(conn.registerUser("u9", "other", "Jane", "Roe"));
+		assertEquals("hash", conn.getPassword("u9"));
+		assertEquals("Jane Doe", conn.getFullname("u9"));
+
+		conn.setPassword("u9", "rehashed");
+		assertEquals("rehashed", conn.getPassword("u9"));
+		assertNull(conn.getPassword("nobody"));
+	}
+
+	@Test
+	public void favoritesAloneDoNotRegister() {
+		conn.setFavoriteItems("u8", Arrays.asList("a"));
+		assertNull(conn.getPassword("u8"));
+		assertTrue(conn.registerUser("u8", "hash", "Jane", "Doe"));
+		assertEquals(set("a"), conn.getFavoriteItemIds("u8"));
+	}
+
+}
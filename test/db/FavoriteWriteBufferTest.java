@@ -0,0 +1,96 @@
+package db;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import metrics.Metrics;
+
+public class FavoriteWriteBufferTest {
+
+	static {
+		// Flushed only by the tests.
+		System.setProperty("favorites.flushMillis", "3600000");
+		System.setProperty("favorites.maxAttempts", "3");
+	}
+
+	// Every write fails.
+	private static final DBConnection failing = (DBConnection) Proxy.newProxyInstance(
+			DBConnection.class.getClassLoader(), new Class<?>[] { DBConnection.class }, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					throw new IllegalStateException("database down");
+				}
+			});
+
+	@BeforeClass
+	public static void start() {
+		FavoriteWriteBuffer.start();
+	}
+
+	@AfterClass
+	public static void stop() {
+		FavoriteWriteBuffer.stop();
+	}
+
+	private static Map<String, Boolean> changes(Object... pairs) {
+		Map<String, Boolean> changes = new LinkedHashMap<>();
+		for (int i = 0; i < pairs.length; i += 2) {
+			changes.put((String) pairs[i], (Boolean) pairs[i + 1]);
+		}
+		return changes;
+	}
+
+	@Test
+	public void coalescesUntilFlushed() {
+		FavoriteWriteBuffer.enqueue("coalesce", changes("a", true, "b", true));
+		FavoriteWriteBuffer.enqueue("coalesce", changes("a", false));
+		DBConnection conn = DBConnectionFactory.getConnection();
+		assertEquals(DBConnectionContract.set(), conn.getFavoriteItemIds("coalesce"));
+		FavoriteWriteBuffer.flush("coalesce");
+		assertEquals(DBConnectionContract.set("b"), conn.getFavoriteItemIds("coalesce"));
+		conn.close();
+	}
+
+	@Test
+	public void failedWriteIsRetriedUnderNewerChanges() {
+		DBConnection conn = DBConnectionFactory.getConnection();
+		conn.setFavoriteItems("retry", Arrays.asList("old"));
+		long failures = Metrics.count("favorite_flush_failures_total", null, null);
+
+		FavoriteWriteBuffer.enqueue("retry", changes("a", true, "b", true, "old", false));
+		FavoriteWriteBuffer.flushAll(failing);
+		assertEquals(failures + 1, Metrics.count("favorite_flush_failures_total", null, null));
+
+		// Changed again while the write was failing: the newer state wins.
+		FavoriteWriteBuffer.enqueue("retry", changes("b", false));
+		FavoriteWriteBuffer.flush("retry");
+		assertEquals(DBConnectionContract.set("a"), conn.getFavoriteItemIds("retry"));
+		conn.close();
+	}
+
+	@Test
+	public void dropsAfterMaxAttempts() {
+		long dropped = Metrics.count("favorite_changes_dropped_total", null, null);
+		FavoriteWriteBuffer.enqueue("dropped", changes("a", true, "b", true));
+		for (int i = 0; i < 3; ++i) {
+			FavoriteWriteBuffer.flushAll(failing);
+		}
+		assertEquals(dropped + 2, Metrics.count("favorite_changes_dropped_total", null, null));
+
+		FavoriteWriteBuffer.flush("dropped");
+		DBConnection conn = DBConnectionFactory.getConnection();
+		assertEquals(DBConnectionContract.set(), conn.getFavoriteItemIds("dropped"));
+		conn.close();
+	}
+
+}
@@ -0,0 +1,85 @@
+package db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import metrics.Metrics;
+
+public class InstrumentedConnectionTest {
+
+	/**
+	 * @return a backend whose every call throws, or returns null if failure is null
+	 */
+	private static DBConnection backend(final RuntimeException failure) {
+		return (DBConnection) Proxy.newProxyInstance(DBConnection.class.getClassLoader(),
+				new Class<?>[] { DBConnection.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (failure != null && !method.getName().equals("close")) {
+							throw failure;
+						}
+						return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+					}
+				});
+	}
+
+	private static long errors(String method) {
+		return Metrics.count("db_errors_total", "method", method);
+	}
+
+	@Test
+	public void countsThrownFailures() {
+		long before = errors("getFavoriteItemIds");
+		DBConnection conn = new InstrumentedConnection(backend(new IllegalStateException("down")));
+		try {
+			conn.getFavoriteItemIds("u1");
+			fail();
+		} catch (IllegalStateException e) {
+			assertEquals("down", e.getMessage());
+		}
+		conn.close();
+		assertEquals(before + 1, errors("getFavoriteItemIds"));
+	}
+
+	@Test
+	public void countsFailuresBackendsHandle() {
+		long before = errors("getCategories");
+		InstrumentedConnection.failed("getCategories", new SQLException("Communications link failure"));
+		assertEquals(before + 1, errors("getCategories"));
+	}
+
+	@Test
+	public void timesEveryCall() {
+		long before = Metrics.histogram("db_call_seconds", "method", "getFullname").getCount();
+		DBConnection conn = new InstrumentedConnection(backend(null));
+		conn.getFullname("u1");
+		conn.getFullname("u2");
+		conn.close();
+		assertEquals(before + 2, Metrics.histogram("db_call_seconds", "method", "getFullname").getCount());
+	}
+
+	@Test
+	public void favoriteWritesBumpVersionEvenWhenFailing() {
+		String version = FavoriteVersions.get("u3");
+		DBConnection conn = new InstrumentedConnection(backend(new IllegalStateException("down")));
+		try {
+			conn.applyFavoriteChanges("u3", Arrays.asList("a"), Collections.<String>emptyList());
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		conn.close();
+		assertNotEquals(version, FavoriteVersions.get("u3"));
+	}
+
+}
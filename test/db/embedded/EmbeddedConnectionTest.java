@@ -0,0 +1,29 @@
+package db.embedded;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+import db.DBConnection;
+import db.DBConnectionContract;
+
+public class EmbeddedConnectionTest extends DBConnectionContract {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private EmbeddedStore store;
+
+	@Override
+	protected DBConnection connect() throws Exception {
+		store = new EmbeddedStore(new File(folder.getRoot(), "journal"));
+		return new EmbeddedConnection(store);
+	}
+
+	@After
+	public void closeStore() {
+		store.close();
+	}
+
+}
@@ -0,0 +1,226 @@
+package db.embedded;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import entity.Item;
+import entity.Item.ItemBuilder;
+import metrics.Metrics;
+
+public class EmbeddedStoreTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File journal;
+	// Makes the journal of failingStore() throw, like a full disk.
+	private static volatile boolean failWrites;
+
+	@Before
+	public void setUp() {
+		journal = new File(folder.getRoot(), "journal");
+	}
+
+	private static Item item(String itemId, String category) {
+		ItemBuilder builder = new ItemBuilder();
+		builder.setItemId(itemId);
+		builder.setName("Event " + itemId);
+		builder.setCategories(new HashSet<>(Arrays.asList(category)));
+		return builder.build();
+	}
+
+	private EmbeddedStore failingStore() {
+		return new EmbeddedStore(journal) {
+			@Override
+			BufferedWriter openJournal() throws IOException {
+				final BufferedWriter real = super.openJournal();
+				return new BufferedWriter(new Writer() {
+					@Override
+					public void write(char[] chars, int offset, int length) throws IOException {
+						if (failWrites) {
+							throw new IOException("disk full");
+						}
+						real.write(chars, offset, length);
+					}
+
+					@Override
+					public void flush() throws IOException {
+						if (failWrites) {
+							throw new IOException("disk full");
+						}
+						real.flush();
+					}
+
+					@Override
+					public void close() throws IOException {
+						real.close();
+					}
+				});
+			}
+		};
+	}
+
+	private static int lines(File file) throws IOException {
+		return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size();
+	}
+
+	@Test
+	public void replaysJournalOnOpen() {
+		EmbeddedStore store = new EmbeddedStore(journal);
+		store.addUser("u1", "hash", "John", "Smith");
+		store.saveItem(item("a", "Music"));
+		store.setFavorites("u1", Arrays.asList("a", "b"), true);
+		store.changeFavorites("u1", Arrays.asList("c"), Arrays.asList("b"));
+		store.setPassword("u1", "rehashed");
+		store.close();
+
+		EmbeddedStore reopened = new EmbeddedStore(journal);
+		assertEquals(new HashSet<>(Arrays.asList("a", "c")), reopened.getFavoriteItemIds("u1"));
+		assertEquals(new HashSet<>(Arrays.asList("Music")), reopened.getCategories("a"));
+		assertEquals("John Smith", reopened.getFullname("u1"));
+		assertEquals("rehashed", reopened.getPassword("u1"));
+		reopened.close();
+	}
+
+	@Test
+	public void compactsOnceJournalDoublesLiveState() throws IOException {
+		EmbeddedStore store = new EmbeddedStore(journal, 100);
+		store.addUser("u1", "hash", "John", "Smith");
+		store.saveItem(item("a", "Music"));
+		for (int i = 0; i < 300; ++i) {
+			store.setFavorites("u1", Arrays.asList("a"), i % 2 == 0);
+		}
+		store.setFavorites("u1", Arrays.asList("a"), true);
+		store.close();
+
+		// item, user and one favorites record, plus what came after the last compaction
+		assertTrue(lines(journal) < 100);
+		assertFalse(new File(journal.getPath() + ".tmp").exists());
+
+		EmbeddedStore reopened = new EmbeddedStore(journal, 100);
+		assertEquals(new HashSet<>(Arrays.asList("a")), reopened.getFavoriteItemIds("u1"));
+		assertEquals("hash", reopened.getPassword("u1"));
+		assertEquals(new HashSet<>(Arrays.asList("Music")), reopened.getCategories("a"));
+		reopened.close();
+	}
+
+	@Test
+	public void compactionKeepsFavoritesOnlyUsersUnregistered() {
+		EmbeddedStore store = new EmbeddedStore(journal, 1);
+		store.setFavorites("u2", Arrays.asList("a"), true);
+		store.close();
+
+		EmbeddedStore reopened = new EmbeddedStore(journal, 1);
+		assertEquals(new HashSet<>(Arrays.asList("a")), reopened.getFavoriteItemIds("u2"));
+		assertEquals(null, reopened.getPassword("u2"));
+		assertTrue(reopened.addUserIfAbsent("u2", "hash", "Jane", "Doe"));
+		reopened.close();
+	}
+
+	@Test
+	public void tornLastLineIsSkippedAndRewritten() throws IOException {
+		EmbeddedStore store = new EmbeddedStore(journal);
+		store.setFavorites("u1", Arrays.asList("a"), true);
+		store.close();
+		try (FileOutputStream out = new FileOutputStream(journal, true)) {
+			out.write("{\"op\":\"fav\",\"user_id\":\"u1\",\"item_".getBytes(StandardCharsets.UTF_8));
+		}
+
+		EmbeddedStore reopened = new EmbeddedStore(journal);
+		reopened.setFavorites("u1", Arrays.asList("b"), true);
+		reopened.close();
+
+		EmbeddedStore again = new EmbeddedStore(journal);
+		assertEquals(new HashSet<>(Arrays.asList("a", "b")), again.getFavoriteItemIds("u1"));
+		again.close();
+	}
+
+	@Test
+	public void concurrentWritersAreAllJournaled() throws Exception {
+		final EmbeddedStore store = new EmbeddedStore(journal, 500);
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 8; ++t) {
+			final String userId = "u" + t;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < 200; ++i) {
+						store.setFavorites(userId, Arrays.asList("item" + i), true);
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		store.close();
+
+		EmbeddedStore reopened = new EmbeddedStore(journal, 500);
+		for (int t = 0; t < 8; ++t) {
+			assertEquals(200, reopened.getFavoriteItemIds("u" + t).size());
+		}
+		reopened.close();
+	}
+
+	@Test
+	public void failedAppendIsRewrittenFromMemory() {
+		EmbeddedStore store = failingStore();
+		store.setFavorites("u1", Arrays.asList("a"), true);
+		long errors = Metrics.count("embedded_journal_errors_total", "op", "append");
+		failWrites = true;
+		try {
+			store.changeFavorites("u1", Arrays.asList("b"), Arrays.asList("a"));
+		} finally {
+			failWrites = false;
+		}
+		assertEquals(errors + 1, Metrics.count("embedded_journal_errors_total", "op", "append"));
+		store.setFavorites("u1", Arrays.asList("c"), true);
+		store.close();
+
+		EmbeddedStore reopened = new EmbeddedStore(journal);
+		assertEquals(new HashSet<>(Arrays.asList("b", "c")), reopened.getFavoriteItemIds("u1"));
+		reopened.close();
+	}
+
+	@Test
+	public void skippedRecordsAreCounted() throws IOException {
+		Files.write(journal.toPath(), Arrays.asList("{\"op\":\"fav\",\"user_id\":\"u1\",\"item_ids\":[\"a\"]}",
+				"{\"op\":\"future\",\"user_id\":\"u1\"}", "not json"), StandardCharsets.UTF_8);
+		long unknown = Metrics.count("embedded_journal_skipped_total", "reason", "unknown_op");
+		long unreadable = Metrics.count("embedded_journal_skipped_total", "reason", "unreadable");
+
+		EmbeddedStore store = new EmbeddedStore(journal);
+		assertEquals(new HashSet<>(Arrays.asList("a")), store.getFavoriteItemIds("u1"));
+		assertEquals(unknown + 1, Metrics.count("embedded_journal_skipped_total", "reason", "unknown_op"));
+		assertEquals(unreadable + 1, Metrics.count("embedded_journal_skipped_total", "reason", "unreadable"));
+		store.close();
+	}
+
+}
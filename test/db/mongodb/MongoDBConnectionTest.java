@@ -0,0 +1,53 @@
+package db.mongodb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetSocketAddress;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoDatabase;
+
+import db.DBConnection;
+import db.DBConnectionContract;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+
+/**
+ * MongoDBConnection against an in-memory server that speaks the MongoDB wire
+ * protocol, so the real driver, queries and indexes are exercised.
+ */
+public class MongoDBConnectionTest extends DBConnectionContract {
+	private static MongoServer server;
+	private static MongoClient client;
+
+	@BeforeClass
+	public static void startServer() {
+		server = new MongoServer(new MemoryBackend());
+		InetSocketAddress address = server.bind();
+		client = new MongoClient(new ServerAddress(address));
+	}
+
+	@AfterClass
+	public static void stopServer() {
+		client.close();
+		server.shutdown();
+	}
+
+	@Override
+	protected DBConnection connect() {
+		MongoDatabase db = client.getDatabase(MongoDBUtil.DB_NAME);
+		MongoDBTableCreation.createCollections(db);
+		return new MongoDBConnection(db);
+	}
+
+	@Test
+	public void tableCreationAddsDemoUser() {
+		assertEquals("John Smith", conn.getFullname("1111"));
+	}
+
+}
@@ -0,0 +1,62 @@
+package external;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import entity.Item;
+import metrics.Metrics;
+
+public class CachePrefetcherTest {
+	private static final FakeTicketMaster upstream;
+
+	static {
+		upstream = FakeTicketMaster.start();
+		// Neither quota refills during the test; prefetching may make one call.
+		System.setProperty("ticketmaster.qps", "0.001");
+		System.setProperty("prefetch.qps", "0.001");
+	}
+
+	@AfterClass
+	public static void stopUpstream() {
+		upstream.stop();
+	}
+
+	// A cached result about to stop being fresh, looked up count times.
+	private static String expiring(String keyword, int count) {
+		String key = EventCache.key(37.38, -122.08, keyword);
+		EventCache.put(key, new EventCache.Entry(37.38, -122.08, keyword, new ArrayList<Item>(), false,
+				System.currentTimeMillis() - EventCache.FRESH_MILLIS));
+		for (int i = 0; i < count; ++i) {
+			CachePrefetcher.recordLookup(key);
+		}
+		return key;
+	}
+
+	@Test
+	public void refreshesHottestKeyWithinItsOwnBudget() {
+		String hot = expiring("hot", 3);
+		String warm = expiring("warm", 1);
+		long skipped = Metrics.count("prefetch_skipped_total", "reason", "upstream");
+
+		CachePrefetcher.runCycle();
+		assertTrue(EventCache.get(hot).isFresh());
+		assertEquals(TicketMasterAPI.DEFAULT_LIMIT, EventCache.get(hot).getItems().size());
+		assertEquals(1, upstream.calls.get());
+		// The prefetch share is spent, the warm key waits for the next cycle.
+		assertFalse(EventCache.get(warm).isFresh());
+		assertEquals(skipped + 1, Metrics.count("prefetch_skipped_total", "reason", "upstream"));
+
+		// Requests still have the rest of the quota.
+		for (int i = 0; i < 4; ++i) {
+			assertFalse(new TicketMasterAPI().search(37.38, -122.08, "user-" + i, 5).isStale());
+		}
+		assertTrue(new TicketMasterAPI().search(37.38, -122.08, "user-4", 5).isStale());
+	}
+
+}
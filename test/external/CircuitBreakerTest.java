@@ -0,0 +1,68 @@
+package external;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+	@Test
+	public void opensAfterConsecutiveFailures() {
+		CircuitBreaker breaker = new CircuitBreaker("test", 3, 60 * 1000);
+		for (int i = 0; i < 2; ++i) {
+			assertTrue(breaker.allowRequest());
+			breaker.recordFailure();
+		}
+		assertTrue(breaker.allowRequest());
+		breaker.recordSuccess();
+		for (int i = 0; i < 3; ++i) {
+			assertTrue(breaker.allowRequest());
+			breaker.recordFailure();
+		}
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest());
+	}
+
+	@Test
+	public void halfOpenLetsOneProbeThrough() throws InterruptedException {
+		CircuitBreaker breaker = new CircuitBreaker("test", 1, 1);
+		breaker.allowRequest();
+		breaker.recordFailure();
+		Thread.sleep(5);
+
+		assertTrue(breaker.allowRequest());
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest());
+		breaker.recordSuccess();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void failedProbeOpensAgain() throws InterruptedException {
+		CircuitBreaker breaker = new CircuitBreaker("test", 1, 1);
+		breaker.allowRequest();
+		breaker.recordFailure();
+		Thread.sleep(5);
+
+		assertTrue(breaker.allowRequest());
+		breaker.recordFailure();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	@Test
+	public void releasedProbeGoesToTheNextCaller() throws InterruptedException {
+		CircuitBreaker breaker = new CircuitBreaker("test", 1, 1);
+		breaker.allowRequest();
+		breaker.recordFailure();
+		Thread.sleep(5);
+
+		assertTrue(breaker.allowRequest());
+		breaker.release();
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertTrue(breaker.allowRequest());
+		assertFalse(breaker.allowRequest());
+	}
+
+}
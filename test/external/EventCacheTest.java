@@ -0,0 +1,73 @@
+package external;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import entity.Item;
+import entity.Item.ItemBuilder;
+
+public class EventCacheTest {
+
+	private static List<Item> items(String... itemIds) {
+		List<Item> items = new ArrayList<>();
+		for (String itemId : itemIds) {
+			ItemBuilder builder = new ItemBuilder();
+			builder.setItemId(itemId);
+			items.add(builder.build());
+		}
+		return items;
+	}
+
+	private static EventCache.Entry entry(String keyword, List<Item> items, long fetchedAt) {
+		return new EventCache.Entry(37.38, -122.08, keyword, items, false, fetchedAt);
+	}
+
+	@Test
+	public void generationIsPerKey() {
+		String music = EventCache.key(37.38, -122.08, "Music");
+		String sports = EventCache.key(37.38, -122.08, "Sports");
+		assertEquals(0, EventCache.generation(music));
+
+		EventCache.put(music, entry("Music", items("a", "b"), System.currentTimeMillis()));
+		long first = EventCache.generation(music);
+		assertNotEquals(0, first);
+
+		EventCache.put(sports, entry("Sports", items("c"), System.currentTimeMillis()));
+		assertEquals(first, EventCache.generation(music));
+
+		// A refresh with the same events keeps it, different events change it.
+		EventCache.put(music, entry("Music", items("a", "b"), System.currentTimeMillis()));
+		assertEquals(first, EventCache.generation(music));
+		EventCache.put(music, entry("Music", items("a", "d"), System.currentTimeMillis()));
+		assertNotEquals(first, EventCache.generation(music));
+	}
+
+	@Test
+	public void freshnessAndExpiry() {
+		String key = EventCache.key(37.38, -122.08, "old");
+		long now = System.currentTimeMillis();
+		EventCache.put(key, entry("old", items("a"), now - EventCache.FRESH_MILLIS));
+		assertFalse(EventCache.get(key).isFresh());
+
+		EventCache.put(key, entry("old", items("a"), now - EventCache.STALE_MILLIS));
+		assertNull(EventCache.get(key));
+		assertEquals(0, EventCache.generation(key));
+	}
+
+	@Test
+	public void incompleteEntryCoversOnlyWhatItHas() {
+		EventCache.Entry entry = entry("partial", items("a", "b"), System.currentTimeMillis());
+		assertTrue(entry.covers(2));
+		assertFalse(entry.covers(3));
+		assertTrue(new EventCache.Entry(0, 0, "all", items("a"), true, 0).covers(100));
+	}
+
+}
@@ -0,0 +1,87 @@
+package external;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+import entity.Item;
+
+public class EventPagerTest {
+	private static final FakeTicketMaster upstream = FakeTicketMaster.start();
+
+	private final TicketMasterAPI api = new TicketMasterAPI(new RateLimiter(1000, 1000),
+			new CircuitBreaker("test", 100, 60 * 1000));
+
+	@AfterClass
+	public static void stopUpstream() {
+		upstream.stop();
+	}
+
+	@Before
+	public void setUp() {
+		upstream.totalPages = 10;
+		upstream.failFromPage = Integer.MAX_VALUE;
+		upstream.calls.set(0);
+	}
+
+	private static List<Item> drain(EventPager pager) {
+		List<Item> items = new ArrayList<>();
+		while (pager.hasNext()) {
+			items.add(pager.next());
+		}
+		return items;
+	}
+
+	@Test
+	public void fetchesOnlyThePagesTheLimitNeeds() {
+		EventPager pager = new EventPager(api, 37.38, -122.08, "limit", 70, false);
+		List<Item> items = drain(pager);
+		assertEquals(70, items.size());
+		assertEquals("limit-0", items.get(0).getItemId());
+		assertEquals("limit-69", items.get(69).getItemId());
+		assertEquals(2, upstream.calls.get());
+		assertFalse(pager.isComplete());
+		assertFalse(pager.isFailed());
+	}
+
+	@Test
+	public void smallLimitAsksForASmallPage() {
+		assertEquals(5, drain(new EventPager(api, 37.38, -122.08, "small", 5, false)).size());
+		assertEquals(1, upstream.calls.get());
+	}
+
+	@Test
+	public void completeAfterTheLastPage() {
+		upstream.totalPages = 2;
+		EventPager pager = new EventPager(api, 37.38, -122.08, "all", 500, false);
+		assertEquals(2 * EventPager.PAGE_SIZE, drain(pager).size());
+		assertTrue(pager.isComplete());
+		assertEquals(2, upstream.calls.get());
+	}
+
+	@Test
+	public void failedPageKeepsTheEarlierOnes() {
+		upstream.failFromPage = 1;
+		EventPager pager = new EventPager(api, 37.38, -122.08, "failed", 150, true);
+		assertEquals(EventPager.PAGE_SIZE, drain(pager).size());
+		assertTrue(pager.isFailed());
+		assertFalse(pager.isComplete());
+	}
+
+	@Test
+	public void prefetchedPagesComeInOrder() {
+		List<Item> items = drain(new EventPager(api, 37.38, -122.08, "prefetch", 150, true));
+		assertEquals(150, items.size());
+		for (int i = 0; i < items.size(); ++i) {
+			assertEquals("prefetch-" + i, items.get(i).getItemId());
+		}
+	}
+
+}
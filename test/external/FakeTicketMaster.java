@@ -0,0 +1,110 @@
+package external;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Ticketmaster search endpoint for tests. Every keyword has totalPages full
+ * pages of events named after their keyword and position. Pages from
+ * failFromPage on, or all of them while down, answer 503. Every answer takes
+ * delayMillis, each on its own thread. Start it before
+ * TicketMasterAPI is loaded, since the URL is read then.
+ */
+class FakeTicketMaster {
+	private final HttpServer server;
+	final AtomicInteger calls = new AtomicInteger();
+	volatile boolean down;
+	volatile int totalPages = 10;
+	volatile int failFromPage = Integer.MAX_VALUE;
+	volatile long delayMillis;
+
+	private FakeTicketMaster() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/events.json", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				calls.incrementAndGet();
+				if (delayMillis > 0) {
+					try {
+						Thread.sleep(delayMillis);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				byte[] body;
+				int status = 200;
+				if (down || pageNumber(exchange.getRequestURI()) >= failFromPage) {
+					status = 503;
+					body = "{}".getBytes("UTF-8");
+				} else {
+					body = page(exchange.getRequestURI()).getBytes("UTF-8");
+				}
+				exchange.sendResponseHeaders(status, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+	}
+
+	static FakeTicketMaster start() {
+		try {
+			FakeTicketMaster upstream = new FakeTicketMaster();
+			System.setProperty("ticketmaster.url",
+					"http://127.0.0.1:" + upstream.server.getAddress().getPort() + "/events.json");
+			return upstream;
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	void stop() {
+		server.stop(0);
+	}
+
+	private static Map<String, String> query(URI uri) {
+		Map<String, String> query = new HashMap<>();
+		for (String pair : uri.getRawQuery().split("&")) {
+			int eq = pair.indexOf('=');
+			query.put(pair.substring(0, eq), pair.substring(eq + 1));
+		}
+		return query;
+	}
+
+	private static int pageNumber(URI uri) {
+		return Integer.parseInt(query(uri).get("page"));
+	}
+
+	private String page(URI uri) {
+		Map<String, String> query = query(uri);
+		int page = Integer.parseInt(query.get("page"));
+		int size = Integer.parseInt(query.get("size"));
+		try {
+			JSONArray events = new JSONArray();
+			for (int i = page * size; i < (page + 1) * size; ++i) {
+				events.put(new JSONObject().put("id", query.get("keyword") + "-" + i)
+						.put("name", "Event " + i).put("distance", i));
+			}
+			return new JSONObject().put("page", new JSONObject().put("totalPages", totalPages))
+					.put("_embedded", new JSONObject().put("events", events)).toString();
+		} catch (JSONException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package external;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+	@Test
+	public void burstThenEmpty() {
+		RateLimiter limiter = new RateLimiter(0.001, 3);
+		assertEquals(3, limiter.available());
+		for (int i = 0; i < 3; ++i) {
+			assertTrue(limiter.tryAcquire());
+		}
+		assertFalse(limiter.tryAcquire());
+		assertEquals(0, limiter.available());
+	}
+
+	@Test
+	public void refillsUpToBurst() throws InterruptedException {
+		RateLimiter limiter = new RateLimiter(1000, 2);
+		assertTrue(limiter.tryAcquire());
+		assertTrue(limiter.tryAcquire());
+		Thread.sleep(20);
+		assertEquals(2, limiter.available());
+	}
+
+	@Test
+	public void childDrawsOnParent() {
+		RateLimiter parent = new RateLimiter(0.001, 5);
+		RateLimiter child = new RateLimiter(0.001, 2, parent, 0);
+		assertTrue(child.tryAcquire());
+		assertTrue(child.tryAcquire());
+		assertFalse(child.tryAcquire());
+		assertEquals(3, parent.available());
+	}
+
+	@Test
+	public void childYieldsParentReserve() {
+		RateLimiter parent = new RateLimiter(0.001, 5);
+		RateLimiter child = new RateLimiter(0.001, 10, parent, 2);
+		assertTrue(parent.tryAcquire());
+		assertTrue(child.tryAcquire());
+		assertTrue(child.tryAcquire());
+		// Two tokens left, both kept for the parent's own callers.
+		assertFalse(child.tryAcquire());
+		assertEquals(2, parent.available());
+		assertEquals(8, child.available());
+		assertTrue(parent.tryAcquire());
+		assertTrue(parent.tryAcquire());
+	}
+
+}
@@ -0,0 +1,151 @@
+package external;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+import metrics.Metrics;
+
+public class TicketMasterAPITest {
+
+	static {
+		System.setProperty("ticketmaster.readTimeoutMillis", "300");
+	}
+
+	private static final FakeTicketMaster upstream = FakeTicketMaster.start();
+
+	@AfterClass
+	public static void stopUpstream() {
+		upstream.stop();
+	}
+
+	@Before
+	public void setUp() {
+		upstream.down = false;
+		upstream.failFromPage = Integer.MAX_VALUE;
+		upstream.delayMillis = 0;
+	}
+
+	private static TicketMasterAPI api() {
+		return new TicketMasterAPI(new RateLimiter(1000, 1000), new CircuitBreaker("test", 5, 60 * 1000));
+	}
+
+	@Test
+	public void stalledCallTimesOutAndOpensTheCircuit() {
+		// Opens after one failure and lets a probe through right away.
+		CircuitBreaker breaker = new CircuitBreaker("timeout", 1, 0);
+		TicketMasterAPI api = new TicketMasterAPI(new RateLimiter(1000, 1000), breaker);
+		upstream.delayMillis = 1000;
+		long timeouts = Metrics.count("upstream_timeouts_total", "call", "ticketmaster.search");
+
+		long start = System.nanoTime();
+		assertTrue(api.search(37.38, -122.08, "stalled", 5).isStale());
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		// The probe times out too and opens the circuit again instead of hanging.
+		assertTrue(api.search(37.38, -122.08, "stalled", 5).isStale());
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertTrue(System.nanoTime() - start < 1500 * 1000000L);
+		assertEquals(timeouts + 2, Metrics.count("upstream_timeouts_total", "call", "ticketmaster.search"));
+		assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void freshCachedResultIsAHit() {
+		TicketMasterAPI api = api();
+		SearchResult first = api.search(37.38, -122.08, "hit", 5);
+		assertEquals(5, first.getItems().size());
+		assertFalse(first.isCacheHit());
+		assertFalse(first.isStale());
+
+		int calls = upstream.calls.get();
+		SearchResult second = api.search(37.38, -122.08, "hit", 5);
+		assertEquals(first.getItems(), second.getItems());
+		assertTrue(second.isCacheHit());
+		assertFalse(second.isStale());
+		assertEquals(calls, upstream.calls.get());
+	}
+
+	@Test
+	public void failureFallsBackToOlderResultFlaggedStale() {
+		TicketMasterAPI api = api();
+		api.search(37.38, -122.08, "fallback", 5);
+		upstream.down = true;
+
+		// More than is cached, so upstream is asked and fails.
+		SearchResult result = api.search(37.38, -122.08, "fallback", 10);
+		assertEquals(5, result.getItems().size());
+		assertTrue(result.isStale());
+		assertFalse(result.isCacheHit());
+	}
+
+	@Test
+	public void partialResultIsCachedIncompleteAndFlaggedStale() {
+		TicketMasterAPI api = api();
+		upstream.failFromPage = 1;
+		SearchResult result = api.search(37.38, -122.08, "partial", 100);
+		assertEquals(EventPager.PAGE_SIZE, result.getItems().size());
+		assertTrue(result.isStale());
+
+		EventCache.Entry cached = EventCache.get(EventCache.key(37.38, -122.08, "partial"));
+		assertEquals(result.getItems(), cached.getItems());
+		assertFalse(cached.isComplete());
+		// Enough for a smaller request, the full one asks again.
+		assertTrue(api.search(37.38, -122.08, "partial", EventPager.PAGE_SIZE).isCacheHit());
+		upstream.failFromPage = Integer.MAX_VALUE;
+		result = api.search(37.38, -122.08, "partial", 100);
+		assertEquals(100, result.getItems().size());
+		assertFalse(result.isStale());
+		assertFalse(result.isCacheHit());
+	}
+
+	@Test
+	public void failureWithNothingCachedIsStaleAndEmpty() {
+		upstream.down = true;
+		SearchResult result = api().search(37.38, -122.08, "nothing", 5);
+		assertTrue(result.getItems().isEmpty());
+		assertTrue(result.isStale());
+	}
+
+	@Test
+	public void openCircuitSpendsNoTokens() {
+		RateLimiter limiter = new RateLimiter(0.001, 5);
+		CircuitBreaker breaker = new CircuitBreaker("test", 2, 60 * 1000);
+		TicketMasterAPI api = new TicketMasterAPI(limiter, breaker);
+		upstream.down = true;
+		int calls = upstream.calls.get();
+		api.search(37.38, -122.08, "open-1", 5);
+		api.search(37.38, -122.08, "open-2", 5);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertEquals(calls + 2, upstream.calls.get());
+		assertEquals(3, limiter.available());
+
+		for (int i = 0; i < 10; ++i) {
+			assertTrue(api.search(37.38, -122.08, "open-" + i, 5).isStale());
+		}
+		assertEquals(3, limiter.available());
+		assertEquals(calls + 2, upstream.calls.get());
+	}
+
+	@Test
+	public void rateLimitedCallHandsBackTheProbe() throws InterruptedException {
+		RateLimiter limiter = new RateLimiter(0.001, 1);
+		CircuitBreaker breaker = new CircuitBreaker("test", 1, 1);
+		TicketMasterAPI api = new TicketMasterAPI(limiter, breaker);
+		upstream.down = true;
+		api.search(37.38, -122.08, "probe-1", 5);
+		assertEquals(0, limiter.available());
+		Thread.sleep(5);
+
+		int calls = upstream.calls.get();
+		assertTrue(api.search(37.38, -122.08, "probe-2", 5).isStale());
+		assertEquals(calls, upstream.calls.get());
+		// The probe was not used, so the next caller still gets it.
+		assertTrue(breaker.allowRequest());
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+	}
+
+}
@@ -0,0 +1,49 @@
+package loadtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Set;
+
+import org.junit.Test;
+
+import db.DBConnection;
+import db.DBConnectionFactory;
+import entity.Item;
+
+public class DataGeneratorTest {
+
+	@Test
+	public void seedsUsersItemsAndFavorites() throws Exception {
+		DataGenerator.generate("embedded", 20, 42);
+		DBConnection conn = DBConnectionFactory.getConnection("embedded");
+		try {
+			assertEquals("Load User7", conn.getFullname(DataGenerator.USER_PREFIX + 7));
+			assertEquals(20, conn.getActiveUserIds().size());
+			for (int u = 0; u < 20; ++u) {
+				Set<Item> favorites = conn.getFavoriteItems(DataGenerator.USER_PREFIX + u);
+				assertFalse(favorites.isEmpty());
+				for (Item item : favorites) {
+					// Same ids and segments as the events TicketMasterStub serves.
+					int n = Integer.parseInt(item.getItemId().substring("stub-".length()));
+					assertEquals(DataGenerator.itemId(n), item.getItemId());
+					assertEquals(1, item.getCategories().size());
+					assertEquals(DataGenerator.segmentOf(n), item.getCategories().iterator().next());
+				}
+			}
+		} finally {
+			conn.close();
+		}
+	}
+
+	@Test
+	public void sameSeedSameHistory() throws Exception {
+		DataGenerator.generate("embedded", 5, 7);
+		DBConnection conn = DBConnectionFactory.getConnection("embedded");
+		Set<String> first = conn.getFavoriteItemIds(DataGenerator.USER_PREFIX + 3);
+		DataGenerator.generate("embedded", 5, 7);
+		assertEquals(first, conn.getFavoriteItemIds(DataGenerator.USER_PREFIX + 3));
+		conn.close();
+	}
+
+}
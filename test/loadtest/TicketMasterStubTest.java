@@ -0,0 +1,108 @@
+package loadtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import entity.Item;
+import external.SearchResult;
+import external.TicketMasterAPI;
+
+public class TicketMasterStubTest {
+	private static final TicketMasterStub stub = new TicketMasterStub(0, null, 0, 0);
+
+	static {
+		try {
+			stub.start();
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+		System.setProperty("ticketmaster.url", url(stub));
+		System.setProperty("ticketmaster.qps", "1000");
+	}
+
+	@AfterClass
+	public static void stopStub() {
+		stub.stop();
+	}
+
+	private static String url(TicketMasterStub stub) {
+		return "http://127.0.0.1:" + stub.getPort() + "/discovery/v2/events.json";
+	}
+
+	private static HttpURLConnection get(TicketMasterStub stub, String query) throws Exception {
+		return (HttpURLConnection) new URL(url(stub) + "?" + query).openConnection();
+	}
+
+	private static JSONObject body(HttpURLConnection connection) throws Exception {
+		BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+		StringBuilder body = new StringBuilder();
+		String line;
+		while ((line = in.readLine()) != null) {
+			body.append(line);
+		}
+		in.close();
+		return new JSONObject(body.toString());
+	}
+
+	@Test
+	public void pagesThroughEveryEvent() throws Exception {
+		JSONObject last = body(get(stub, "keyword=Music&page=2&size=50"));
+		assertEquals(20, last.getJSONObject("_embedded").getJSONArray("events").length());
+		assertEquals(3, last.getJSONObject("page").getInt("totalPages"));
+		assertEquals(TicketMasterStub.EVENTS_PER_KEYWORD, last.getJSONObject("page").getInt("totalElements"));
+		assertTrue(body(get(stub, "keyword=Music&page=3&size=50")).isNull("_embedded"));
+	}
+
+	@Test
+	public void generatedEventsAreStableAndDistinct() throws Exception {
+		JSONArray events = TicketMasterStub.generate("jazz");
+		assertEquals(events.toString(), TicketMasterStub.generate("jazz").toString());
+		Set<String> ids = new HashSet<>();
+		for (int i = 0; i < events.length(); ++i) {
+			ids.add(events.getJSONObject(i).getString("id"));
+		}
+		assertEquals(TicketMasterStub.EVENTS_PER_KEYWORD, ids.size());
+	}
+
+	@Test
+	public void segmentKeywordOnlyMatchesThatSegment() {
+		SearchResult result = new TicketMasterAPI().search(37.38, -122.08, "Sports", 200);
+		List<Item> items = result.getItems();
+		assertEquals(TicketMasterStub.EVENTS_PER_KEYWORD, items.size());
+		assertFalse(result.isStale());
+		for (Item item : items) {
+			// Sports is the second segment.
+			assertEquals(1, Integer.parseInt(item.getItemId().substring("stub-".length())) % 5);
+			assertTrue(item.getCategories().contains("Sports"));
+		}
+	}
+
+	@Test
+	public void injectsErrors() throws Exception {
+		TicketMasterStub failing = new TicketMasterStub(0, null, 0, 1);
+		failing.start();
+		try {
+			for (int i = 0; i < 5; ++i) {
+				int code = get(failing, "keyword=Music").getResponseCode();
+				assertTrue(code == 429 || code == 503);
+			}
+		} finally {
+			failing.stop();
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+package logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import metrics.Metrics;
+import metrics.Trace;
+
+public class AccessLogTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@After
+	public void tearDown() {
+		AccessLog.stop();
+		Trace.finish();
+	}
+
+	private List<JSONObject> records() throws Exception {
+		List<JSONObject> records = new ArrayList<>();
+		File[] files = folder.getRoot().listFiles();
+		for (File file : files) {
+			for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+				records.add(new JSONObject(line));
+			}
+		}
+		return records;
+	}
+
+	@Test
+	public void writesOneJsonLinePerRequest() throws Exception {
+		AccessLog.start(folder.getRoot());
+		Trace trace = Trace.start("/search");
+		Trace.setUserId("1111");
+		Trace.setGeoHash("9q9hv");
+		Trace.setResultCount(20);
+		Trace.setCacheHit(true);
+		Trace.span("ticketmaster").end();
+		AccessLog.request("/search", "GET", 200, 12000000, trace);
+		AccessLog.stop();
+
+		List<JSONObject> records = records();
+		assertEquals(1, records.size());
+		JSONObject record = records.get(0);
+		assertEquals("request", record.getString("type"));
+		assertEquals("/search", record.getString("endpoint"));
+		assertEquals(200, record.getInt("status"));
+		assertEquals(12, record.getDouble("latency_ms"), 0);
+		assertEquals("1111", record.getString("user_id"));
+		assertEquals("9q9hv", record.getString("geohash"));
+		assertEquals(20, record.getInt("result_count"));
+		assertTrue(record.getBoolean("cache_hit"));
+		assertFalse(record.getBoolean("stale"));
+		assertEquals("ticketmaster", record.getJSONArray("spans").getJSONObject(0).getString("name"));
+	}
+
+	@Test
+	public void errorsCarryTheirStackTrace() throws Exception {
+		AccessLog.start(folder.getRoot());
+		AccessLog.error("db.getCategories", "link failure", new IOException("link failure"));
+		AccessLog.stop();
+
+		JSONObject record = records().get(0);
+		assertEquals("error", record.getString("type"));
+		assertEquals("db.getCategories", record.getString("source"));
+		assertTrue(record.getString("stack_trace").contains("AccessLogTest"));
+	}
+
+	@Test
+	public void dropsInsteadOfBlockingWhenRingIsFull() throws Exception {
+		AccessLog.start(folder.getRoot());
+		long dropped = Metrics.count("access_log_dropped_total", null, null);
+		int logged = 50000;
+		for (int i = 0; i < logged; ++i) {
+			AccessLog.error("test", "message " + i, null);
+		}
+		AccessLog.stop();
+
+		long written = records().size();
+		assertEquals(logged, written + Metrics.count("access_log_dropped_total", null, null) - dropped);
+	}
+
+}
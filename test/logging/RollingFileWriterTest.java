@@ -0,0 +1,77 @@
+package logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RollingFileWriterTest {
+	private static final long DAY = 24L * 60 * 60 * 1000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static String day(long timestamp) {
+		return new SimpleDateFormat("yyyy-MM-dd").format(timestamp);
+	}
+
+	private static List<String> lines(File file) throws IOException {
+		return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void rollsWhenFileIsFull() throws IOException {
+		File dir = new File(folder.getRoot(), "logs");
+		long now = System.currentTimeMillis();
+		RollingFileWriter out = new RollingFileWriter(dir, "access", 10);
+		out.writeLine("0123456789", now);
+		out.writeLine("second", now);
+		out.writeLine("third", now);
+		out.close();
+
+		assertEquals(Arrays.asList("0123456789"), lines(new File(dir, "access-" + day(now) + ".log")));
+		assertEquals(Arrays.asList("second", "third"), lines(new File(dir, "access-" + day(now) + ".1.log")));
+	}
+
+	@Test
+	public void rollsEveryDay() throws IOException {
+		File dir = folder.getRoot();
+		long today = System.currentTimeMillis();
+		long tomorrow = today + DAY;
+		RollingFileWriter out = new RollingFileWriter(dir, "access", 1000);
+		out.writeLine("today", today);
+		out.writeLine("tomorrow", tomorrow);
+		out.close();
+
+		assertEquals(Arrays.asList("today"), lines(new File(dir, "access-" + day(today) + ".log")));
+		assertEquals(Arrays.asList("tomorrow"), lines(new File(dir, "access-" + day(tomorrow) + ".log")));
+	}
+
+	@Test
+	public void appendsAfterRestartAndSkipsFullFiles() throws IOException {
+		File dir = folder.getRoot();
+		long now = System.currentTimeMillis();
+		RollingFileWriter out = new RollingFileWriter(dir, "access", 10);
+		out.writeLine("0123456789", now);
+		out.writeLine("a", now);
+		out.close();
+
+		RollingFileWriter restarted = new RollingFileWriter(dir, "access", 10);
+		restarted.writeLine("b", now);
+		restarted.close();
+
+		assertEquals(Arrays.asList("a", "b"), lines(new File(dir, "access-" + day(now) + ".1.log")));
+		assertTrue(!new File(dir, "access-" + day(now) + ".2.log").exists());
+	}
+
+}
@@ -0,0 +1,49 @@
+package metrics;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class HistogramTest {
+	private static final long MILLIS = 1000000;
+
+	@Test
+	public void bucketsByUpperBound() {
+		Histogram histogram = new Histogram();
+		histogram.record(1 * MILLIS);
+		histogram.record(2 * MILLIS);
+		histogram.record(20000 * MILLIS);
+
+		long[] counts = histogram.getBucketCounts();
+		assertEquals(1, counts[0]);
+		assertEquals(1, counts[1]);
+		assertEquals(1, counts[counts.length - 1]);
+		assertEquals(3, histogram.getCount());
+		assertEquals(20.003, histogram.getSumSeconds(), 1e-9);
+	}
+
+	@Test
+	public void quantilesUseBucketBounds() {
+		Histogram histogram = new Histogram();
+		for (int i = 0; i < 90; ++i) {
+			histogram.record(3 * MILLIS);
+		}
+		for (int i = 0; i < 10; ++i) {
+			histogram.record(400 * MILLIS);
+		}
+		assertEquals(5, histogram.quantileMillis(0.5), 0);
+		assertEquals(5, histogram.quantileMillis(0.9), 0);
+		assertEquals(500, histogram.quantileMillis(0.95), 0);
+		assertEquals(0, new Histogram().quantileMillis(0.5), 0);
+	}
+
+	@Test
+	public void registryKeysByLabel() {
+		Metrics.histogram("test_seconds", "endpoint", "/a").record(MILLIS);
+		Metrics.histogram("test_seconds", "endpoint", "/b").record(MILLIS);
+		Metrics.histogram("test_seconds", "endpoint", "/b").record(MILLIS);
+		assertEquals(1, Metrics.histogram("test_seconds", "endpoint", "/a").getCount());
+		assertEquals(2, Metrics.histogram("test_seconds", "endpoint", "/b").getCount());
+	}
+
+}
@@ -0,0 +1,71 @@
+package metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Test;
+
+public class TraceTest {
+
+	@After
+	public void tearDown() {
+		Trace.finish();
+	}
+
+	@Test
+	public void spansBelongToTheCurrentTrace() throws Exception {
+		Trace trace = Trace.start("/recommendation");
+		Trace.Span histogram = Trace.span("histogram");
+		histogram.end();
+		Trace.Span ranking = Trace.span("ranking");
+		ranking.end();
+		Trace.Span open = Trace.span("open");
+
+		JSONArray spans = trace.spansToJSONArray();
+		assertEquals(3, spans.length());
+		assertEquals("histogram", spans.getJSONObject(0).getString("name"));
+		assertEquals("ranking", spans.getJSONObject(1).getString("name"));
+		assertEquals(-1, spans.getJSONObject(2).getDouble("duration_ms"), 0);
+		open.end();
+	}
+
+	@Test
+	public void spansOutsideRequestsOnlyFeedTheHistogram() {
+		long before = Metrics.histogram("span_seconds", "span", "background").getCount();
+		Trace.span("background").end();
+		assertNull(Trace.current());
+		assertEquals(before + 1, Metrics.histogram("span_seconds", "span", "background").getCount());
+	}
+
+	@Test
+	public void oneMissMakesTheRequestAMiss() {
+		Trace trace = Trace.start("/search");
+		Trace.setCacheHit(true);
+		Trace.setCacheHit(false);
+		Trace.setCacheHit(true);
+		assertFalse(trace.getCacheHit());
+	}
+
+	@Test
+	public void staleIsPerThread() throws Exception {
+		final Trace trace = Trace.start("/search");
+		Thread worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Trace.setStale();
+			}
+		});
+		worker.start();
+		worker.join();
+		assertFalse(trace.wasStale());
+
+		Trace.setStale();
+		assertTrue(Trace.isStale());
+		assertTrue(trace.wasStale());
+	}
+
+}
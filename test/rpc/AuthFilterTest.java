@@ -0,0 +1,79 @@
+package rpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+public class AuthFilterTest {
+
+	private final AtomicReference<HttpServletRequest> passed = new AtomicReference<>();
+	private final FilterChain chain = new FilterChain() {
+		@Override
+		public void doFilter(ServletRequest request, ServletResponse response) {
+			passed.set((HttpServletRequest) request);
+		}
+	};
+
+	@Test
+	public void userIdComesFromTheSession() throws Exception {
+		FakeHttp.Request request = new FakeHttp.Request().param("user_id", "mallory").param("lat", "37.38");
+		request.session = new FakeHttp.Session();
+		request.session.attributes.put(AuthFilter.USER_ID, "alice");
+		FakeHttp.Response response = new FakeHttp.Response();
+
+		new AuthFilter().doFilter(request.proxy(), response.proxy(), chain);
+
+		HttpServletRequest filtered = passed.get();
+		assertEquals("alice", filtered.getParameter("user_id"));
+		assertEquals("alice", filtered.getParameterValues("user_id")[0]);
+		assertEquals("37.38", filtered.getParameter("lat"));
+		assertEquals("alice", AuthFilter.userId(filtered, "mallory"));
+		assertEquals(HttpServletResponse.SC_OK, response.status);
+	}
+
+	@Test
+	public void requestWithoutSessionIsUnauthorized() throws Exception {
+		FakeHttp.Request request = new FakeHttp.Request().param("user_id", "alice");
+		FakeHttp.Response response = new FakeHttp.Response();
+
+		new AuthFilter().doFilter(request.proxy(), response.proxy(), chain);
+
+		assertNull(passed.get());
+		assertEquals(HttpServletResponse.SC_UNAUTHORIZED, response.status);
+		assertTrue(response.body.toString().contains("Invalid Session"));
+		// Checking does not create a session.
+		assertNull(request.session);
+	}
+
+	@Test
+	public void sessionWithoutUserIsUnauthorized() throws Exception {
+		FakeHttp.Request request = new FakeHttp.Request().param("user_id", "alice");
+		request.session = new FakeHttp.Session();
+		FakeHttp.Response response = new FakeHttp.Response();
+
+		new AuthFilter().doFilter(request.proxy(), response.proxy(), chain);
+
+		assertNull(passed.get());
+		assertEquals(HttpServletResponse.SC_UNAUTHORIZED, response.status);
+	}
+
+	@Test
+	public void optionalOnlyWithTheEmbeddedBackend() {
+		assertTrue(AuthFilter.optional(true, "embedded"));
+		assertFalse(AuthFilter.optional(true, "mysql"));
+		assertFalse(AuthFilter.optional(true, "mongodb"));
+		assertFalse(AuthFilter.optional(false, "embedded"));
+	}
+
+}
@@ -0,0 +1,141 @@
+package rpc;
+
+import java.io.BufferedReader;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Just enough of a servlet container for calling servlets and filters
+ * directly: requests with parameters, headers, attributes, a body and a
+ * session, and responses that keep status, headers and what was written.
+ * Anything else answers null, zero or false.
+ */
+class FakeHttp {
+
+	private static Object none(Method method) {
+		Class<?> type = method.getReturnType();
+		if (type == boolean.class) {
+			return false;
+		}
+		if (type == int.class) {
+			return 0;
+		}
+		if (type == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+
+	static class Request implements InvocationHandler {
+		final Map<String, String> parameters = new HashMap<>();
+		final Map<String, String> headers = new HashMap<>();
+		final Map<String, Object> attributes = new HashMap<>();
+		String servletPath = "";
+		String body = "";
+		Session session;
+
+		Request param(String name, String value) {
+			parameters.put(name, value);
+			return this;
+		}
+
+		HttpServletRequest proxy() {
+			return (HttpServletRequest) Proxy.newProxyInstance(FakeHttp.class.getClassLoader(),
+					new Class<?>[] { HttpServletRequest.class }, this);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			switch (method.getName()) {
+			case "getParameter":
+				return parameters.get(args[0]);
+			case "getParameterValues":
+				return parameters.containsKey(args[0]) ? new String[] { parameters.get(args[0]) } : null;
+			case "getHeader":
+				return headers.get(args[0]);
+			case "getAttribute":
+				return attributes.get(args[0]);
+			case "setAttribute":
+				attributes.put((String) args[0], args[1]);
+				return null;
+			case "getServletPath":
+				return servletPath;
+			case "getReader":
+				return new BufferedReader(new StringReader(body));
+			case "getSession":
+				if ((session == null || session.invalidated) && (args == null || (Boolean) args[0])) {
+					session = new Session();
+				}
+				return session == null || session.invalidated ? null : session.proxy();
+			default:
+				return none(method);
+			}
+		}
+	}
+
+	static class Session implements InvocationHandler {
+		final Map<String, Object> attributes = new HashMap<>();
+		boolean invalidated;
+
+		HttpSession proxy() {
+			return (HttpSession) Proxy.newProxyInstance(FakeHttp.class.getClassLoader(),
+					new Class<?>[] { HttpSession.class }, this);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			switch (method.getName()) {
+			case "getAttribute":
+				return attributes.get(args[0]);
+			case "setAttribute":
+				attributes.put((String) args[0], args[1]);
+				return null;
+			case "invalidate":
+				invalidated = true;
+				return null;
+			default:
+				return none(method);
+			}
+		}
+	}
+
+	static class Response implements InvocationHandler {
+		int status = HttpServletResponse.SC_OK;
+		final Map<String, String> headers = new HashMap<>();
+		final StringWriter body = new StringWriter();
+
+		HttpServletResponse proxy() {
+			return (HttpServletResponse) Proxy.newProxyInstance(FakeHttp.class.getClassLoader(),
+					new Class<?>[] { HttpServletResponse.class }, this);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			switch (method.getName()) {
+			case "setStatus":
+				status = (Integer) args[0];
+				return null;
+			case "setHeader":
+			case "addHeader":
+				headers.put((String) args[0], (String) args[1]);
+				return null;
+			case "getHeader":
+				return headers.get(args[0]);
+			case "getWriter":
+				return new PrintWriter(body);
+			default:
+				return none(method);
+			}
+		}
+	}
+}
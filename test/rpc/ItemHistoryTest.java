@@ -0,0 +1,44 @@
+package rpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONArray;
+import org.junit.Test;
+
+import db.DBConnection;
+import db.DBConnectionFactory;
+import entity.Item.ItemBuilder;
+
+public class ItemHistoryTest {
+
+	@Test
+	public void missingUserIsABadRequest() throws Exception {
+		FakeHttp.Response response = new FakeHttp.Response();
+		new ItemHistory().doGet(new FakeHttp.Request().proxy(), response.proxy());
+		assertEquals(HttpServletResponse.SC_BAD_REQUEST, response.status);
+		assertTrue(response.body.toString().contains("Missing user_id"));
+	}
+
+	@Test
+	public void favoritesAreListed() throws Exception {
+		ItemBuilder builder = new ItemBuilder();
+		builder.setItemId("history-1");
+		DBConnection conn = DBConnectionFactory.getConnection();
+		conn.saveItem(builder.build());
+		conn.setFavoriteItems("history-user", Arrays.asList("history-1"));
+		conn.close();
+
+		FakeHttp.Response response = new FakeHttp.Response();
+		new ItemHistory().doGet(new FakeHttp.Request().param("user_id", "history-user").proxy(), response.proxy());
+		assertEquals(HttpServletResponse.SC_OK, response.status);
+		JSONArray items = new JSONArray(response.body.toString());
+		assertEquals(1, items.length());
+		assertEquals("history-1", items.getJSONObject(0).getString("item_id"));
+	}
+
+}
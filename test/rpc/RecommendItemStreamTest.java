@@ -0,0 +1,139 @@
+package rpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import algorithm.GeoRecommendation;
+import db.DBConnection;
+import db.DBConnectionFactory;
+import entity.Item;
+import entity.Item.ItemBuilder;
+import external.EventCache;
+import loadtest.TicketMasterStub;
+
+public class RecommendItemStreamTest {
+	private static final double LAT = 37.38;
+	private static final double LON = -122.08;
+	private static final TicketMasterStub stub;
+
+	static {
+		try {
+			// Searches for the Broken category fail, the stub cannot parse its fixture.
+			File fixtures = Files.createTempDirectory("fixtures").toFile();
+			Files.write(new File(fixtures, "Broken.json").toPath(), "not json".getBytes("UTF-8"));
+			stub = new TicketMasterStub(0, fixtures, 200, 0);
+			stub.start();
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+		System.setProperty("ticketmaster.url", "http://127.0.0.1:" + stub.getPort() + "/discovery/v2/events.json");
+		System.setProperty("ticketmaster.qps", "1000");
+	}
+
+	@AfterClass
+	public static void stopStub() {
+		stub.stop();
+	}
+
+	private static void favorites(String userId, String... categories) {
+		DBConnection conn = DBConnectionFactory.getConnection();
+		List<String> itemIds = new ArrayList<>();
+		for (int i = 0; i < categories.length; ++i) {
+			ItemBuilder builder = new ItemBuilder();
+			builder.setItemId(userId + "-" + i);
+			builder.setCategories(new HashSet<>(Arrays.asList(categories[i])));
+			conn.saveItem(builder.build());
+			itemIds.add(userId + "-" + i);
+		}
+		conn.setFavoriteItems(userId, itemIds);
+		conn.close();
+	}
+
+	// The data of each event, in order.
+	private static List<JSONObject> stream(String userId) throws Exception {
+		FakeHttp.Request request = new FakeHttp.Request().param("user_id", userId).param("lat", String.valueOf(LAT))
+				.param("lon", String.valueOf(LON));
+		FakeHttp.Response response = new FakeHttp.Response();
+		new RecommendItemStream().doGet(request.proxy(), response.proxy());
+		List<JSONObject> events = new ArrayList<>();
+		for (String event : response.body.toString().split("\n\n")) {
+			String[] lines = event.split("\n");
+			events.add(new JSONObject(lines[1].substring("data: ".length())).put("event",
+					lines[0].substring("event: ".length())));
+		}
+		return events;
+	}
+
+	@Test
+	public void sendsCategoriesInProfileOrderLikeRecommendation() throws Exception {
+		favorites("ordered", "Music", "Music", "Sports");
+		// Sports is cached and done first, but Music comes first in the profile.
+		ArrayList<Item> sports = new ArrayList<>();
+		for (int i = 0; i < 3; ++i) {
+			ItemBuilder builder = new ItemBuilder();
+			builder.setItemId("cached-sports-" + i);
+			builder.setDistance(i);
+			sports.add(builder.build());
+		}
+		EventCache.put(EventCache.key(LAT, LON, "Sports"),
+				new EventCache.Entry(LAT, LON, "Sports", sports, true, System.currentTimeMillis()));
+
+		List<JSONObject> events = stream("ordered");
+		assertEquals(3, events.size());
+		assertEquals("Music", events.get(0).getString("category"));
+		assertEquals("Sports", events.get(1).getString("category"));
+		assertEquals("complete", events.get(2).getString("event"));
+		assertFalse(events.get(2).getBoolean("stale"));
+
+		List<String> streamed = new ArrayList<>();
+		for (int e = 0; e < 2; ++e) {
+			JSONArray items = events.get(e).getJSONArray("items");
+			for (int i = 0; i < items.length(); ++i) {
+				streamed.add(items.getJSONObject(i).getString("item_id"));
+			}
+		}
+		List<String> ranked = new ArrayList<>();
+		for (Item item : new GeoRecommendation().recommendItems("ordered", LAT, LON)) {
+			ranked.add(item.getItemId());
+		}
+		assertEquals(ranked, streamed);
+		assertEquals(ranked.size(), events.get(2).getInt("count"));
+	}
+
+	@Test
+	public void staleCategoryIsFlagged() throws Exception {
+		favorites("stale", "Broken", "Broken", "Film");
+		List<JSONObject> events = stream("stale");
+		assertEquals("Broken", events.get(0).getString("category"));
+		assertTrue(events.get(0).getBoolean("stale"));
+		assertEquals(0, events.get(0).getJSONArray("items").length());
+		assertEquals("Film", events.get(1).getString("category"));
+		assertFalse(events.get(1).getBoolean("stale"));
+		assertTrue(events.get(2).getBoolean("stale"));
+	}
+
+	@Test
+	public void missingUserIsABadRequest() throws Exception {
+		FakeHttp.Request request = new FakeHttp.Request().param("lat", "37.38").param("lon", "-122.08");
+		FakeHttp.Response response = new FakeHttp.Response();
+		new RecommendItemStream().doGet(request.proxy(), response.proxy());
+		assertEquals(HttpServletResponse.SC_BAD_REQUEST, response.status);
+		assertTrue(response.body.toString().contains("Missing user_id"));
+	}
+
+}
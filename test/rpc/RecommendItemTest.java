@@ -0,0 +1,137 @@
+package rpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+import algorithm.GeoRecommendation;
+import db.DBConnection;
+import db.DBConnectionFactory;
+import entity.Item;
+import entity.Item.ItemBuilder;
+import external.EventCache;
+import metrics.Metrics;
+
+public class RecommendItemTest {
+	private static final double LAT = 37.38;
+	private static final double LON = -122.08;
+
+	private static void favorite(String userId, String itemId, String category) {
+		ItemBuilder builder = new ItemBuilder();
+		builder.setItemId(itemId);
+		builder.setCategories(new HashSet<>(Arrays.asList(category)));
+		DBConnection conn = DBConnectionFactory.getConnection();
+		conn.saveItem(builder.build());
+		conn.setFavoriteItems(userId, Arrays.asList(itemId));
+		conn.close();
+	}
+
+	private static void cache(String category, String... itemIds) {
+		ArrayList<Item> items = new ArrayList<>();
+		for (String itemId : itemIds) {
+			ItemBuilder builder = new ItemBuilder();
+			builder.setItemId(itemId);
+			items.add(builder.build());
+		}
+		EventCache.put(EventCache.key(LAT, LON, category),
+				new EventCache.Entry(LAT, LON, category, items, true, System.currentTimeMillis()));
+	}
+
+	private static String etag(String userId) {
+		return RecommendItem.etag(GeoRecommendation.profile(userId), LAT, LON);
+	}
+
+	private static long profileReads() {
+		return Metrics.histogram("db_call_seconds", "method", "getFavoriteItemIds").getCount();
+	}
+
+	@Test
+	public void etagFollowsOnlyTheUsersCategories() {
+		favorite("etag-user", "fav-1", "Music");
+		cache("Music", "m1");
+		String etag = etag("etag-user");
+		assertEquals(etag, etag("etag-user"));
+
+		// Another category, or the same one elsewhere, leaves it alone.
+		cache("Sports", "s1");
+		EventCache.put(EventCache.key(LAT + 1, LON, "Music"), new EventCache.Entry(LAT + 1, LON, "Music",
+				new ArrayList<Item>(), true, System.currentTimeMillis()));
+		assertEquals(etag, etag("etag-user"));
+
+		cache("Music", "m1", "m2");
+		String changed = etag("etag-user");
+		assertNotEquals(etag, changed);
+
+		// A new favorite changes the version and adds its category.
+		favorite("etag-user", "fav-2", "Sports");
+		String withSports = etag("etag-user");
+		assertNotEquals(changed, withSports);
+		cache("Sports", "s1", "s2");
+		assertNotEquals(withSports, etag("etag-user"));
+	}
+
+	@Test
+	public void matchingTagIsNotModified() throws Exception {
+		favorite("cached-user", "fav-3", "Film");
+		cache("Film", "f1");
+		FakeHttp.Request request = new FakeHttp.Request().param("user_id", "cached-user")
+				.param("lat", String.valueOf(LAT)).param("lon", String.valueOf(LON));
+		request.headers.put("If-None-Match", "W/\"" + etag("cached-user") + "\"");
+		FakeHttp.Response response = new FakeHttp.Response();
+		new RecommendItem().doGet(request.proxy(), response.proxy());
+		assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.status);
+		assertEquals("", response.body.toString());
+	}
+
+	@Test
+	public void profileIsReadOncePerFavoritesChange() throws Exception {
+		favorite("reads-user", "fav-4", "Theatre");
+		cache("Theatre", "t1");
+		long reads = profileReads();
+		FakeHttp.Request request = new FakeHttp.Request().param("user_id", "reads-user")
+				.param("lat", String.valueOf(LAT)).param("lon", String.valueOf(LON));
+		FakeHttp.Response response = new FakeHttp.Response();
+		new RecommendItem().doGet(request.proxy(), response.proxy());
+		assertEquals(HttpServletResponse.SC_OK, response.status);
+		assertTrue(response.body.toString().contains("t1"));
+		assertEquals(reads + 1, profileReads());
+
+		// Unchanged favorites are not read again.
+		new RecommendItem().doGet(request.proxy(), new FakeHttp.Response().proxy());
+		assertEquals(reads + 1, profileReads());
+	}
+
+	@Test
+	public void notModifiedMatchesListsAndWildcard() {
+		FakeHttp.Request request = new FakeHttp.Request();
+		request.headers.put("If-None-Match", "\"a\", W/\"b\"");
+		assertTrue(RpcHelper.notModified(request.proxy(), new FakeHttp.Response().proxy(), "b"));
+		assertFalse(RpcHelper.notModified(request.proxy(), new FakeHttp.Response().proxy(), "c"));
+
+		request.headers.put("If-None-Match", "*");
+		assertTrue(RpcHelper.notModified(request.proxy(), new FakeHttp.Response().proxy(), "c"));
+
+		FakeHttp.Response response = new FakeHttp.Response();
+		assertFalse(RpcHelper.notModified(new FakeHttp.Request().proxy(), response.proxy(), "c"));
+		assertEquals("\"c\"", response.headers.get("ETag"));
+	}
+
+	@Test
+	public void missingUserIsABadRequest() throws Exception {
+		FakeHttp.Request request = new FakeHttp.Request().param("lat", "37.38").param("lon", "-122.08");
+		FakeHttp.Response response = new FakeHttp.Response();
+		new RecommendItem().doGet(request.proxy(), response.proxy());
+		assertEquals(HttpServletResponse.SC_BAD_REQUEST, response.status);
+		assertTrue(response.body.toString().contains("Missing user_id"));
+	}
+
+}
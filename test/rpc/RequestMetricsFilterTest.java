@@ -0,0 +1,62 @@
+package rpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.junit.Test;
+
+import metrics.Trace;
+
+public class RequestMetricsFilterTest {
+
+	private final AtomicReference<String> tracedUserId = new AtomicReference<>();
+	private final FilterChain chain = new FilterChain() {
+		@Override
+		public void doFilter(ServletRequest request, ServletResponse response) {
+			tracedUserId.set(Trace.current().getUserId());
+		}
+	};
+
+	@Test
+	public void tracesTheSessionUser() throws Exception {
+		FakeHttp.Request request = new FakeHttp.Request().param("user_id", "mallory");
+		request.servletPath = "/search";
+		request.session = new FakeHttp.Session();
+		request.session.attributes.put(AuthFilter.USER_ID, "alice");
+
+		new RequestMetricsFilter().doFilter(request.proxy(), new FakeHttp.Response().proxy(), chain);
+
+		assertEquals("alice", tracedUserId.get());
+	}
+
+	@Test
+	public void claimedUserIsNotTraced() throws Exception {
+		FakeHttp.Request request = new FakeHttp.Request().param("user_id", "mallory");
+		request.servletPath = "/search";
+
+		new RequestMetricsFilter().doFilter(request.proxy(), new FakeHttp.Response().proxy(), chain);
+
+		assertNull(tracedUserId.get());
+	}
+
+	@Test
+	public void metricsFilterIsMappedOutsideAuth() throws Exception {
+		String webXml = new String(Files.readAllBytes(new File("WebContent/WEB-INF/web.xml").toPath()),
+				StandardCharsets.UTF_8).replaceAll("\\s+", "");
+		// Mappings, not declarations, decide the order.
+		int metrics = webXml.indexOf("<filter-name>RequestMetricsFilter</filter-name><url-pattern>");
+		int auth = webXml.indexOf("<filter-name>AuthFilter</filter-name><url-pattern>");
+		assertTrue(metrics >= 0 && auth > metrics);
+	}
+
+}
@@ -0,0 +1,29 @@
+package rpc;
+
+import static org.junit.Assert.assertEquals;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class RpcHelperTest {
+
+	@Test
+	public void respondWritesStatusAndMessage() throws Exception {
+		FakeHttp.Response response = new FakeHttp.Response();
+		RpcHelper.respond(response.proxy(), HttpServletResponse.SC_BAD_REQUEST, "Invalid limit");
+		assertEquals(HttpServletResponse.SC_BAD_REQUEST, response.status);
+		assertEquals("Invalid limit", new JSONObject(response.body.toString()).getString("status"));
+	}
+
+	@Test
+	public void rejectedAsksToRetry() throws Exception {
+		FakeHttp.Response response = new FakeHttp.Response();
+		RpcHelper.rejected(response.proxy());
+		assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, response.status);
+		assertEquals("1", response.headers.get("Retry-After"));
+		assertEquals("Busy", new JSONObject(response.body.toString()).getString("status"));
+	}
+
+}
@@ -0,0 +1,31 @@
+package rpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+public class SearchItemTest {
+
+	@Test
+	public void badLimitIsABadRequest() throws Exception {
+		FakeHttp.Request request = new FakeHttp.Request().param("user_id", "1111").param("lat", "37.38")
+				.param("lon", "-122.08").param("limit", "ten");
+		FakeHttp.Response response = new FakeHttp.Response();
+		new SearchItem().doGet(request.proxy(), response.proxy());
+		assertEquals(HttpServletResponse.SC_BAD_REQUEST, response.status);
+		assertTrue(response.body.toString().contains("Invalid limit"));
+	}
+
+	@Test
+	public void missingUserIsABadRequest() throws Exception {
+		FakeHttp.Request request = new FakeHttp.Request().param("lat", "37.38").param("lon", "-122.08");
+		FakeHttp.Response response = new FakeHttp.Response();
+		new SearchItem().doGet(request.proxy(), response.proxy());
+		assertEquals(HttpServletResponse.SC_BAD_REQUEST, response.status);
+		assertTrue(response.body.toString().contains("Missing user_id"));
+	}
+
+}
@@ -0,0 +1,31 @@
+#!/bin/sh
+# Compile src and test into build/test, then run every *Test class with JUnit 4.
+# The servlet API comes from Tomcat: set CATALINA_HOME, or SERVLET_API to the jar.
+#
+#   test/run-tests.sh                        all tests
+#   test/run-tests.sh db.mongodb.MongoDBConnectionTest
+
+cd "$(dirname "$0")/.." || exit 1
+SERVLET_API=${SERVLET_API:-$CATALINA_HOME/lib/servlet-api.jar}
+OUT=build/test
+CP="WebContent/WEB-INF/lib/*:test/lib/*:$SERVLET_API"
+
+rm -rf $OUT && mkdir -p $OUT
+javac -nowarn -encoding UTF-8 -d $OUT -cp "$CP" $(find src test -name '*.java') || exit 1
+
+TESTS="$*"
+if [ -z "$TESTS" ]; then
+	TESTS=$(cd test && find . -name '*Test.java' | sed 's|^\./||; s|\.java$||; s|/|.|g' | sort)
+fi
+
+# One JVM per class, settings are read from system properties when a class
+# is loaded. Every class gets its own data directory.
+status=0
+for test in $TESTS; do
+	data=$(mktemp -d)
+	java -cp "$OUT:$CP" -Ddb.backend=embedded -Dembedded.db.path=$data/journal \
+		-Daccess.log.dir=$data/logs -Dsnapshot.path=$data/snapshot -Dauth.iterations=1000 \
+		org.junit.runner.JUnitCore $test || status=1
+	rm -rf $data
+done
+exit $status
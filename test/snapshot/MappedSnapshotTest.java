@@ -0,0 +1,260 @@
+package snapshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import algorithm.RecommendationStore;
+import entity.Item;
+import entity.Item.ItemBuilder;
+import external.EventCache;
+import metrics.Metrics;
+
+public class MappedSnapshotTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File file;
+	private long now;
+
+	@Before
+	public void setUp() throws IOException {
+		file = new File(folder.getRoot(), "snapshot.1");
+		now = System.currentTimeMillis();
+	}
+
+	static Item item(String itemId, String... categories) {
+		ItemBuilder builder = new ItemBuilder();
+		builder.setItemId(itemId);
+		builder.setName("Event " + itemId);
+		builder.setRating(4.5);
+		builder.setAddress("1 Main St");
+		builder.setImageUrl("http://img/" + itemId);
+		builder.setUrl("http://event/" + itemId);
+		builder.setDistance(1.25);
+		builder.setLatitude(37.38);
+		builder.setLongitude(-122.08);
+		builder.setCategories(new HashSet<>(Arrays.asList(categories)));
+		return builder.build();
+	}
+
+	private static void assertItem(Item expected, Item actual) {
+		assertEquals(expected.getItemId(), actual.getItemId());
+		assertEquals(expected.getName(), actual.getName());
+		assertEquals(expected.getRating(), actual.getRating(), 0);
+		assertEquals(expected.getAddress(), actual.getAddress());
+		assertEquals(expected.getImageUrl(), actual.getImageUrl());
+		assertEquals(expected.getUrl(), actual.getUrl());
+		assertEquals(expected.getDistance(), actual.getDistance(), 0);
+		assertEquals(expected.getLatitude(), actual.getLatitude(), 0);
+		assertEquals(expected.getLongitude(), actual.getLongitude(), 0);
+		assertEquals(expected.getCategories(), actual.getCategories());
+	}
+
+	private MappedSnapshot writeRecommendation(long computedAt) throws IOException {
+		SnapshotWriter writer = new SnapshotWriter();
+		writer.addRecommendation("u1|9q9hv", new RecommendationStore.Entry(Arrays.asList("a", "b"), "v1", 42L, computedAt));
+		writer.writeTo(file);
+		return MappedSnapshot.open(file);
+	}
+
+	private static long rejected(String reason) {
+		return Metrics.count("snapshot_rejected_total", "reason", reason);
+	}
+
+	@Test
+	public void eventCacheEntryRoundTrips() throws IOException {
+		Item bare = new ItemBuilder().build();
+		SnapshotWriter writer = new SnapshotWriter();
+		writer.addEventCacheEntry("k", new EventCache.Entry(37.38, -122.08, "jazz",
+				Arrays.asList(item("a", "Music", "Jazz"), bare), false, now - 1000));
+		writer.writeTo(file);
+
+		MappedSnapshot snapshot = MappedSnapshot.open(file);
+		EventCache.Entry entry = snapshot.load("k");
+		assertEquals(37.38, entry.getLat(), 0);
+		assertEquals(-122.08, entry.getLon(), 0);
+		assertEquals("jazz", entry.getKeyword());
+		assertEquals(false, entry.isComplete());
+		assertEquals(now - 1000, entry.getFetchedAt());
+		List<Item> items = entry.getItems();
+		assertEquals(2, items.size());
+		assertItem(item("a", "Music", "Jazz"), items.get(0));
+		// Null fields and categories survive as nulls.
+		assertItem(bare, items.get(1));
+		// Handed out once.
+		assertNull(snapshot.load("k"));
+		assertEquals(0, snapshot.size());
+	}
+
+	@Test
+	public void recommendationRoundTrips() throws IOException {
+		MappedSnapshot snapshot = writeRecommendation(now - 1000);
+		RecommendationStore.Entry entry = snapshot.loadEntry("u1|9q9hv");
+		assertEquals(Arrays.asList("a", "b"), entry.getItemIds());
+		assertEquals(42L, entry.getFavoritesFingerprint());
+		assertEquals(now - 1000, entry.getComputedAt());
+		// The favorites version is checked again after a restart.
+		assertNull(entry.getFavoritesVersion());
+		assertNull(snapshot.loadEntry("u1|9q9hv"));
+	}
+
+	@Test
+	public void cellItemsRoundTrip() throws IOException {
+		Map<String, Item> items = new HashMap<>();
+		items.put("a", item("a", "Music"));
+		items.put("b", item("b", "Sports"));
+		SnapshotWriter writer = new SnapshotWriter();
+		writer.addCellItems("9q9hv", items, now);
+		writer.writeTo(file);
+
+		Map<String, Item> loaded = MappedSnapshot.open(file).loadCellItems("9q9hv");
+		assertEquals(items.keySet(), loaded.keySet());
+		assertItem(items.get("a"), loaded.get("a"));
+		assertItem(items.get("b"), loaded.get("b"));
+	}
+
+	@Test
+	public void regionsAreRestoredAtOnce() throws IOException {
+		SnapshotWriter writer = new SnapshotWriter();
+		writer.addRegion("region-user", new RecommendationStore.Region("9q9hv", 37.38, -122.08, now - 1000));
+		writer.writeTo(file);
+
+		MappedSnapshot snapshot = MappedSnapshot.open(file);
+		assertEquals(1, snapshot.size());
+		snapshot.restoreRegions();
+		assertEquals(0, snapshot.size());
+		RecommendationStore.Region region = RecommendationStore.recentRegions().get("region-user");
+		assertEquals("9q9hv", region.getCell());
+		assertEquals(37.38, region.getLat(), 0);
+		assertEquals(-122.08, region.getLon(), 0);
+		assertEquals(now - 1000, region.getSeenAt());
+	}
+
+	@Test
+	public void unreadRecordsAreCarriedOver() throws IOException {
+		SnapshotWriter writer = new SnapshotWriter();
+		writer.addRecommendation("u1|a", new RecommendationStore.Entry(Arrays.asList("old"), null, 1L, now));
+		writer.addRecommendation("u1|b", new RecommendationStore.Entry(Arrays.asList("b"), null, 1L, now));
+		writer.writeTo(file);
+		MappedSnapshot previous = MappedSnapshot.open(file);
+
+		SnapshotWriter next = new SnapshotWriter();
+		next.addRecommendation("u1|a", new RecommendationStore.Entry(Arrays.asList("new"), null, 1L, now));
+		previous.copyUnread(next);
+		File nextFile = new File(folder.getRoot(), "snapshot.2");
+		next.writeTo(nextFile);
+
+		MappedSnapshot snapshot = MappedSnapshot.open(nextFile);
+		assertEquals(Arrays.asList("new"), snapshot.loadEntry("u1|a").getItemIds());
+		assertEquals(Arrays.asList("b"), snapshot.loadEntry("u1|b").getItemIds());
+	}
+
+	@Test
+	public void expiredRecordsAreDropped() throws IOException {
+		SnapshotWriter writer = new SnapshotWriter();
+		writer.addEventCacheEntry("old", new EventCache.Entry(0, 0, null, Collections.<Item>emptyList(), true,
+				now - EventCache.STALE_MILLIS));
+		writer.addEventCacheEntry("new", new EventCache.Entry(0, 0, null, Collections.<Item>emptyList(), true,
+				now - EventCache.FRESH_MILLIS));
+		writer.addRecommendation("u1|old",
+				new RecommendationStore.Entry(Arrays.asList("a"), null, 1L, now - RecommendationStore.FRESH_MILLIS));
+		writer.addCellItems("old", Collections.<String, Item>emptyMap(), now - RecommendationStore.FRESH_MILLIS);
+		writer.addRegion("u1", new RecommendationStore.Region("old", 0, 0, now - RecommendationStore.REGION_MILLIS));
+		writer.writeTo(file);
+
+		long expired = Metrics.count("snapshot_records_expired_total", null, null);
+		MappedSnapshot snapshot = MappedSnapshot.open(file);
+		assertEquals(expired + 4, Metrics.count("snapshot_records_expired_total", null, null));
+		assertEquals(1, snapshot.size());
+		assertNull(snapshot.load("old"));
+		assertNull(snapshot.loadEntry("u1|old"));
+		assertNull(snapshot.loadCellItems("old"));
+		assertNotNull(snapshot.load("new"));
+	}
+
+	@Test
+	public void badMagicIsRejected() throws IOException {
+		writeRecommendation(now);
+		overwrite(0, 0);
+		long before = rejected("bad_magic");
+		assertNull(MappedSnapshot.open(file));
+		assertEquals(before + 1, rejected("bad_magic"));
+	}
+
+	@Test
+	public void otherVersionIsRejected() throws IOException {
+		writeRecommendation(now);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(4);
+			raf.writeInt(MappedSnapshot.FORMAT_VERSION + 1);
+		}
+		long before = rejected("version");
+		assertNull(MappedSnapshot.open(file));
+		assertEquals(before + 1, rejected("version"));
+	}
+
+	@Test
+	public void headerChecksumMismatchIsRejected() throws IOException {
+		writeRecommendation(now);
+		// A byte of the first record's key in the index.
+		overwrite(MappedSnapshot.HEADER_SIZE + 3, 'x');
+		long before = rejected("checksum");
+		assertNull(MappedSnapshot.open(file));
+		assertEquals(before + 1, rejected("checksum"));
+	}
+
+	@Test
+	public void recordChecksumMismatchIsRejected() throws IOException {
+		writeRecommendation(now);
+		overwrite((int) file.length() - 1, 'x');
+		long before = rejected("record_checksum");
+		MappedSnapshot snapshot = MappedSnapshot.open(file);
+		assertNull(snapshot.loadEntry("u1|9q9hv"));
+		assertEquals(before + 1, rejected("record_checksum"));
+	}
+
+	@Test
+	public void truncatedFileIsRejected() throws IOException {
+		writeRecommendation(now);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(raf.length() - 1);
+		}
+		long before = rejected("truncated");
+		assertNull(MappedSnapshot.open(file));
+		assertEquals(before + 1, rejected("truncated"));
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(MappedSnapshot.HEADER_SIZE + 1);
+		}
+		assertNull(MappedSnapshot.open(file));
+		assertEquals(before + 2, rejected("truncated"));
+	}
+
+	@Test
+	public void missingFileIsNoSnapshot() {
+		assertNull(MappedSnapshot.open(new File(folder.getRoot(), "missing")));
+	}
+
+	private void overwrite(int offset, int value) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(offset);
+			raf.write(value);
+		}
+	}
+}
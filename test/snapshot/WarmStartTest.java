@@ -0,0 +1,108 @@
+package snapshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import algorithm.RecommendationStore;
+import entity.Item;
+
+public class WarmStartTest {
+
+	static {
+		// Written only by the tests, and entries go stale within a test.
+		System.setProperty("snapshot.intervalMillis", "3600000");
+		System.setProperty("precompute.freshMillis", "2000");
+	}
+
+	private static File dir;
+	private static File base;
+
+	@BeforeClass
+	public static void start() throws IOException {
+		dir = Files.createTempDirectory("snapshots").toFile();
+		base = new File(dir, "eventrecommend.snapshot");
+
+		SnapshotWriter writer = new SnapshotWriter();
+		writer.addRegion("restored-user",
+				new RecommendationStore.Region("9q9hv", 37.38, -122.08, System.currentTimeMillis()));
+		writer.writeTo(new File(base.getPath() + ".100"));
+		// Newer but unusable, e.g. cut short by a crash.
+		try (FileOutputStream out = new FileOutputStream(base.getPath() + ".200")) {
+			out.write(new byte[] { 1, 2, 3 });
+		}
+		new File(base.getPath() + ".300.tmp").createNewFile();
+
+		WarmStart.start(base);
+	}
+
+	@AfterClass
+	public static void stop() {
+		WarmStart.stop();
+	}
+
+	@Test
+	public void restoresNewestUsableSnapshot() {
+		assertNotNull(RecommendationStore.recentRegions().get("restored-user"));
+	}
+
+	@Test
+	public void eachWriteGoesToANewFileAndDeletesOlderOnes() {
+		WarmStart.write();
+		List<File> first = WarmStart.snapshots();
+		WarmStart.write();
+		List<File> second = WarmStart.snapshots();
+
+		assertEquals(1, first.size());
+		assertEquals(1, second.size());
+		assertTrue(!first.get(0).equals(second.get(0)));
+		assertTrue(second.get(0).getName().startsWith(base.getName() + "."));
+		assertNotNull(MappedSnapshot.open(second.get(0)));
+	}
+
+	@Test
+	public void cellItemsExpireWithTheirEntries() throws Exception {
+		Map<String, Item> items = new HashMap<>();
+		items.put("a", MappedSnapshotTest.item("a", "Music"));
+		long now = System.currentTimeMillis();
+		// Stamped with the write time the items would outlive their entry.
+		RecommendationStore.putCell("oldcell", items, Collections.singletonMap("u1",
+				new RecommendationStore.Entry(Arrays.asList("a"), "v", 1L, now - 1500)));
+		RecommendationStore.putCell("newcell", items, Collections.singletonMap("u1",
+				new RecommendationStore.Entry(Arrays.asList("a"), "v", 1L, now)));
+		WarmStart.write();
+		Thread.sleep(600);
+
+		MappedSnapshot snapshot = MappedSnapshot.open(WarmStart.snapshots().get(0));
+		assertNull(snapshot.loadEntry("u1|oldcell"));
+		assertNull(snapshot.loadCellItems("oldcell"));
+		assertNotNull(snapshot.loadEntry("u1|newcell"));
+		assertEquals(items.keySet(), snapshot.loadCellItems("newcell").keySet());
+	}
+
+	@Test
+	public void cellsWithoutFreshEntriesAreNotWritten() throws Exception {
+		Map<String, Item> items = new HashMap<>();
+		items.put("a", MappedSnapshotTest.item("a", "Music"));
+		RecommendationStore.putCell("stalecell", items, Collections.singletonMap("u2",
+				new RecommendationStore.Entry(Arrays.asList("a"), "v", 1L, System.currentTimeMillis() - 5000)));
+		WarmStart.write();
+
+		assertNull(MappedSnapshot.open(WarmStart.snapshots().get(0)).loadCellItems("stalecell"));
+	}
+}